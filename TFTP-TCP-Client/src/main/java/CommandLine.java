@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.sql.SQLOutput;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
@@ -36,6 +37,9 @@ public class CommandLine {
      * If the connection cannot be established, the program will exit.
      */
     private void initializeClient() {
+        if (client != null) {
+            client.close();
+        }
         try {
             Socket socket = new Socket(serverAddress, serverPort);
             client = new TFTPClient(socket);
@@ -61,28 +65,47 @@ public class CommandLine {
         System.out.println("Choose Option below: ");
         System.out.println("=====================");
         System.out.println(menu());
+        initializeClient();
         while (true) {
-            initializeClient();
             System.out.print("Enter command: ");
             String input = scanner.nextLine();
             CommandPair commandPair = parseCommand(input);
-            doCommand(commandPair.command, commandPair.filename);
+            boolean success = doCommand(commandPair.command, commandPair.filenames);
+            // The server closes idle connections, reconnect and retry once if that happened
+            if (!success && !client.isConnected()) {
+                initializeClient();
+                doCommand(commandPair.command, commandPair.filenames);
+            }
         }
     }
 
     /**
-     * Executes the specified command with an optional filename argument.
+     * Executes the specified command with optional filename arguments.
      * @param command the command to execute
-     * @param filename the file associated with the command, if applicable
+     * @param filenames the files associated with the command, if applicable
+     * @return true if the command succeeded, false otherwise
      */
-    private void doCommand(Command command, String filename) {
+    private boolean doCommand(Command command, String[] filenames) {
         switch (command) {
             case TRANSMIT:
-                client.transmitFile(filename);
-                break;
+                return client.transmitFiles(filenames);
+            case DEDUP:
+                return client.transmitFilesDeduplicated(filenames);
             case RECEIVE:
-                client.receiveFile(filename);
-                break;
+                return client.receiveFiles(filenames);
+            case SYNC:
+                boolean synced = true;
+                for (String filename : filenames) {
+                    synced &= client.syncFile(filename);
+                }
+                return synced;
+            case PARALLEL:
+                try {
+                    return client.receiveFileInRanges(filenames[1], Integer.parseInt(filenames[0]));
+                } catch (RuntimeException e) {
+                    System.err.println("Usage: parallel <connections> <filename>");
+                    return true;
+                }
             case HELP:
                 System.out.println(menu());
                 break;
@@ -94,19 +117,20 @@ public class CommandLine {
                 System.out.println(menu());
                 break;
         }
+        return true;
     }
 
     /**
-     * Parses a command line input into a command and a potential filename.
+     * Parses a command line input into a command and its filenames.
      * @param command the full command string input by the user
-     * @return a CommandPair containing the parsed command and filename
+     * @return a CommandPair containing the parsed command and filenames
      */
     private CommandPair parseCommand(String command) {
-        String[] parts = command.split(" ");
+        String[] parts = command.trim().split(" +");
         try {
             Command cmd = Command.valueOf(parts[0].toUpperCase().trim());
-            String filename = (parts.length > 1) ? parts[1] : null;
-            return new CommandPair(cmd, filename);
+            String[] filenames = Arrays.copyOfRange(parts, 1, parts.length);
+            return new CommandPair(cmd, filenames);
         } catch (IllegalArgumentException e) {
             System.err.println("Invalid command");
             return new CommandPair(Command.HELP);
@@ -121,27 +145,29 @@ public class CommandLine {
     public static String menu() {
         return """
                 Usage:\s
-                \ttransmit <filename> - (This would upload the file to the server)
-                \treceive <filename> - (This would download the file from the server)
+                \ttransmit <filename>... - (This would upload the files to the server, concurrently over one connection)
+                \treceive <filename>... - (This would download the files from the server, concurrently over one connection)
+                \tsync <filename>... - (This would upload only the parts of the files that differ from the server's copies)
+                \tparallel <connections> <filename> - (This would download a large file in ranges over several connections)
                 \texit - Exits the program
                 \thelp - Prints the Menu message again
                 """;
     }
 
     /**
-     * Inner class to hold a command and an optional filename.
+     * Inner class to hold a command and its filenames.
      */
     private static class CommandPair {
         private final Command command; // The command to be executed
-        private final String filename;// The associated filename, if applicable
+        private final String[] filenames;// The associated filenames, empty if not applicable
 
-        public CommandPair(Command cmd, String filename) {
+        public CommandPair(Command cmd, String[] filenames) {
             this.command = cmd;
-            this.filename = filename;
+            this.filenames = filenames;
         }
         // constructor
         public CommandPair(Command command) {
-            this(command, null);
+            this(command, new String[0]);
         }
     }
 
@@ -151,7 +177,10 @@ public class CommandLine {
      */
     private enum Command {
         TRANSMIT, // Command to transmit (upload) a file to the server
+        DEDUP, // Command to transmit files as chunks, skipping those the server already holds
         RECEIVE, // Command to receive (download) a file from the server
+        SYNC, // Command to upload the changes to files the server already holds
+        PARALLEL, // Command to receive a file in ranges over several connections
         HELP, // Command to display the help message
         EXIT // Command to exit the program
     }
@@ -0,0 +1,190 @@
+package client;
+
+import request.Chunker;
+import request.Delta;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+
+/**
+ * Encodes a new version of a file as a delta against the block signatures of the server's copy.
+ * A window the size of a block slides over the new data one byte at a time, rolling the weak checksum as it goes.
+ * Only when the weak checksum matches a block of the server's copy is the strong hash computed, and a confirmed match
+ * becomes a COPY of that block. The bytes between matches are sent as LITERAL instructions.
+ */
+public class DeltaEncoder {
+	private final int blockSize;// Size of the blocks the server's copy was cut into
+	private final long baseSize;// Size of the server's copy
+	private final byte[][] strong;// Strong hash of every block of the server's copy
+	// Blocks of the server's copy by weak checksum, several blocks may share one
+	private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+	private final MessageDigest digest = Chunker.newDigest();
+
+	private long literalBytes = 0;// Number of bytes sent as literals
+	private long copiedBytes = 0;// Number of bytes copied from the server's copy
+
+
+	/**
+	 * Constructor for an encoder working against the given signatures.
+	 * @param blockSize the size of the blocks of the server's copy
+	 * @param baseSize the size of the server's copy
+	 * @param weak the weak checksum of every block
+	 * @param strong the strong hash of every block
+	 */
+	public DeltaEncoder(int blockSize, long baseSize, int[] weak, byte[][] strong) {
+		this.blockSize = blockSize;
+		this.baseSize = baseSize;
+		this.strong = strong;
+		for (int i = 0; i < weak.length; i++) {
+			blocksByWeak.computeIfAbsent(weak[i], key -> new ArrayList<>()).add(i);
+		}
+	}
+
+
+	/**
+	 * Writes the instructions rebuilding the given data from the server's copy, ending with the SHA-256 of the data.
+	 * @param data the buffer holding the new version of the file
+	 * @param size the number of valid bytes in the buffer
+	 * @param out the stream to write the instructions to
+	 * @throws IOException if writing to the stream fails
+	 */
+	public void encode(byte[] data, int size, DataOutputStream out) throws IOException {
+		int literalStart = 0;
+		int position = 0;
+		boolean rolling = false;
+		int a = 0;
+		int b = 0;
+		int fullBlocks = (int) (baseSize / blockSize);
+
+		while (position + blockSize <= size) {
+			if (!rolling) {
+				int weak = Delta.weak(data, position, blockSize);
+				a = weak & 0xFFFF;
+				b = weak >>> 16;
+				rolling = true;
+			}
+			int match = findBlock((b << 16) | (a & 0xFFFF), data, position, blockSize, fullBlocks);
+			if (match >= 0) {
+				writeLiteral(out, data, literalStart, position);
+				writeCopy(out, match, blockSize);
+				position += blockSize;
+				literalStart = position;
+				rolling = false;
+				continue;
+			}
+			// Slide the window one byte: drop the first byte and take in the next one
+			if (position + blockSize < size) {
+				int removed = data[position] & 0xFF;
+				int added = data[position + blockSize] & 0xFF;
+				a = (a - removed + added) & 0xFFFF;
+				b = (b - blockSize * removed + a) & 0xFFFF;
+			}
+			position++;
+		}
+
+		// The last block of the server's copy is usually short, so it can only match the end of the new data
+		int tailLength = (int) (baseSize - (long) fullBlocks * blockSize);
+		if (tailLength > 0 && size - tailLength >= literalStart) {
+			int tailStart = size - tailLength;
+			if (findBlock(Delta.weak(data, tailStart, tailLength), data, tailStart, tailLength, fullBlocks + 1) == fullBlocks) {
+				writeLiteral(out, data, literalStart, tailStart);
+				writeCopy(out, fullBlocks, tailLength);
+				literalStart = size;
+			}
+		}
+		writeLiteral(out, data, literalStart, size);
+
+		out.writeByte(Delta.END);
+		digest.update(data, 0, size);
+		out.write(digest.digest());
+	}
+
+
+	/**
+	 * Looks for a block of the server's copy with the same contents as a window of the new data.
+	 * @param weak the weak checksum of the window
+	 * @param data the buffer holding the new data
+	 * @param offset the offset of the window
+	 * @param length the length of the window
+	 * @param limit the number of blocks of the server's copy the window may match
+	 * @return the index of the matching block, or -1 if there is none
+	 */
+	private int findBlock(int weak, byte[] data, int offset, int length, int limit) {
+		List<Integer> candidates = blocksByWeak.get(weak);
+		if (candidates == null) {
+			return -1;
+		}
+		byte[] hash = null;
+		for (int index : candidates) {
+			if (index >= limit) {
+				continue;
+			}
+			// The strong hash is only worth computing once the weak checksum matched
+			if (hash == null) {
+				hash = Delta.strong(digest, data, offset, length);
+			}
+			if (MessageDigest.isEqual(hash, strong[index])) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Writes the bytes between two offsets as literal instructions.
+	 * @param out the stream to write to
+	 * @param data the buffer holding the new data
+	 * @param start the offset of the first byte
+	 * @param end the offset just past the last byte
+	 * @throws IOException if writing to the stream fails
+	 */
+	private void writeLiteral(DataOutputStream out, byte[] data, int start, int end) throws IOException {
+		while (start < end) {
+			int length = Math.min(end - start, Delta.MAX_LITERAL);
+			out.writeByte(Delta.LITERAL);
+			out.writeInt(length);
+			out.write(data, start, length);
+			literalBytes += length;
+			start += length;
+		}
+	}
+
+
+	/**
+	 * Writes an instruction copying a block of the server's copy.
+	 * @param out the stream to write to
+	 * @param index the index of the block
+	 * @param length the length of the block
+	 * @throws IOException if writing to the stream fails
+	 */
+	private void writeCopy(DataOutputStream out, int index, int length) throws IOException {
+		out.writeByte(Delta.COPY);
+		out.writeInt(index);
+		copiedBytes += length;
+	}
+
+
+	/**
+	 * Gets the number of bytes sent as literals.
+	 * @return the number of literal bytes
+	 */
+	public long getLiteralBytes() {
+		return literalBytes;
+	}
+
+
+	/**
+	 * Gets the number of bytes copied from the server's copy.
+	 * @return the number of copied bytes
+	 */
+	public long getCopiedBytes() {
+		return copiedBytes;
+	}
+}
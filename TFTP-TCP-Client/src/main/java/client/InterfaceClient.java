@@ -20,6 +20,18 @@ public interface InterfaceClient {
 
 
 
+	/**
+	 * Sends several files to a TFTP server.
+	 * Implementations may run the transfers concurrently.
+	 *
+	 * @param filenames The names or paths of the files to send.
+	 * @return true if every file is transmitted successfully, false otherwise.
+	 */
+	 boolean transmitFiles(String... filenames);
+
+
+
+
 	/**
 	 * Receives a file from a TFTP server.
 	 * The method should handle the specifics of TFTP protocol to ensure reliable transfer,
@@ -30,4 +42,17 @@ public interface InterfaceClient {
 	 * @throws TFTPException If there is an error during the file reception.
 	 */
 	 boolean receiveFile(String filename) throws TFTPException;
+
+
+
+
+	/**
+	 * Receives several files from a TFTP server.
+	 * Implementations may send all the requests before the first response arrives.
+	 *
+	 * @param filenames The names of the files to receive.
+	 * @return true if every file is received successfully, false otherwise.
+	 * @throws TFTPException If there is an error during the file reception.
+	 */
+	 boolean receiveFiles(String... filenames) throws TFTPException;
 }
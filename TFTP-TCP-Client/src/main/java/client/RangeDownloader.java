@@ -0,0 +1,236 @@
+package client;
+
+import Exceptions.TFTPException;
+import connection.MultiplexedConnection;
+import connection.TFTPStream;
+import request.Checksum;
+import request.OPCODE;
+import request.TFTPRequestBuilder;
+import request.TFTPRequestDecoder;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+
+
+/**
+ * Downloads a single file over several TCP connections at once, which makes better use of
+ * links where one stream cannot fill the bandwidth-delay product.
+ * The file is split into byte ranges, each fetched with a ranged RRQ on its own connection and
+ * written straight into its place in a pre-sized output file. A range that fails is retried on
+ * a fresh connection, resuming from the last byte it wrote, without disturbing the other ranges.
+ * Every range is checked against a CRC32C sent by the server, and a range that arrives corrupted is fetched again.
+ */
+public class RangeDownloader {
+	private static final int MAX_ATTEMPTS = 3;// Attempts per range before the download is abandoned
+	private static final int BLOCK_SIZE = TFTPRequestBuilder.MAX_BYTES - TFTPRequestBuilder.HEADER_SIZE;
+
+	private final InetAddress serverAddress;// Address of the TFTP server
+	private final int serverPort;// Port on which the TFTP server is listening
+
+
+	/**
+	 * A byte range of the file and how far its download has got.
+	 */
+	private static class Range {
+		private final long end;// Offset just past the last byte of the range
+		private long position;// Offset of the next byte to fetch
+
+		private Range(long start, long end) {
+			this.position = start;
+			this.end = end;
+		}
+	}
+
+
+	/**
+	 * Constructor for a downloader talking to the given server.
+	 * @param serverAddress the address of the TFTP server
+	 * @param serverPort the port of the TFTP server
+	 */
+	public RangeDownloader(InetAddress serverAddress, int serverPort) {
+		this.serverAddress = serverAddress;
+		this.serverPort = serverPort;
+	}
+
+
+	/**
+	 * Downloads a file by fetching its ranges in parallel.
+	 * @param filename the name of the file to download
+	 * @param connections the number of connections to use
+	 * @return true if every range was downloaded, false otherwise
+	 */
+	public boolean download(String filename, int connections) {
+		long size;
+		try {
+			size = fetchSize(filename);
+		} catch (IOException | TFTPException e) {
+			System.err.println("Error while getting the size of " + filename + ": " + e.getMessage());
+			return false;
+		}
+
+		// Split the file into block aligned ranges, one per connection
+		long blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		long rangeSize = Math.max(1, (blocks + connections - 1) / connections) * BLOCK_SIZE;
+		List<Range> ranges = new ArrayList<>();
+		for (long start = 0; start < size; start += rangeSize) {
+			ranges.add(new Range(start, Math.min(start + rangeSize, size)));
+		}
+		System.out.printf("Downloading %s (%d bytes) in %d ranges%n", filename, size, ranges.size());
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, ranges.size()));
+		try (RandomAccessFile file = new RandomAccessFile(new File(".").getCanonicalPath() + '/' + filename, "rw")) {
+			file.setLength(size);
+			FileChannel channel = file.getChannel();
+
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (Range range : ranges) {
+				results.add(executor.submit(() -> downloadRange(channel, filename, range)));
+			}
+			boolean success = true;
+			for (Future<Boolean> result : results) {
+				success &= result.get();
+			}
+			return success;
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			System.err.println("Error while downloading " + filename + ": " + e.getMessage());
+			return false;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Downloads one range, retrying on a new connection if the current one fails.
+	 * @param channel the channel of the output file
+	 * @param filename the name of the file
+	 * @param range the range to download
+	 * @return true if the range was downloaded, false otherwise
+	 */
+	private boolean downloadRange(FileChannel channel, String filename, Range range) {
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			try {
+				fetchRange(channel, filename, range);
+				return true;
+			} catch (IOException e) {
+				System.err.printf("Range ending at %d failed at %d (attempt %d of %d): %s%n",
+						range.end, range.position, attempt, MAX_ATTEMPTS, e.getMessage());
+			} catch (TFTPException e) {
+				System.err.println(e.getMessage());
+				return false;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Fetches the rest of a range over a new connection, writing each block at its position in the file.
+	 * If the data does not match the server's checksum, the range is rewound so the next attempt fetches it again.
+	 * @param channel the channel of the output file
+	 * @param filename the name of the file
+	 * @param range the range to fetch, whose position is advanced as blocks are written
+	 * @throws IOException if the connection or the file fails
+	 * @throws TFTPException if the server rejects the request
+	 */
+	private void fetchRange(FileChannel channel, String filename, Range range) throws IOException, TFTPException {
+		MultiplexedConnection connection = new MultiplexedConnection(new Socket(serverAddress, serverPort));
+		try {
+			connection.start();
+			TFTPStream stream = connection.openStream();
+			Map<String, String> accepted = requestRange(stream, filename, range.position, range.end, true);
+			CRC32C checksum = new CRC32C();
+			long start = range.position;
+			while (true) {
+				TFTPRequestDecoder.DataPacket dataPacket = TFTPRequestDecoder.decodeData(stream.readPacket(), 0);
+				checksum.update(dataPacket.data, 0, dataPacket.size);
+				ByteBuffer data = ByteBuffer.wrap(dataPacket.data, 0, dataPacket.size);
+				while (data.hasRemaining()) {
+					range.position += channel.write(data, range.position);
+				}
+				if (dataPacket.size < BLOCK_SIZE) {
+					break;
+				}
+			}
+			if (Checksum.CRC32C.equals(accepted.get(Checksum.OPTION))
+					&& TFTPRequestDecoder.decodeChecksum(stream.readPacket(), 0) != checksum.getValue()) {
+				range.position = start;
+				throw new IOException("Checksum mismatch");
+			}
+		} finally {
+			connection.close();
+		}
+		if (range.position < range.end) {
+			throw new IOException("Server ended the range early");
+		}
+	}
+
+
+	/**
+	 * Asks the server for the size of a file with an empty range request.
+	 * @param filename the name of the file
+	 * @return the size of the file in bytes
+	 * @throws IOException if the connection fails
+	 * @throws TFTPException if the server rejects the request
+	 */
+	private long fetchSize(String filename) throws IOException, TFTPException {
+		MultiplexedConnection connection = new MultiplexedConnection(new Socket(serverAddress, serverPort));
+		try {
+			connection.start();
+			TFTPStream stream = connection.openStream();
+			Map<String, String> accepted = requestRange(stream, filename, 0, 0, false);
+			// Drain the terminating empty block
+			stream.readPacket();
+			return Long.parseLong(accepted.get(TFTPRequestBuilder.TSIZE));
+		} finally {
+			connection.close();
+		}
+	}
+
+
+	/**
+	 * Sends a ranged RRQ and reads the server's OACK.
+	 * @param stream the stream to send the request on
+	 * @param filename the name of the file
+	 * @param start the offset of the first byte wanted
+	 * @param end the offset just past the last byte wanted
+	 * @param checksum whether to ask for a CRC32C of the range after its last block
+	 * @return the options accepted by the server, including the file size as tsize
+	 * @throws IOException if the connection fails
+	 * @throws TFTPException if the server answers with an error
+	 */
+	private Map<String, String> requestRange(TFTPStream stream, String filename, long start, long end, boolean checksum)
+			throws IOException, TFTPException {
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put("range", start + "-" + end);
+		if (checksum) {
+			options.put(Checksum.OPTION, Checksum.CRC32C);
+		}
+		byte[] rrqPacket = new byte[512];
+		int rrqLength = TFTPRequestBuilder.createPackRRQ(rrqPacket, filename, options);
+		stream.writePacket(rrqPacket, rrqLength);
+		stream.flush();
+
+		byte[] packet = stream.readPacket();
+		OPCODE opcode = TFTPRequestDecoder.decodeOp(packet);
+		if (opcode == OPCODE.ERROR) {
+			TFTPRequestDecoder.ErrorPacket errorPacket = TFTPRequestDecoder.decodeError(packet, 0);
+			throw new TFTPException(String.format("Error (%d): %s", errorPacket.errorCode, errorPacket.errorMessage));
+		}
+		return TFTPRequestDecoder.decodeOACK(packet, 0);
+	}
+}
@@ -1,70 +1,105 @@
 package client;
 
 import Exceptions.TFTPException;
+import connection.MultiplexedConnection;
+import connection.TFTPStream;
+import request.Checksum;
+import request.Chunker;
+import request.Compression;
+import request.DataBlockInputStream;
+import request.DataBlockOutputStream;
 import request.DataPacketsBuilder;
+import request.Delta;
 import request.OPCODE;
 import request.TFTPRequestBuilder;
 import request.TFTPRequestDecoder;
-import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 
 
 /**
  * A TFTP client implementation that provides functionality for uploading and downloading files
  * using the Trivial File Transfer Protocol (TFTP).
+ * All requests share a single multiplexed connection to the server: every request gets its own stream,
+ * so several uploads and downloads can run at the same time without blocking each other.
  */
 public class TFTPClient implements InterfaceClient {
-	// Client socket for sending and receiving data
-	private final Socket socket;
-	private InputStream in;// Input stream to read data from the server
-	private OutputStream out;// Output stream to send data to the server
-	private DataPacketsBuilder dataPacketsBuilder;// Builder for creating and managing data packets
+	// Size of the buffers used when compressing or decompressing a transfer
+	private static final int IO_BUFFER_BYTES = 65536;
+	// Connection to the server, shared by every request
+	private final MultiplexedConnection connection;
+	private final InetAddress serverAddress;// Address of the server, for transfers that need extra connections
+	private final int serverPort;// Port of the server
+	// Workers running the transfers of a multi-file command concurrently
+	private final ExecutorService transferExecutor = Executors.newCachedThreadPool();
 
 
 
 	/**
 	 * Constructor that initializes the client with a given socket.
-	 * Sets up input and output streams for data transmission.
+	 * Sets up the multiplexed connection used for data transmission.
 	 * @param socket the socket connecting to the server
 	 * @throws TFTPException if an I/O error occurs setting up the streams
 	 */
 	public TFTPClient(Socket socket) throws TFTPException {
-		this.socket = socket;
-		dataPacketsBuilder = new DataPacketsBuilder();
+		serverAddress = socket.getInetAddress();
+		serverPort = socket.getPort();
 		try {
-			in = socket.getInputStream();
-			out = socket.getOutputStream();
+			connection = new MultiplexedConnection(socket);
 		} catch (IOException e) {
 			throw new TFTPException("Error while creating input/output streams for the client");
 		}
+		connection.start();
 	}
 
 
 	/**
-	 * Re-initializes the input and output streams.
+	 * Checks whether the connection to the server can still be used.
+	 * The server closes connections that stay idle for too long, after which a new client is needed.
+	 * @return true if the connection is usable, false otherwise
 	 */
-	public void resetStreams(){
-		try {
-			in = socket.getInputStream();
-			out = socket.getOutputStream();
-		} catch (IOException e) {
-			System.err.println("Error while creating input/output streams for the client");
-		}
+	public boolean isConnected() {
+		return !connection.isClosed();
+	}
+
+
+	/**
+	 * Closes the connection to the server.
+	 */
+	public void close() {
+		transferExecutor.shutdownNow();
+		connection.close();
 	}
 
 
 	/**
 	 * Transmits a file to the TFTP server.
+	 * The file is followed by its CRC32C, and only counts as transmitted once the server has confirmed
+	 * that what it received matches.
 	 * @param filename the name of the file to be transmitted
 	 * @return true if the file was transmitted successfully, false otherwise
 	 */
 	@Override
 	public boolean transmitFile(String filename) {
-		dataPacketsBuilder.reset();
+		DataPacketsBuilder dataPacketsBuilder;
 
 		try {
 			// Attempt to load the file into the data packets builder
@@ -74,36 +109,337 @@ public class TFTPClient implements InterfaceClient {
 				System.err.println(e.getMessage());
 				return false;
 			}
-			// Construct and send the Write Request (WRQ) packet
+			// Only deflate files that do not look compressed already
+			boolean compress = Compression.isCompressible(dataPacketsBuilder.getData(), dataPacketsBuilder.getSize());
+			Map<String, String> options = new LinkedHashMap<>();
+			if (compress) {
+				options.put(Compression.OPTION, Compression.DEFLATE);
+			}
+			options.put(Checksum.OPTION, Checksum.CRC32C);
+			// The server refuses the upload up front if it has no room for the file
+			options.put(TFTPRequestBuilder.TSIZE, String.valueOf(dataPacketsBuilder.getSize()));
+			CRC32C checksum = new CRC32C();
+
+			// Construct and send the Write Request (WRQ) packet on a new stream
+			TFTPStream stream = connection.openStream();
 			byte[] wrqPacket = new byte[512];
-			TFTPRequestBuilder.createPackWRQ(wrqPacket, filename);
-			out.write(wrqPacket);
-			int numPackets = dataPacketsBuilder.getNumPackets(TFTPRequestBuilder.MAX_BYTES - TFTPRequestBuilder.HEADER_SIZE);
+			int wrqLength = TFTPRequestBuilder.createPackWRQ(wrqPacket, filename, options);
+			stream.writePacket(wrqPacket, wrqLength);
+
+			if (compress) {
+				int block = transmitCompressed(stream, dataPacketsBuilder);
+				checksum.update(dataPacketsBuilder.getData(), 0, dataPacketsBuilder.getSize());
+				return confirmChecksum(stream, filename, block, checksum);
+			}
+
+			// A file that fills its last block exactly is terminated by an extra empty block
+			int numPackets = dataPacketsBuilder.getSize() / (TFTPRequestBuilder.MAX_BYTES - TFTPRequestBuilder.HEADER_SIZE) + 1;
 			byte[] data = dataPacketsBuilder.getData();
 
 			for (int i = 1; i <= numPackets; i++) {
 				byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
 				// Get the current packet (leaving room for the opcode and block number - 4 bytes total)
 				int start = (i - 1) * (TFTPRequestBuilder.MAX_BYTES - 4);
-				int end = Math.min(start + TFTPRequestBuilder.MAX_BYTES - 4, data.length);
+				int end = Math.min(start + TFTPRequestBuilder.MAX_BYTES - 4, dataPacketsBuilder.getSize());
 				byte[] dataPacket = new byte[end - start];
 				System.arraycopy(data, start, dataPacket, 0, end - start);
 				// Send the packet to the server.
-				TFTPRequestBuilder.createPackData(buffer, i, dataPacket);
+				int length = TFTPRequestBuilder.createPackData(buffer, i, dataPacket);
 				System.out.println("Sending packet " + i + " of " + numPackets);
 
-				out.write(buffer);
+				stream.writePacket(buffer, length);
+				checksum.update(data, start, end - start);
+
+			}
+			return confirmChecksum(stream, filename, (numPackets + 1) & 0xFFFF, checksum);
+
+		} catch (IOException e) {
+			System.err.println("Connection to the server lost: " + e.getMessage());
+			return false;
+		}
+	}
+
+
+	/**
+	 * Sends a file as a deflate stream split into DATA blocks.
+	 * @param stream the stream the WRQ was sent on
+	 * @param dataPacketsBuilder the builder holding the file's contents
+	 * @return the number of the block following the transfer
+	 * @throws IOException if the connection to the server fails
+	 */
+	private int transmitCompressed(TFTPStream stream, DataPacketsBuilder dataPacketsBuilder) throws IOException {
+		DataBlockOutputStream blocks = new DataBlockOutputStream(stream);
+		Deflater deflater = new Deflater(Compression.LEVEL);
+		try (DeflaterOutputStream out = new DeflaterOutputStream(blocks, deflater, IO_BUFFER_BYTES)) {
+			out.write(dataPacketsBuilder.getData(), 0, dataPacketsBuilder.getSize());
+		} finally {
+			deflater.end();
+		}
+		System.out.printf("Sent %s deflated from %d to %d bytes%n",
+				dataPacketsBuilder.getFilename(), dataPacketsBuilder.getSize(), blocks.getBytesWritten());
+		return blocks.getBlockNumber();
+	}
+
+
+	/**
+	 * Sends the CRC32C of an upload after its last block and waits for the server to confirm it.
+	 * @param stream the stream the WRQ was sent on
+	 * @param filename the name of the file
+	 * @param block the block number of the checksum packet
+	 * @param checksum the running checksum of the data sent
+	 * @return true if the server received the file intact, false otherwise
+	 * @throws IOException if the connection to the server fails
+	 */
+	private boolean confirmChecksum(TFTPStream stream, String filename, int block, CRC32C checksum) throws IOException {
+		try {
+			byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+			int length = TFTPRequestBuilder.createPackChecksum(buffer, block, checksum.getValue());
+			stream.writePacket(buffer, length);
+			stream.flush();
+
+			if (!readConfirmation(stream)) {
+				return false;
+			}
+			System.out.printf("Server verified %s with CRC32C %08x%n", filename, checksum.getValue());
+			return true;
+		} finally {
+			connection.closeStream(stream);
+		}
+	}
+
+
+	/**
+	 * Transmits a file in content-defined chunks, sending only the chunks the server does not hold yet.
+	 * The WRQ is followed by the hash and length of every chunk, the server answers with a bitmap of the chunks
+	 * it is missing, and only those are sent, back to back, deflated when the file is compressible.
+	 * No CRC32C follows the file: the server checks every chunk it receives against its SHA-256, and the file
+	 * is stored as the list of those hashes, so the hashes already cover the whole file end to end.
+	 * @param filename the name of the file to be transmitted
+	 * @return true if the server saved the file, false otherwise
+	 */
+	public boolean transmitFileDeduplicated(String filename) {
+		DataPacketsBuilder dataPacketsBuilder;
+		try {
+			dataPacketsBuilder = DataPacketsBuilder.fromFile(filename);
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+		try {
+			boolean compress = Compression.isCompressible(dataPacketsBuilder.getData(), dataPacketsBuilder.getSize());
+			return transmitDeduplicated(dataPacketsBuilder, compress);
+		} catch (IOException e) {
+			System.err.println("Connection to the server lost: " + e.getMessage());
+			return false;
+		}
+	}
+
 
+	/**
+	 * Sends a deduplicated upload on a new stream.
+	 * @param dataPacketsBuilder the builder holding the file's contents
+	 * @param compress whether to deflate the chunks sent
+	 * @return true if the server saved the file, false otherwise
+	 * @throws IOException if the connection to the server fails
+	 */
+	private boolean transmitDeduplicated(DataPacketsBuilder dataPacketsBuilder, boolean compress) throws IOException {
+		String filename = dataPacketsBuilder.getFilename();
+		byte[] data = dataPacketsBuilder.getData();
+		List<Chunker.Chunk> chunks = Chunker.split(data, dataPacketsBuilder.getSize());
+
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put(Chunker.OPTION, Chunker.SHA256);
+		if (compress) {
+			options.put(Compression.OPTION, Compression.DEFLATE);
+		}
+		// The server checks the number of chunks listed against the size of the file
+		options.put(TFTPRequestBuilder.TSIZE, String.valueOf(dataPacketsBuilder.getSize()));
+		TFTPStream stream = connection.openStream();
+		try {
+			byte[] wrqPacket = new byte[512];
+			int wrqLength = TFTPRequestBuilder.createPackWRQ(wrqPacket, filename, options);
+			stream.writePacket(wrqPacket, wrqLength);
+
+			// List the chunks: a count, then the hash and length of every chunk
+			try (DataOutputStream list = new DataOutputStream(new DataBlockOutputStream(stream))) {
+				list.writeInt(chunks.size());
+				for (Chunker.Chunk chunk : chunks) {
+					list.write(chunk.hash);
+					list.writeInt(chunk.length);
+				}
 			}
+			stream.flush();
 
+			// The server answers with one bit per chunk, set for the chunks it is missing,
+			// or with an ERROR if it has no room for them
+			byte[] missing = new byte[(chunks.size() + 7) / 8];
+			DataBlockInputStream bitmap = new DataBlockInputStream(stream);
+			try {
+				new DataInputStream(bitmap).readFully(missing);
+				while (bitmap.read() != -1) {
+					// consume the terminating block
+				}
+			} catch (IOException e) {
+				System.err.printf("%n%s%n", e.getMessage());
+				return false;
+			}
+
+			// Send only the missing chunks
+			DataBlockOutputStream blocks = new DataBlockOutputStream(stream);
+			Deflater deflater = new Deflater(Compression.LEVEL);
+			int newChunks = 0;
+			try (OutputStream bodies = compress ? new DeflaterOutputStream(blocks, deflater, IO_BUFFER_BYTES) : blocks) {
+				for (int i = 0; i < chunks.size(); i++) {
+					if ((missing[i / 8] & (1 << (i % 8))) != 0) {
+						Chunker.Chunk chunk = chunks.get(i);
+						bodies.write(data, (int) chunk.offset, chunk.length);
+						newChunks++;
+					}
+				}
+			} finally {
+				deflater.end();
+			}
+			stream.flush();
+			System.out.printf("Sent %s: %d of %d chunks were new, %d of %d bytes sent%n",
+					filename, newChunks, chunks.size(), blocks.getBytesWritten(), dataPacketsBuilder.getSize());
+			return readConfirmation(stream);
+		} finally {
+			connection.closeStream(stream);
+		}
+	}
+
+
+	/**
+	 * Uploads a new version of a file the server already holds, sending only what changed.
+	 * The server accepts the WRQ with an OACK and sends the block size and size of its copy, then a weak checksum
+	 * and a strong hash per block. The client sends back COPY instructions for the blocks it still has and LITERAL bytes for the rest,
+	 * deflated when the file is compressible, and the server rebuilds the file and checks its SHA-256 before saving it.
+	 * A server without a copy sends no signatures, so the whole file goes as literals.
+	 * @param filename the name of the file to upload
+	 * @return true if the server saved the new version, false otherwise
+	 */
+	public boolean syncFile(String filename) {
+		DataPacketsBuilder dataPacketsBuilder;
+		try {
+			dataPacketsBuilder = DataPacketsBuilder.fromFile(filename);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 			return false;
 		}
+		boolean compress = Compression.isCompressible(dataPacketsBuilder.getData(), dataPacketsBuilder.getSize());
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put(Delta.OPTION, Delta.RSYNC);
+		if (compress) {
+			options.put(Compression.OPTION, Compression.DEFLATE);
+		}
+		options.put(TFTPRequestBuilder.TSIZE, String.valueOf(dataPacketsBuilder.getSize()));
+
+		TFTPStream stream;
+		try {
+			stream = connection.openStream();
+		} catch (IOException e) {
+			System.err.println("Connection to the server lost: " + e.getMessage());
+			return false;
+		}
+		try {
+			byte[] wrqPacket = new byte[512];
+			int wrqLength = TFTPRequestBuilder.createPackWRQ(wrqPacket, filename, options);
+			stream.writePacket(wrqPacket, wrqLength);
+			stream.flush();
+
+			// The server accepts the delta with an OACK, then sends the signatures of its copy
+			if (!readConfirmation(stream)) {
+				return false;
+			}
+			DataBlockInputStream signatureBlocks = new DataBlockInputStream(stream);
+			DataInputStream signatures = new DataInputStream(signatureBlocks);
+			int blockSize = signatures.readInt();
+			long baseSize = signatures.readLong();
+			int count = signatures.readInt();
+			int[] weak = new int[count];
+			byte[][] strong = new byte[count][Delta.STRONG_BYTES];
+			for (int i = 0; i < count; i++) {
+				weak[i] = signatures.readInt();
+				signatures.readFully(strong[i]);
+			}
+			while (signatureBlocks.read() != -1) {
+				// consume the terminating block
+			}
+
+			// Send the instructions rebuilding the new version from the server's copy
+			DeltaEncoder encoder = new DeltaEncoder(blockSize, baseSize, weak, strong);
+			DataBlockOutputStream blocks = new DataBlockOutputStream(stream);
+			Deflater deflater = new Deflater(Compression.LEVEL);
+			try (DataOutputStream out = new DataOutputStream(compress
+					? new DeflaterOutputStream(blocks, deflater, IO_BUFFER_BYTES) : blocks)) {
+				encoder.encode(dataPacketsBuilder.getData(), dataPacketsBuilder.getSize(), out);
+			} finally {
+				deflater.end();
+			}
+			stream.flush();
+			System.out.printf("Sent %s as a delta: %d bytes copied, %d literal, %d bytes sent%n",
+					filename, encoder.getCopiedBytes(), encoder.getLiteralBytes(), blocks.getBytesWritten());
+			return readConfirmation(stream);
+		} catch (IOException e) {
+			System.err.println("Connection to the server lost: " + e.getMessage());
+			return false;
+		} finally {
+			connection.closeStream(stream);
+		}
+	}
+
+
+	/**
+	 * Waits for the server to confirm that an upload was saved.
+	 * @param stream the stream the WRQ was sent on
+	 * @return true if the server acknowledged the upload, false if it reported an error
+	 * @throws IOException if the connection to the server fails
+	 */
+	private boolean readConfirmation(TFTPStream stream) throws IOException {
+		byte[] packet = stream.readPacket();
+		try {
+			if (TFTPRequestDecoder.decodeOp(packet) == OPCODE.ERROR) {
+				TFTPRequestDecoder.ErrorPacket errorPacket = TFTPRequestDecoder.decodeError(packet, 0);
+				System.err.printf("%nError (%d): %s%n", errorPacket.errorCode, errorPacket.errorMessage);
+				return false;
+			}
+		} catch (TFTPException e) {
+			throw new IOException("Error while unpacking the server's confirmation");
+		}
 		return true;
 	}
 
 
+	/**
+	 * Transmits several files to the TFTP server at the same time, each on its own stream.
+	 * @param filenames the names of the files to be transmitted
+	 * @return true if every file was transmitted successfully, false otherwise
+	 */
+	@Override
+	public boolean transmitFiles(String... filenames) {
+		List<Callable<Boolean>> transfers = new ArrayList<>();
+		for (String filename : filenames) {
+			transfers.add(() -> transmitFile(filename));
+		}
+		return runAll(transfers);
+	}
+
+
+	/**
+	 * Transmits several files to the TFTP server concurrently over the same connection, each as a
+	 * deduplicated upload.
+	 * @param filenames the names of the files to be transmitted
+	 * @return true if every file was transmitted successfully, false otherwise
+	 */
+	public boolean transmitFilesDeduplicated(String... filenames) {
+		List<Callable<Boolean>> transfers = new ArrayList<>();
+		for (String filename : filenames) {
+			transfers.add(() -> transmitFileDeduplicated(filename));
+		}
+		return runAll(transfers);
+	}
+
+
 	/**
 	 * Receives a file from the TFTP server.
 	 * @param filename the name of the file to be received
@@ -111,34 +447,175 @@ public class TFTPClient implements InterfaceClient {
 	 */
 	@Override
 	public boolean receiveFile(String filename) {
+		return receiveFiles(filename);
+	}
 
-		dataPacketsBuilder.reset();
-		dataPacketsBuilder.setFilename(filename);
 
-		System.out.println("Getting file: " + filename);
+	/**
+	 * Receives several files from the TFTP server over the same connection.
+	 * The Read Requests (RRQ) are sent up front, each on its own stream, and the responses are
+	 * read concurrently, so a large file does not hold up the small ones behind it. Past the number of streams
+	 * the server lets a connection have open, the remaining requests are sent as earlier streams finish.
+	 * Every request offers deflate compression, which the server accepts for compressible files,
+	 * and asks for a CRC32C of the file to be sent after its last block, and for the size of the file.
+	 * @param filenames the names of the files to be received
+	 * @return true if every file was received successfully, false otherwise
+	 */
+	@Override
+	public boolean receiveFiles(String... filenames) {
+		// Pipeline the RRQ packets.
+		List<TFTPStream> streams = new ArrayList<>();
+		try {
+			for (int i = 0; i < Math.min(filenames.length, MultiplexedConnection.MAX_STREAMS); i++) {
+				streams.add(sendRRQ(filenames[i]));
+			}
+			connection.flush();
+		} catch (IOException e) {
+			System.err.println("Error while sending RRQ packet");
+			return false;
+		}
 
-		// Send the RRQ packet.
+		List<Callable<Boolean>> transfers = new ArrayList<>();
+		for (int i = 0; i < filenames.length; i++) {
+			String filename = filenames[i];
+			TFTPStream pipelined = i < streams.size() ? streams.get(i) : null;
+			transfers.add(() -> {
+				TFTPStream stream = pipelined;
+				try {
+					if (stream == null) {
+						stream = sendRRQ(filename);
+						stream.flush();
+					}
+					return readFile(stream, filename);
+				} catch (IOException e) {
+					System.err.println("Connection to the server lost: " + e.getMessage());
+					return false;
+				} finally {
+					if (stream != null) {
+						connection.closeStream(stream);
+					}
+				}
+			});
+		}
+		return runAll(transfers);
+	}
+
+
+	/**
+	 * Sends the Read Request (RRQ) of a file on a new stream, without flushing it.
+	 * @param filename the name of the file
+	 * @return the stream the request was sent on
+	 * @throws IOException if the connection fails
+	 */
+	private TFTPStream sendRRQ(String filename) throws IOException {
+		TFTPStream stream = connection.openStream();
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put(Compression.OPTION, Compression.DEFLATE);
+		options.put(Checksum.OPTION, Checksum.CRC32C);
+		options.put(TFTPRequestBuilder.TSIZE, "0");
 		byte[] rrqPacket = new byte[512];
-		TFTPRequestBuilder.createPackRRQ(rrqPacket, filename);
+		int rrqLength = TFTPRequestBuilder.createPackRRQ(rrqPacket, filename, options);
 		try {
-			out.write(rrqPacket);
+			stream.writePacket(rrqPacket, rrqLength);
 		} catch (IOException e) {
-			System.err.println("Error while sending RRQ packet");
+			connection.closeStream(stream);
+			throw e;
 		}
-		byte[] packet = new byte[TFTPRequestBuilder.MAX_BYTES];
+		return stream;
+	}
+
+
+	/**
+	 * Receives a large file from the TFTP server by splitting it into byte ranges fetched over parallel connections.
+	 * @param filename the name of the file to be received
+	 * @param connections the number of connections to open
+	 * @return true if the whole file was received successfully, false otherwise
+	 */
+	public boolean receiveFileInRanges(String filename, int connections) {
+		return new RangeDownloader(serverAddress, serverPort).download(filename, connections);
+	}
+
+
+	/**
+	 * Runs transfers concurrently and waits for all of them to finish.
+	 * @param transfers the transfers to run
+	 * @return true if every transfer succeeded, false otherwise
+	 */
+	private boolean runAll(List<Callable<Boolean>> transfers) {
+		boolean success = true;
 		try {
-			int read = in.read(packet);
+			for (Future<Boolean> result : transferExecutor.invokeAll(transfers)) {
+				success &= result.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			System.err.println("Transfer interrupted: " + e.getMessage());
+			return false;
+		}
+		return success;
+	}
+
+
+	/**
+	 * Reads a file sent as a deflate stream split into DATA blocks, and saves it.
+	 * @param stream the stream the RRQ was sent on
+	 * @param dataPacketsBuilder the builder to collect the file's contents in
+	 * @param checksum the running checksum of the contents, or null if the server will not send one
+	 * @return true if the file was received successfully, false otherwise
+	 * @throws IOException if the connection to the server fails
+	 */
+	private boolean readCompressedFile(TFTPStream stream, DataPacketsBuilder dataPacketsBuilder, CRC32C checksum)
+			throws IOException {
+		DataBlockInputStream blocks = new DataBlockInputStream(stream);
+		byte[] buffer = new byte[IO_BUFFER_BYTES];
+		try (InflaterInputStream in = new InflaterInputStream(blocks)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				dataPacketsBuilder.addData(buffer, 0, read);
+				if (checksum != null) {
+					checksum.update(buffer, 0, read);
+				}
+			}
+			// The inflater stops at the end of the deflate stream, consume the terminating block too
+			while (blocks.read(buffer) != -1) {
+				// discard
+			}
+		}
+		System.out.printf("Received %s deflated from %d to %d bytes%n",
+				dataPacketsBuilder.getFilename(), dataPacketsBuilder.getSize(), blocks.getBytesRead());
+		if (checksum != null && !verifyChecksum(stream, dataPacketsBuilder.getFilename(), checksum)) {
+			return false;
+		}
+		try {
+			dataPacketsBuilder.save();
 		} catch (IOException e) {
-			System.err.println("Error while reading packet");
+			System.err.println("Error while saving file");
+			return false;
 		}
+		return true;
+	}
+
+
+	/**
+	 * Reads the server's response to a single RRQ and saves the file.
+	 * @param stream the stream the RRQ was sent on
+	 * @param filename the name of the file being received
+	 * @return true if the file was received successfully, false if the server reported an error
+	 * @throws IOException if the connection to the server fails
+	 */
+	private boolean readFile(TFTPStream stream, String filename) throws IOException {
+		DataPacketsBuilder dataPacketsBuilder = new DataPacketsBuilder();
+		dataPacketsBuilder.setFilename(filename);
+
+		System.out.println("Getting file: " + filename);
+
+		byte[] packet = stream.readPacket();
 
 		// Decode the operation code from the received packet
 		OPCODE opcode = null;
 		try {
 			opcode = TFTPRequestDecoder.decodeOp(packet);
 		} catch (TFTPException e) {
-			System.err.println("Error while unpacking opcode");
-			return false;
+			throw new IOException("Error while unpacking opcode");
 		}
 
 		// Handle error packets immediately
@@ -155,6 +632,32 @@ public class TFTPClient implements InterfaceClient {
 			return false;
 		}
 
+		// The server tells whether it accepted compression and the checksum, and the size of the file, in an OACK
+		CRC32C checksum = null;
+		long numPackets = -1;
+		if (opcode == OPCODE.OACK) {
+			Map<String, String> accepted;
+			try {
+				accepted = TFTPRequestDecoder.decodeOACK(packet, 0);
+			} catch (TFTPException e) {
+				throw new IOException("Error while unpacking OACK packet");
+			}
+			if (Checksum.CRC32C.equals(accepted.get(Checksum.OPTION))) {
+				checksum = new CRC32C();
+			}
+			long transferSize = TFTPRequestDecoder.decodeTransferSize(accepted);
+			if (transferSize >= 0) {
+				// Size the buffer for the whole file up front, and count the blocks still to come
+				dataPacketsBuilder.expectSize(transferSize);
+				numPackets = transferSize / (TFTPRequestBuilder.MAX_BYTES - TFTPRequestBuilder.HEADER_SIZE) + 1;
+				System.out.printf("Receiving %s: %d bytes%n", filename, transferSize);
+			}
+			if (Compression.DEFLATE.equals(accepted.get(Compression.OPTION))) {
+				return readCompressedFile(stream, dataPacketsBuilder, checksum);
+			}
+			packet = stream.readPacket();
+		}
+
 		// Receive data packets and write to the builder
 		while (true) {
 			TFTPRequestDecoder.DataPacket dataPacket = null;
@@ -162,28 +665,36 @@ public class TFTPClient implements InterfaceClient {
 				dataPacket = TFTPRequestDecoder.decodeData(packet, 0);
 
 			} catch (TFTPException e) {
-				System.err.println("Error while unpacking data packet");
-				return false;
+				throw new IOException("Error while unpacking data packet");
 			}
 			dataPacketsBuilder.addDataPacket(dataPacket);
-			System.out.printf(
-					"Received DATA block %d of size %d bytes\n",
-					dataPacket.blockNumber,
-					dataPacket.size
-			);
+			if (checksum != null) {
+				checksum.update(dataPacket.data, 0, dataPacket.size);
+			}
+			if (numPackets > 0) {
+				System.out.printf(
+						"Received DATA block %d of %d, size %d bytes\n",
+						dataPacket.blockNumber,
+						numPackets,
+						dataPacket.size
+				);
+			} else {
+				System.out.printf(
+						"Received DATA block %d of size %d bytes\n",
+						dataPacket.blockNumber,
+						dataPacket.size
+				);
+			}
 			// Check if the last packet is received (i.e., less than full packet size)
 			if (dataPacket.size < TFTPRequestBuilder.MAX_BYTES - TFTPRequestBuilder.HEADER_SIZE) {
 				break;
 			}
-			try {
-				packet = new byte[TFTPRequestBuilder.MAX_BYTES];
-				int read = in.read(packet);
-			} catch (IOException e) {
-				System.err.println("Error while reading packet");
-				return false;
-			}
+			packet = stream.readPacket();
 
 		}
+		if (checksum != null && !verifyChecksum(stream, filename, checksum)) {
+			return false;
+		}
 		// Save the received data to a file
 		try {
 			dataPacketsBuilder.save();
@@ -195,4 +706,28 @@ public class TFTPClient implements InterfaceClient {
 		return true;
 	}
 
+
+	/**
+	 * Reads the CRC32C the server sends after the last block and compares it with the one computed on arrival.
+	 * @param stream the stream the RRQ was sent on
+	 * @param filename the name of the file being received
+	 * @param checksum the running checksum of the data received
+	 * @return true if the digests match, false if the file was corrupted on the way
+	 * @throws IOException if the connection to the server fails
+	 */
+	private boolean verifyChecksum(TFTPStream stream, String filename, CRC32C checksum) throws IOException {
+		long expected;
+		try {
+			expected = TFTPRequestDecoder.decodeChecksum(stream.readPacket(), 0);
+		} catch (TFTPException e) {
+			throw new IOException("Error while unpacking checksum packet");
+		}
+		if (expected != checksum.getValue()) {
+			System.err.printf("Checksum mismatch for %s - expected %08x, computed %08x%n",
+					filename, expected, checksum.getValue());
+			return false;
+		}
+		System.out.printf("Verified %s with CRC32C %08x%n", filename, expected);
+		return true;
+	}
 }
@@ -0,0 +1,269 @@
+package connection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+
+/**
+ * Carries many independent TFTP streams over a single TCP connection to the server.
+ * <p>
+ * Every frame on the wire is laid out as {@code length (2) | type (1) | stream id (4) | payload}.
+ * PACKET frames carry one TFTP packet for a stream, and WINDOW_UPDATE frames return flow-control
+ * credit to the sender of a stream, so a large transfer on one stream cannot starve the others.
+ * <p>
+ * The server requires the ids of new streams to increase, so a stream only gets its id when its first packet is
+ * written, and at most {@link #MAX_STREAMS} streams may be open at once.
+ */
+public class MultiplexedConnection {
+
+	static final int TYPE_PACKET = 0;
+	static final int TYPE_WINDOW_UPDATE = 1;
+
+	/**
+	 * Number of payload bytes a stream may have in flight before the receiver grants more credit.
+	 */
+	static final int INITIAL_WINDOW = 65536;
+
+	/**
+	 * Number of streams the server lets a connection have open at once.
+	 */
+	public static final int MAX_STREAMS = 64;
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	// Fair lock so that streams writing at the same time interleave frame by frame
+	private final ReentrantLock writeLock = new ReentrantLock(true);
+	private final Map<Integer, TFTPStream> streams = new ConcurrentHashMap<>();
+	private int nextStreamId = 1;// Client-initiated streams use odd ids, handed out under the write lock
+	private final Semaphore openStreams = new Semaphore(MAX_STREAMS);
+	private volatile boolean closed;
+
+
+	/**
+	 * Listener notified when the peer opens a new stream.
+	 */
+	public interface StreamListener {
+
+		/**
+		 * Called from the reading thread when the first frame of a new stream arrives.
+		 *
+		 * @param stream the newly opened stream
+		 */
+		void streamOpened(TFTPStream stream);
+	}
+
+
+	/**
+	 * Constructor that wraps an already connected socket.
+	 *
+	 * @param socket the connected socket
+	 * @throws IOException if the socket streams cannot be opened
+	 */
+	public MultiplexedConnection(Socket socket) throws IOException {
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+
+	/**
+	 * Starts a background thread that reads frames from the server and dispatches them to their streams.
+	 * Streams can only be opened by the client, so frames for unknown streams are ignored.
+	 */
+	public void start() {
+		Thread reader = new Thread(() -> {
+			try {
+				readFrames(stream -> streams.remove(stream.getId()), 0);
+			} catch (IOException e) {
+				closed = true;
+			}
+		}, "tftp-connection-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+
+	/**
+	 * Opens a new stream to the server, waiting while {@link #MAX_STREAMS} streams are open.
+	 * The stream is only given its id when its first packet is written.
+	 *
+	 * @return the new stream
+	 * @throws IOException if the connection is already closed
+	 */
+	public TFTPStream openStream() throws IOException {
+		if (closed) {
+			throw new IOException("Connection closed");
+		}
+		try {
+			openStreams.acquire();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for a stream");
+		}
+		return new TFTPStream(this, 0);
+	}
+
+
+	/**
+	 * Writes the first packet of a stream opened by the client, giving the stream the next id at the same time, so
+	 * the server sees new streams in increasing id order even when several threads open them at once.
+	 *
+	 * @param stream the stream
+	 * @param buf    the buffer holding the packet
+	 * @param length the length of the packet
+	 * @return the id of the stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	int writeFirstPacket(TFTPStream stream, byte[] buf, int length) throws IOException {
+		writeLock.lock();
+		try {
+			int id = nextStreamId;
+			nextStreamId += 2;
+			streams.put(id, stream);
+			writeFrame(TYPE_PACKET, id, buf, length);
+			return id;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Reads frames and dispatches them to their streams until the connection closes or goes idle.
+	 * A connection only counts as idle when no read arrives within the timeout and no stream is active.
+	 *
+	 * @param listener      the listener notified of streams opened by the peer
+	 * @param idleTimeoutMs the idle timeout in milliseconds
+	 * @throws SocketTimeoutException if the connection was idle for too long
+	 * @throws EOFException           if the peer closed the connection
+	 * @throws IOException            if an I/O error occurs
+	 */
+	public void readFrames(StreamListener listener, int idleTimeoutMs) throws IOException {
+		socket.setSoTimeout(idleTimeoutMs);
+		try {
+			while (true) {
+				int first;
+				try {
+					first = in.read();
+				} catch (SocketTimeoutException e) {
+					if (streams.isEmpty()) {
+						throw e;
+					}
+					continue;
+				}
+				if (first == -1) {
+					throw new EOFException("Connection closed");
+				}
+				int length = (first << 8) | in.readUnsignedByte();
+				int type = in.readUnsignedByte();
+				int streamId = in.readInt();
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+
+				TFTPStream stream = streams.get(streamId);
+				if (type == TYPE_PACKET) {
+					if (stream == null) {
+						stream = new TFTPStream(this, streamId);
+						streams.put(streamId, stream);
+						listener.streamOpened(stream);
+					}
+					stream.deliver(payload);
+				} else if (type == TYPE_WINDOW_UPDATE && stream != null) {
+					stream.grantWindow(new DataInputStream(new ByteArrayInputStream(payload)).readInt());
+				}
+			}
+		} catch (IOException e) {
+			for (TFTPStream stream : streams.values()) {
+				stream.fail(e);
+			}
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Writes a single frame. Frames from different streams are interleaved but never split.
+	 *
+	 * @param type     the frame type
+	 * @param streamId the stream the frame belongs to
+	 * @param buf      the buffer holding the payload
+	 * @param length   the length of the payload
+	 * @throws IOException if an I/O error occurs
+	 */
+	void writeFrame(int type, int streamId, byte[] buf, int length) throws IOException {
+		writeLock.lock();
+		try {
+			out.writeShort(length);
+			out.writeByte(type);
+			out.writeInt(streamId);
+			out.write(buf, 0, length);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Flushes any queued frames to the peer.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void flush() throws IOException {
+		writeLock.lock();
+		try {
+			out.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Removes a stream once its request has been fully served.
+	 *
+	 * @param stream the finished stream
+	 */
+	public void closeStream(TFTPStream stream) {
+		streams.remove(stream.getId());
+		if (stream.close()) {
+			openStreams.release();
+		}
+	}
+
+
+	/**
+	 * Closes the connection and the underlying socket.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.err.println("Error while closing the connection");
+		}
+	}
+
+
+	/**
+	 * Checks whether the connection has been closed.
+	 *
+	 * @return true if the connection is closed, false otherwise
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+}
@@ -0,0 +1,190 @@
+package connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+
+/**
+ * One logical stream of a {@link MultiplexedConnection}, carrying a single TFTP request and its response.
+ * Each stream has its own flow-control window: a writer blocks once it has sent {@link MultiplexedConnection#INITIAL_WINDOW}
+ * bytes that the peer has not consumed yet, and the reader returns credit as it consumes packets.
+ */
+public class TFTPStream {
+
+	// Marks the end of the inbound queue once the connection has failed
+	private static final byte[] CLOSED = new byte[0];
+
+	private final MultiplexedConnection connection;
+	private volatile int id;// 0 until the first packet of a stream opened by the client is written
+	private boolean closed = false;
+	private final BlockingQueue<byte[]> inbound = new LinkedBlockingQueue<>();
+
+	private int sendWindow = MultiplexedConnection.INITIAL_WINDOW;
+	private int consumed = 0;
+	private IOException failure;
+
+
+	/**
+	 * Constructor for TFTPStream.
+	 *
+	 * @param connection the connection carrying the stream
+	 * @param id         the stream id
+	 */
+	TFTPStream(MultiplexedConnection connection, int id) {
+		this.connection = connection;
+		this.id = id;
+	}
+
+
+	/**
+	 * Gets the stream id.
+	 *
+	 * @return the stream id
+	 */
+	public int getId() {
+		return id;
+	}
+
+
+	/**
+	 * Marks the stream closed.
+	 *
+	 * @return true the first time, false if the stream was closed already
+	 */
+	synchronized boolean close() {
+		boolean wasOpen = !closed;
+		closed = true;
+		return wasOpen;
+	}
+
+
+	/**
+	 * Reads the next packet sent on this stream, blocking until one arrives.
+	 *
+	 * @return the packet, sized exactly to its length on the wire
+	 * @throws IOException if the connection fails before a packet arrives
+	 */
+	public byte[] readPacket() throws IOException {
+		byte[] packet;
+		try {
+			packet = inbound.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for a packet");
+		}
+		if (packet == CLOSED) {
+			inbound.add(CLOSED);
+			synchronized (this) {
+				throw failure != null ? failure : new EOFException("Stream closed");
+			}
+		}
+
+		// Return credit to the sender once half of the window has been consumed
+		consumed += packet.length;
+		if (consumed >= MultiplexedConnection.INITIAL_WINDOW / 2) {
+			byte[] increment = new byte[4];
+			increment[0] = (byte) (consumed >> 24);
+			increment[1] = (byte) (consumed >> 16);
+			increment[2] = (byte) (consumed >> 8);
+			increment[3] = (byte) consumed;
+			connection.writeFrame(MultiplexedConnection.TYPE_WINDOW_UPDATE, id, increment, increment.length);
+			connection.flush();
+			consumed = 0;
+		}
+		return packet;
+	}
+
+
+	/**
+	 * Writes a packet on this stream, blocking while the stream's flow-control window is exhausted.
+	 *
+	 * @param buf    the buffer holding the packet
+	 * @param length the length of the packet
+	 * @throws IOException if the connection fails
+	 */
+	public void writePacket(byte[] buf, int length) throws IOException {
+		acquireWindow(length);
+		if (id == 0) {
+			id = connection.writeFirstPacket(this, buf, length);
+		} else {
+			connection.writeFrame(MultiplexedConnection.TYPE_PACKET, id, buf, length);
+		}
+	}
+
+
+	/**
+	 * Flushes any queued packets to the peer.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void flush() throws IOException {
+		connection.flush();
+	}
+
+
+	/**
+	 * Waits until the peer has granted enough credit to send the given number of bytes.
+	 *
+	 * @param length the number of bytes about to be sent
+	 * @throws IOException if the connection fails while waiting
+	 */
+	private void acquireWindow(int length) throws IOException {
+		synchronized (this) {
+			if (failure == null && sendWindow >= length) {
+				sendWindow -= length;
+				return;
+			}
+		}
+		// Make sure the peer has everything we sent so far, otherwise it has nothing to grant credit for
+		connection.flush();
+		synchronized (this) {
+			while (failure == null && sendWindow < length) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for the flow-control window");
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			sendWindow -= length;
+		}
+	}
+
+
+	/**
+	 * Queues a packet received from the peer.
+	 *
+	 * @param packet the packet
+	 */
+	void deliver(byte[] packet) {
+		inbound.add(packet);
+	}
+
+
+	/**
+	 * Adds credit granted by the peer to the send window.
+	 *
+	 * @param increment the number of bytes granted
+	 */
+	synchronized void grantWindow(int increment) {
+		sendWindow += increment;
+		notifyAll();
+	}
+
+
+	/**
+	 * Fails the stream, waking up any reader or writer blocked on it.
+	 *
+	 * @param cause the error that closed the connection
+	 */
+	synchronized void fail(IOException cause) {
+		failure = cause;
+		notifyAll();
+		inbound.add(CLOSED);
+	}
+}
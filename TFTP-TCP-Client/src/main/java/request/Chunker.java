@@ -0,0 +1,122 @@
+package request;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+
+/**
+ * Splits data into content-defined chunks and names every chunk by its SHA-256.
+ * Boundaries are cut where a gear rolling hash of the bytes themselves hits a pattern, rather than at fixed offsets,
+ * so an edit only changes the chunks around it and the rest of the file still matches what was stored before.
+ * Client and server must cut identical boundaries, so the sizes and the gear table seed are part of the protocol.
+ */
+public class Chunker {
+
+	/**
+	 * Name of the request option asking for a deduplicated upload, and its supported value.
+	 */
+	public static final String OPTION = "dedup";
+	public static final String SHA256 = "sha256";
+
+	/**
+	 * Smallest and largest chunk sizes, in bytes. Chunks average about 8 KB in between.
+	 */
+	public static final int MIN_SIZE = 2048;
+	public static final int MAX_SIZE = 65536;
+
+	/**
+	 * Length of a chunk hash, in bytes.
+	 */
+	public static final int HASH_BYTES = 32;
+
+	// A boundary is cut when the top 13 bits of the rolling hash are zero, once every 8 KB on average
+	private static final long BOUNDARY_MASK = 0xFFF8000000000000L;
+
+	// Random value per byte value mixed into the rolling hash, from a fixed seed so both ends agree
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x7466747043444331L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+
+	/**
+	 * Describes one chunk of a file: where it lies and what it hashes to.
+	 */
+	public static class Chunk {
+		public final byte[] hash;// SHA-256 of the chunk's bytes
+		public final long offset;// Offset of the chunk in the file
+		public final int length;// Length of the chunk in bytes
+
+		// Constructor for the chunk
+		public Chunk(byte[] hash, long offset, int length) {
+			this.hash = hash;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+
+	/**
+	 * Finds where the chunk starting at the given offset ends.
+	 *
+	 * @param data  the buffer holding the data
+	 * @param start the offset of the chunk
+	 * @param end   the offset just past the end of the data
+	 * @return the offset just past the end of the chunk
+	 */
+	public static int nextBoundary(byte[] data, int start, int end) {
+		int limit = Math.min(end, start + MAX_SIZE);
+		long hash = 0;
+		for (int i = start + MIN_SIZE; i < limit; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xFF];
+			if ((hash & BOUNDARY_MASK) == 0) {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+
+
+	/**
+	 * Splits data into chunks and hashes each one.
+	 *
+	 * @param data the buffer holding the data
+	 * @param size the number of valid bytes in the buffer
+	 * @return the chunks, in file order
+	 */
+	public static List<Chunk> split(byte[] data, int size) {
+		MessageDigest digest = newDigest();
+		List<Chunk> chunks = new ArrayList<>();
+		int start = 0;
+		while (start < size) {
+			int end = nextBoundary(data, start, size);
+			digest.update(data, start, end - start);
+			chunks.add(new Chunk(digest.digest(), start, end - start));
+			start = end;
+		}
+		return chunks;
+	}
+
+
+	/**
+	 * Creates the digest chunks are named with.
+	 *
+	 * @return a new SHA-256 digest
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package request;
+
+import java.util.zip.Deflater;
+
+
+
+/**
+ * Decides whether a transfer is worth compressing, and holds the settings shared by both ends.
+ * Already compressed data (archives, images, encrypted blobs) looks random, so its entropy is close to 8 bits
+ * per byte and deflating it would only burn CPU. Sampling the first chunk is enough to tell the two apart.
+ */
+public class Compression {
+
+	/**
+	 * Name of the request option negotiating compression, and its supported value.
+	 */
+	public static final String OPTION = "compress";
+	public static final String DEFLATE = "deflate";
+	public static final String NONE = "none";
+
+	/**
+	 * Number of leading bytes sampled to estimate the entropy of a file.
+	 */
+	public static final int SAMPLE_BYTES = 65536;
+
+	/**
+	 * Compression level used for transfers, favouring speed over ratio.
+	 */
+	public static final int LEVEL = Deflater.BEST_SPEED;
+
+	// Files that fit in a single block cannot save a packet, so they are sent as they are
+	private static final int MIN_BYTES = 512;
+
+	// Above this many bits of entropy per byte, deflate saves too little to be worth it
+	private static final double MAX_ENTROPY_BITS = 7.2;
+
+
+	/**
+	 * Estimates the Shannon entropy of a sample of data.
+	 *
+	 * @param data   the buffer holding the sample
+	 * @param offset the offset of the sample
+	 * @param length the length of the sample
+	 * @return the entropy in bits per byte, between 0 and 8
+	 */
+	public static double entropy(byte[] data, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		int[] counts = new int[256];
+		for (int i = offset; i < offset + length; i++) {
+			counts[data[i] & 0xFF]++;
+		}
+		double entropy = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				double p = (double) count / length;
+				entropy -= p * Math.log(p) / Math.log(2);
+			}
+		}
+		return entropy;
+	}
+
+
+	/**
+	 * Checks whether data starting with the given bytes is worth compressing.
+	 *
+	 * @param data   the buffer holding the data
+	 * @param length the number of valid bytes in the buffer
+	 * @return true if the sampled entropy is low enough for deflate to pay off on data this large, false otherwise
+	 */
+	public static boolean isCompressible(byte[] data, int length) {
+		return length > MIN_BYTES && entropy(data, 0, Math.min(length, SAMPLE_BYTES)) <= MAX_ENTROPY_BITS;
+	}
+}
@@ -0,0 +1,114 @@
+package request;
+
+import connection.TFTPStream;
+import Exceptions.TFTPException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+
+/**
+ * Reads the payload of consecutive DATA packets from a {@link TFTPStream} as a stream of bytes.
+ * The stream ends after the first short block, which marks the end of the transfer.
+ */
+public class DataBlockInputStream extends InputStream {
+
+	private static final int BLOCK_SIZE = TFTPRequestBuilder.MAX_BYTES - TFTPRequestBuilder.HEADER_SIZE;
+
+	private final TFTPStream stream;
+	private byte[] block = new byte[0];
+	private int position = 0;
+	private boolean lastBlock = false;
+	private long bytesRead = 0;
+
+
+	/**
+	 * Constructor for DataBlockInputStream.
+	 *
+	 * @param stream the stream to read the DATA packets from
+	 */
+	public DataBlockInputStream(TFTPStream stream) {
+		this.stream = stream;
+	}
+
+
+	/**
+	 * Reads a single byte.
+	 *
+	 * @return the byte, or -1 once the transfer has ended
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		bytesRead++;
+		return block[position++] & 0xFF;
+	}
+
+
+	/**
+	 * Reads bytes into a slice of a buffer.
+	 *
+	 * @param buf    the buffer to fill
+	 * @param offset the offset of the first byte to fill
+	 * @param length the maximum number of bytes to read
+	 * @return the number of bytes read, or -1 once the transfer has ended
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public int read(byte[] buf, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(length, block.length - position);
+		System.arraycopy(block, position, buf, offset, count);
+		position += count;
+		bytesRead += count;
+		return count;
+	}
+
+
+	/**
+	 * Gets the number of bytes read so far.
+	 *
+	 * @return the number of bytes read
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+
+	/**
+	 * Makes sure there are unread bytes in the current block, reading the next DATA packet if needed.
+	 *
+	 * @return true if there are bytes to read, false if the transfer has ended
+	 * @throws IOException if an I/O error occurs, the server sent an ERROR or a packet is not a DATA packet
+	 */
+	private boolean fill() throws IOException {
+		while (position == block.length) {
+			if (lastBlock) {
+				return false;
+			}
+			TFTPRequestDecoder.DataPacket dataPacket;
+			try {
+				byte[] packet = stream.readPacket();
+				if (TFTPRequestDecoder.decodeOp(packet) == OPCODE.ERROR) {
+					TFTPRequestDecoder.ErrorPacket error = TFTPRequestDecoder.decodeError(packet, 0);
+					throw new IOException("Error (" + error.errorCode + "): " + error.errorMessage);
+				}
+				dataPacket = TFTPRequestDecoder.decodeData(packet, 0);
+			} catch (TFTPException e) {
+				throw new IOException(e.getMessage());
+			}
+			block = dataPacket.data;
+			position = 0;
+			lastBlock = dataPacket.size < BLOCK_SIZE;
+		}
+		return true;
+	}
+}
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 
 /**
@@ -15,6 +16,7 @@ import java.io.IOException;
 public class DataPacketsBuilder {
 	// Sets a maximum file size limit of 32 MB for TFTP operations
 	private static final int MAX_BYTES_PER_FILE = 33554432; // 32 MB limit on file size in TFTP
+	private static final int INITIAL_CAPACITY = 65536; // Buffer grows from here, so small files stay cheap
 
 	private byte[] data;
 	private int size = 0;
@@ -24,7 +26,7 @@ public class DataPacketsBuilder {
 	 * Constructor that initializes the data buffer to the maximum allowed size.
 	 */
 	public DataPacketsBuilder() {
-		data = new byte[MAX_BYTES_PER_FILE];
+		data = new byte[INITIAL_CAPACITY];
 	}
 
 
@@ -88,8 +90,43 @@ public class DataPacketsBuilder {
 	 * @param dataPacket The data packet to add.
 	 */
 	public void addDataPacket(TFTPRequestDecoder.DataPacket dataPacket) {
-		System.arraycopy(dataPacket.data, 0, data, size, dataPacket.size);
-		size += dataPacket.size;
+		addData(dataPacket.data, 0, dataPacket.size);
+	}
+
+
+	/**
+	 * Appends a slice of a buffer to the current data buffer.
+	 * @param buf The buffer holding the bytes.
+	 * @param offset The offset of the first byte.
+	 * @param length The number of bytes to append.
+	 */
+	public void addData(byte[] buf, int offset, int length) {
+		ensureCapacity(size + length);
+		System.arraycopy(buf, offset, data, size, length);
+		size += length;
+	}
+
+
+	/**
+	 * Sizes the data buffer for a file whose size the server announced, so it is not regrown as the blocks arrive.
+	 * @param expectedSize The size of the file in bytes.
+	 */
+	public void expectSize(long expectedSize) {
+		if (expectedSize > data.length) {
+			data = Arrays.copyOf(data, (int) Math.min(expectedSize, MAX_BYTES_PER_FILE));
+		}
+	}
+
+
+	/**
+	 * Grows the data buffer so it can hold at least the given number of bytes, up to the file size limit.
+	 * @param capacity The number of bytes the buffer must hold.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			int newCapacity = Math.min(Math.max(capacity, data.length * 2), MAX_BYTES_PER_FILE);
+			data = Arrays.copyOf(data, newCapacity);
+		}
 	}
 
 
@@ -163,7 +200,7 @@ public class DataPacketsBuilder {
 	public void reset() {
 		size = 0;
 		filename = null;
-		data = new byte[MAX_BYTES_PER_FILE];
+		data = new byte[INITIAL_CAPACITY];
 	}
 
 
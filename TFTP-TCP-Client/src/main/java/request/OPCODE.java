@@ -2,7 +2,7 @@ package request;
 
 // Opcodes for the request
 public enum OPCODE {
-    NOOP(0), RRQ(1), WRQ(2), DATA(3), ACK(4), ERROR(5);
+    NOOP(0), RRQ(1), WRQ(2), DATA(3), ACK(4), ERROR(5), OACK(6);
     private final int value;
 
     OPCODE(int value) {
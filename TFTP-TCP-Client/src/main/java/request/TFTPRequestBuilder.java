@@ -1,11 +1,15 @@
 package request;
 
+import java.util.Map;
+
 
 public class TFTPRequestBuilder {
 	// Maximum bytes in a TFTP packet
 	public static int MAX_BYTES = 516;
 	// Standard size of the TFTP header
 	public static int HEADER_SIZE = 4;
+	// Name of the transfer size option (RFC 2349), the size of the file being sent or read
+	public static final String TSIZE = "tsize";
 
 
 
@@ -19,6 +23,19 @@ public class TFTPRequestBuilder {
 		return createPackRRQorWRQ(buf, OPCODE.RRQ, filename);
 	}
 
+	/**
+	 * Creates a Read Request (RRQ) packet carrying options.
+	 * @param buf the buffer where the packet data will be stored
+	 * @param filename the name of the file to read
+	 * @param options the options to request, as name and value pairs
+	 * @return the length of the created packet
+	 */
+	public static int createPackRRQ(byte[] buf, String filename, Map<String, String> options) {
+		int length = createPackRRQorWRQ(buf, OPCODE.RRQ, filename);
+		length += createPackOptions(buf, length, options);
+		return length;
+	}
+
 	/**
 	 * Creates a Write Request (WRQ) packet.
 	 * @param buf the buffer where the packet data will be stored
@@ -29,6 +46,19 @@ public class TFTPRequestBuilder {
 		return createPackRRQorWRQ(buf, OPCODE.WRQ, filename);
 	}
 
+	/**
+	 * Creates a Write Request (WRQ) packet carrying options.
+	 * @param buf the buffer where the packet data will be stored
+	 * @param filename the name of the file to write
+	 * @param options the options to request, as name and value pairs
+	 * @return the length of the created packet
+	 */
+	public static int createPackWRQ(byte[] buf, String filename, Map<String, String> options) {
+		int length = createPackRRQorWRQ(buf, OPCODE.WRQ, filename);
+		length += createPackOptions(buf, length, options);
+		return length;
+	}
+
 
 
 
@@ -51,6 +81,24 @@ public class TFTPRequestBuilder {
 		return length;
 	}
 
+	/**
+	 * Appends options to the buffer as a sequence of null terminated name and value strings.
+	 * @param buf the buffer to store the options
+	 * @param offset the offset at which to start packing
+	 * @param options the options to pack
+	 * @return the number of bytes used
+	 */
+	public static int createPackOptions(byte[] buf, int offset, Map<String, String> options) {
+		int length = 0;
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			length += createPackString(buf, offset + length, option.getKey());
+			buf[offset + length++] = 0;// Null terminator for the option name
+			length += createPackString(buf, offset + length, option.getValue());
+			buf[offset + length++] = 0;// Null terminator for the option value
+		}
+		return length;
+	}
+
 	/**
 	 * Creates an Error packet.
 	 * @param buf the buffer to store the packet data
@@ -98,6 +146,39 @@ public class TFTPRequestBuilder {
 	}
 
 
+	/**
+	 * Creates a Data packet from a slice of a larger buffer, without copying the slice first.
+	 * @param buf the buffer to store the packet data
+	 * @param block the block number
+	 * @param data the buffer holding the data bytes
+	 * @param offset the offset of the data in its buffer
+	 * @param size the number of data bytes
+	 * @return the length of the packet
+	 */
+	public static int createPackData(byte[] buf, int block, byte[] data, int offset, int size) {
+		int length = 0;
+		length += createPackUInt16(buf, length, OPCODE.DATA.getValue());
+		length += createPackUInt16(buf, length, block);
+		System.arraycopy(data, offset, buf, length, size);
+		length += size;
+		return length;
+	}
+
+
+	/**
+	 * Creates the Data packet that follows the end of a checksummed transfer, carrying the CRC32C
+	 * of the file contents as 8 hexadecimal digits.
+	 * @param buf the buffer to store the packet data
+	 * @param block the block number, one past the block that ended the transfer
+	 * @param checksum the CRC32C of the data sent
+	 * @return the length of the packet
+	 */
+	public static int createPackChecksum(byte[] buf, int block, long checksum) {
+		byte[] digest = String.format("%08x", checksum).getBytes();
+		return createPackData(buf, block, digest, 0, digest.length);
+	}
+
+
 	/**
 	 * Creates an Acknowledgment (ACK) packet.
 	 * @param buf the buffer to store the packet data
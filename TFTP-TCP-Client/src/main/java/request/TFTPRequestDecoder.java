@@ -1,6 +1,8 @@
 package request;
 import request.*;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import Exceptions.TFTPException;
 
 /**
@@ -168,12 +170,8 @@ public class TFTPRequestDecoder {
 
 			// Data
 			offset += 2;
-			// Rest of packet contains data, find the end of the data
-			int end = offset;
-			while (end < packet.length && packet[end] != 0) {
-				end++;
-			}
-			byte[] data = Arrays.copyOfRange(packet, offset, end);
+			// Packets are framed to their exact length, so the rest of the packet is data
+			byte[] data = Arrays.copyOfRange(packet, offset, packet.length);
 			return new DataPacket(blockNumber, data, data.length);
 		} catch (Exception e) {
 			throw new TFTPException("Not valid DATA packet");
@@ -181,6 +179,54 @@ public class TFTPRequestDecoder {
 	}
 
 
+	/**
+	 * Decodes the DATA packet sent after the end of a checksummed transfer to extract the CRC32C.
+	 * @param packet The packet as a byte array.
+	 * @param offset The starting offset in the packet for decoding.
+	 * @return The CRC32C computed by the sender.
+	 * @throws TFTPException If the packet is not a valid checksum packet.
+	 */
+	public static long decodeChecksum(byte[] packet, int offset) throws TFTPException {
+		DataPacket dataPacket = decodeData(packet, offset);
+		try {
+			return Long.parseLong(new String(dataPacket.data, 0, dataPacket.size), 16);
+		} catch (NumberFormatException e) {
+			throw new TFTPException("Not valid checksum packet");
+		}
+	}
+
+
+	/**
+	 * Decodes an OACK packet to extract the options accepted by the server.
+	 * @param packet The packet as a byte array.
+	 * @param offset The starting offset in the packet for decoding.
+	 * @return The accepted options, keyed by lower case name.
+	 * @throws TFTPException If the packet is not a valid OACK packet.
+	 */
+	public static Map<String, String> decodeOACK(byte[] packet, int offset) throws TFTPException {
+		try {
+			// Check opcode
+			int operation = decodeUint16(packet, offset);
+			if (operation != OPCODE.OACK.getValue()) {
+				throw new TFTPException("Invalid OACK packet");
+			}
+			offset += 2;
+			// Options are null terminated name and value pairs up to the end of the packet
+			Map<String, String> options = new LinkedHashMap<>();
+			while (offset < packet.length) {
+				String name = decodeString(packet, offset);
+				offset += name.length() + 1;
+				String value = decodeString(packet, offset);
+				offset += value.length() + 1;
+				options.put(name.toLowerCase(), value);
+			}
+			return options;
+		} catch (Exception e) {
+			throw new TFTPException("Invalid OACK packet");
+		}
+	}
+
+
 	/**
 	 * Decodes an ERROR packet to extract the error code and message.
 	 * @param packet The packet as a byte array.
@@ -206,4 +252,22 @@ public class TFTPRequestDecoder {
 			throw new TFTPException("Invalid ERROR packet");
 		}
 	}
+
+	/**
+	 * Decodes the transfer size option (RFC 2349) of a request or OACK.
+	 * @param options The options, keyed by lower case name.
+	 * @return The size of the file in bytes, or -1 if the option is missing or not a valid size.
+	 */
+	public static long decodeTransferSize(Map<String, String> options) {
+		String value = options.get(TFTPRequestBuilder.TSIZE);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			long size = Long.parseLong(value);
+			return size >= 0 ? size : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
 }
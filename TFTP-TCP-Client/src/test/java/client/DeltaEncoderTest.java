@@ -0,0 +1,132 @@
+package client;
+
+import org.junit.Test;
+import request.Chunker;
+import request.Delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+// Encodes new versions of a file against the signatures of an old one and rebuilds them as the server would
+public class DeltaEncoderTest {
+
+	private static final int BLOCK_SIZE = 1024;
+
+	// A byte inserted at the front shifts every block off its boundary, so only the rolling window finds them again
+	@Test
+	public void findsBlocksAtAnyOffset() throws IOException {
+		byte[] base = randomBytes(50 * BLOCK_SIZE, 1);
+		byte[] data = new byte[base.length + 1];
+		data[0] = 42;
+		System.arraycopy(base, 0, data, 1, base.length);
+
+		DeltaEncoder encoder = encoderFor(base);
+		byte[] delta = encode(encoder, data);
+		assertArrayEquals(data, apply(base, delta));
+		assertEquals(1, encoder.getLiteralBytes());
+		assertEquals(base.length, encoder.getCopiedBytes());
+	}
+
+	// Changed bytes turn only the blocks holding them into literals, and the short last block is still copied
+	@Test
+	public void sendsOnlyTheChangedBlocksAsLiterals() throws IOException {
+		byte[] base = randomBytes(20 * BLOCK_SIZE + 300, 2);
+		byte[] data = base.clone();
+		data[3 * BLOCK_SIZE + 10] ^= 1;
+		data[12 * BLOCK_SIZE] ^= 1;
+
+		DeltaEncoder encoder = encoderFor(base);
+		byte[] delta = encode(encoder, data);
+		assertArrayEquals(data, apply(base, delta));
+		assertEquals(2 * BLOCK_SIZE, encoder.getLiteralBytes());
+		assertEquals(base.length - 2 * BLOCK_SIZE, encoder.getCopiedBytes());
+	}
+
+	// Whatever the edits, the instructions rebuild the new version exactly and end with its SHA-256
+	@Test
+	public void rebuildsRandomlyEditedFiles() throws IOException {
+		Random random = new Random(3);
+		for (int round = 0; round < 20; round++) {
+			byte[] base = randomBytes(random.nextInt(40 * BLOCK_SIZE), round);
+			byte[] data = base;
+			for (int edit = 0; edit < 5; edit++) {
+				int at = data.length == 0 ? 0 : random.nextInt(data.length);
+				byte[] inserted = randomBytes(random.nextInt(2 * BLOCK_SIZE), round * 10 + edit);
+				int removed = Math.min(random.nextInt(BLOCK_SIZE), data.length - at);
+				byte[] edited = new byte[data.length + inserted.length - removed];
+				System.arraycopy(data, 0, edited, 0, at);
+				System.arraycopy(inserted, 0, edited, at, inserted.length);
+				System.arraycopy(data, at + removed, edited, at + inserted.length, data.length - at - removed);
+				data = edited;
+			}
+
+			DeltaEncoder encoder = encoderFor(base);
+			assertArrayEquals(data, apply(base, encode(encoder, data)));
+			assertEquals(data.length, encoder.getLiteralBytes() + encoder.getCopiedBytes());
+			assertTrue(encoder.getCopiedBytes() <= base.length);
+		}
+	}
+
+	private static DeltaEncoder encoderFor(byte[] base) {
+		MessageDigest digest = Chunker.newDigest();
+		int blocks = (base.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int[] weak = new int[blocks];
+		byte[][] strong = new byte[blocks][];
+		for (int i = 0; i < blocks; i++) {
+			int length = Math.min(BLOCK_SIZE, base.length - i * BLOCK_SIZE);
+			weak[i] = Delta.weak(base, i * BLOCK_SIZE, length);
+			strong[i] = Delta.strong(digest, base, i * BLOCK_SIZE, length);
+		}
+		return new DeltaEncoder(BLOCK_SIZE, base.length, weak, strong);
+	}
+
+	private static byte[] encode(DeltaEncoder encoder, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			encoder.encode(data, data.length, out);
+		}
+		return bytes.toByteArray();
+	}
+
+	// Rebuilds a file from its base and the delta instructions, checking the SHA-256 that ends them
+	private static byte[] apply(byte[] base, byte[] delta) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+		ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+		int tag;
+		while ((tag = in.readUnsignedByte()) != Delta.END) {
+			if (tag == Delta.COPY) {
+				int index = in.readInt();
+				int start = index * BLOCK_SIZE;
+				rebuilt.write(base, start, Math.min(BLOCK_SIZE, base.length - start));
+			} else {
+				assertEquals(Delta.LITERAL, tag);
+				byte[] literal = new byte[in.readInt()];
+				assertTrue(literal.length <= Delta.MAX_LITERAL);
+				in.readFully(literal);
+				rebuilt.write(literal);
+			}
+		}
+		byte[] hash = new byte[Chunker.HASH_BYTES];
+		in.readFully(hash);
+		assertEquals(-1, in.read());
+		byte[] data = rebuilt.toByteArray();
+		assertArrayEquals(Chunker.newDigest().digest(data), hash);
+		return data;
+	}
+
+	private static byte[] randomBytes(int size, long seed) {
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -2,6 +2,15 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import request.BlockCache;
+import request.ChunkStore;
+import request.Durability;
+import request.FileStore;
+import request.FileSystemStore;
+import request.OverlayStore;
+import request.PackFileStore;
 
 
 
@@ -17,15 +26,33 @@ public class Server {
      * Starts the TFTP server on the specified port.
      *
      * @param port the port on which the server will listen for incoming connections
+     * @param pack       a pack file whose files are served in front of the working directory, or null if there is none
+     * @param durability  when uploaded files are forced to disk
+     * @param directAbove the size in bytes above which uploads bypass the page cache
      * @throws IOException if an I/O error occurs while starting the server
      */
-    public void startServer(int port) throws IOException {
+    public void startServer(int port, Path pack, Durability durability, long directAbove) throws IOException {
         serverSocket = new ServerSocket(port);
+        // Files are served from the working directory, resolved once for every request
+        FileStore files = new FileSystemStore(Paths.get("."), durability);
+        System.out.println("Uploads are made durable with policy " + durability);
+        if (pack != null) {
+            // The pack is mapped once, so its files are served without opening anything
+            PackFileStore packed = new PackFileStore(pack);
+            System.out.println("Serving " + packed.getFileCount() + " files from pack " + pack);
+            files = new OverlayStore(packed, files);
+        }
+        ChunkStore store = new ChunkStore(files, directAbove);
+        if (directAbove != Long.MAX_VALUE) {
+            System.out.println("Uploads over " + directAbove + " bytes bypass the page cache");
+        }
+        // One cache for every client, so a file many clients ask for is read from disk once
+        BlockCache cache = new BlockCache(BlockCache.DEFAULT_CAPACITY, store);
         System.out.println("Server started on port " + port);
         while (true) {
             Socket clientSocket = serverSocket.accept();
 
-            Thread t = new TFTPRequestHandler(clientSocket);
+            Thread t = new TFTPRequestHandler(clientSocket, cache, store);
 
             t.start();
 
@@ -51,12 +78,35 @@ public class Server {
     /**
      * Entry point of the application.
      *
-     * @param args command line arguments (not used)
+     * @param args command line arguments: optionally, {@code --durability=none|fsync|group},
+     *             {@code --direct-above=<megabytes>} and a pack file to serve, built with {@link PackBuilder}
      */
     public static void main(String[] args) {
+        Path pack = null;
+        Durability durability = Durability.GROUP;
+        long directAbove = Long.MAX_VALUE;
+        for (String arg : args) {
+            if (arg.startsWith("--direct-above=")) {
+                try {
+                    directAbove = Long.parseLong(arg.substring("--direct-above=".length())) * 1024 * 1024;
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid size: " + arg);
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--durability=")) {
+                try {
+                    durability = Durability.valueOf(arg.substring("--durability=".length()).toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Unknown durability policy: " + arg);
+                    System.exit(1);
+                }
+            } else {
+                pack = Paths.get(arg);
+            }
+        }
         try {
             Server server = new Server();
-            server.startServer(8080);
+            server.startServer(8080, pack, durability, directAbove);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,67 +1,106 @@
+import connection.MultiplexedConnection;
+import connection.TFTPStream;
 import exceptions.TFTPException;
 import request.*;
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.AccessDeniedException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 
 
 /**
  * TFTPRequestHandler class handles TCP TFTP requests sent by the client.
+ * A single connection carries any number of multiplexed streams, each serving one request,
+ * so a large download never holds up the other requests of the same client.
  */
 public class TFTPRequestHandler extends Thread {
 
+    // Time a connection may sit without any request before the server closes it
+    private static final int IDLE_TIMEOUT_MS = 60000;
+    // Size of the buffers used when streaming file contents, a multiple of the block size
+    private static final int IO_BUFFER_BYTES = 65536;
+    // Most chunks a deduplicated upload without a transfer size may list, enough for the largest file a client can send
+    private static final int MAX_CHUNKS = Integer.MAX_VALUE / Chunker.MIN_SIZE + 1;
+    // Streams of one connection served at once, the others wait for a worker
+    private static final int STREAM_WORKERS = 8;
+
     private final RequestHandlerLogger logger;
     private final Socket clientSocket;
-    private DataPacketsBuilder dataPacketsBuilder;
+    private final BlockCache cache;
+    private final ChunkStore store;
 
-    private OutputStream out;
-    private InputStream in;
+    private MultiplexedConnection connection;
+    private final ExecutorService streamExecutor = Executors.newFixedThreadPool(STREAM_WORKERS);
 
 
     /**
      * Constructor for TFTPRequestHandler.
      *
      * @param clientSocket the client socket
+     * @param cache        the block cache shared by every client, which read requests are served through
+     * @param store        the chunk store uploads are saved to
      */
-    public TFTPRequestHandler(Socket clientSocket) {
+    public TFTPRequestHandler(Socket clientSocket, BlockCache cache, ChunkStore store) {
         this.clientSocket = clientSocket;
+        this.cache = cache;
+        this.store = store;
         logger = new RequestHandlerLogger(clientSocket.getInetAddress(), clientSocket.getPort());
-        dataPacketsBuilder = new DataPacketsBuilder(logger);
     }
 
 
     /**
      * Runs the TFTPRequestHandler thread.
+     * Frames are read until the client disconnects or the connection goes idle, and every stream
+     * the client opens is served by one of a fixed number of workers, the others waiting their turn.
      */
     public void run() {
         try {
-            out = clientSocket.getOutputStream();
+            connection = new MultiplexedConnection(clientSocket);
+            connection.setFinishingStreams(STREAM_WORKERS);
+            connection.readFrames(stream -> streamExecutor.execute(() -> serveStream(stream)), IDLE_TIMEOUT_MS);
+        } catch (SocketTimeoutException e) {
+            logger.logError("Connection idle for " + IDLE_TIMEOUT_MS + " ms, closing");
+        } catch (EOFException e) {
+            logger.logError("Client disconnected");
+        } catch (ProtocolException e) {
+            logger.logError("Protocol error, closing: " + e.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            closeStreams();
         }
+    }
 
-        try {
-            in = clientSocket.getInputStream();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        byte[] requestBuffer = new byte[1024];
-        // read the request as bytes
-        try {
-            int read = in.read(requestBuffer);
-        } catch (IOException e) {
-            this.interrupt();
-            if (this.isInterrupted()) {
-                logger.logError("Client disconnected");
-            }
-        }
 
-        // Handle the request.
+    /**
+     * Serves the single request carried by a stream.
+     *
+     * @param stream the stream opened by the client
+     */
+    private void serveStream(TFTPStream stream) {
         try {
-            handleRequest(requestBuffer);
+            byte[] request = stream.readPacket();
+            handleRequest(stream, request);
+            stream.flush();
         } catch (Exception e) {
-            e.printStackTrace();
+            if (!connection.isClosed()) {
+                e.printStackTrace();
+            }
+        } finally {
+            connection.closeStream(stream);
         }
     }
 
@@ -69,10 +108,12 @@ public class TFTPRequestHandler extends Thread {
     /**
      * Handles the request.
      *
+     * @param stream  the stream the request arrived on
      * @param request the request buffer
      * @throws TFTPException if there is an error in the TFTP protocol
+     * @throws IOException   if the connection fails while the request is served
      */
-    public void handleRequest(byte[] request) throws TFTPException {
+    public void handleRequest(TFTPStream stream, byte[] request) throws TFTPException, IOException {
 
         OPCODE opcode;
         opcode = TFTPRequestDecoder.decodeOp(request);
@@ -80,9 +121,11 @@ public class TFTPRequestHandler extends Thread {
         // Handle the request
         try {
             switch (opcode) {
-                case RRQ -> handleRRQ(request);
-                case WRQ -> handleWRQ(request);
+                case RRQ -> handleRRQ(stream, request);
+                case WRQ -> handleWRQ(stream, request);
             }
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
             throw new TFTPException(e.getMessage());
         }
@@ -92,92 +135,624 @@ public class TFTPRequestHandler extends Thread {
 
     /**
      * Handles a Read Request (RRQ).
+     * The file is read through the block cache, straight into the DATA packets, so a file many clients ask for
+     * is only read from disk once.
      *
+     * @param stream  the stream to answer on
      * @param request the request buffer
      * @throws Exception if an error occurs
      */
-    private void handleRRQ(byte[] request) throws Exception {
+    private void handleRRQ(TFTPStream stream, byte[] request) throws Exception {
         TFTPRequestDecoder.WrqOrRrqPacket req = TFTPRequestDecoder.unpackWRQorRRQ(request, 0);
         logger.logRRQ(req.filename);
 
-        // Attempt to build the data packets from the file
+        // The running checksum is kept only when the client asked for one
+        CRC32C checksum = Checksum.CRC32C.equals(req.options.get(Checksum.OPTION)) ? new CRC32C() : null;
+
+        BlockCache.CachedFile file;
         try {
-            dataPacketsBuilder = DataPacketsBuilder.fromFile(req.filename, logger);
-        } catch (Exception e) {
-            if (e instanceof FileNotFoundException) {
-                logger.logError("File does not exist");
-                byte[] buf = new byte[512];
-                int len = TFTPRequestBuilder.createPackError(buf, 0x01, "File does not exist");
-                out.write(buf, 0, len);
-            } else {
-                throw e;
-            }
+            file = cache.open(req.filename);
+        } catch (AccessDeniedException e) {
+            sendError(stream, 0x02, "Access violation");
+            return;
         }
+        if (file == null) {
+            sendError(stream, 0x01, "File does not exist");
+            return;
+        }
+        try {
+            serveFile(stream, req, file, checksum);
+        } finally {
+            file.close();
+        }
+    }
+
 
-        int numPackets = dataPacketsBuilder.getNumPackets(512);
-        byte[] data = dataPacketsBuilder.getData();
+    /**
+     * Sends the file of a Read Request (RRQ), as a range, deflated or as plain blocks depending on its options.
+     *
+     * @param stream   the stream to answer on
+     * @param req      the decoded request
+     * @param file     the file, opened through the cache
+     * @param checksum the running checksum of the data sent, or null if none was negotiated
+     * @throws Exception if an error occurs
+     */
+    private void serveFile(TFTPStream stream, TFTPRequestDecoder.WrqOrRrqPacket req, BlockCache.CachedFile file,
+                           CRC32C checksum) throws Exception {
+        String range = req.options.get("range");
+        if (range != null) {
+            handleRangeRRQ(stream, req.filename, file, range, checksum);
+            return;
+        }
 
-        for (int i = 1; i <= numPackets; i++) {
+        // Only deflate when the client asked for it and the file does not look compressed already
+        Map<String, String> accepted = new LinkedHashMap<>();
+        boolean compress = false;
+        if (Compression.DEFLATE.equals(req.options.get(Compression.OPTION))) {
+            byte[] sample = new byte[(int) Math.min(file.getSize(), Compression.SAMPLE_BYTES)];
+            int sampled = file.read(0, sample, 0, sample.length);
+            compress = Compression.isCompressible(sample, sampled);
+            accepted.put(Compression.OPTION, compress ? Compression.DEFLATE : Compression.NONE);
+        }
+        if (checksum != null) {
+            accepted.put(Checksum.OPTION, Checksum.CRC32C);
+        }
+        // A client asking for the size can set up for the whole file before the first block
+        if (req.options.containsKey(TFTPRequestBuilder.TSIZE)) {
+            accepted.put(TFTPRequestBuilder.TSIZE, String.valueOf(file.getSize()));
+        }
+        if (!accepted.isEmpty()) {
             byte[] buffer = new byte[TFTPRequestBuilder.MAX_DATA_BYTES];
-            // Get the current packet (leaving room for the opcode and block number - 4 bytes total)
-            int start = (i - 1) * (TFTPRequestBuilder.MAX_DATA_BYTES - 4);
-            int end = Math.min(start + TFTPRequestBuilder.MAX_DATA_BYTES - 4, data.length);
-            byte[] dataPacket = new byte[end - start];
-            System.arraycopy(data, start, dataPacket, 0, end - start);
-            // Send the packet to the server.
-            TFTPRequestBuilder.createPackData(buffer, i, dataPacket);
-            logger.logDATASent(req.filename, i, end - start, numPackets);
-            out.write(buffer);
+            stream.writePacket(buffer, TFTPRequestBuilder.createPackOACK(buffer, accepted));
+        }
+        if (compress) {
+            sendCompressed(stream, req.filename, file, checksum);
+        } else {
+            sendBlocks(stream, req.filename, file, 0, file.getSize(), checksum);
+        }
+        logger.logCache(cache.getHits(), cache.getMisses(), cache.getCoalesced(), cache.getReadAheads(), cache.getEvictions(), cache.getUsedBytes(), cache.getCapacity());
+    }
+
+
+    /**
+     * Sends a part of a file as DATA blocks, terminated by a short block.
+     * Every block is read from the cache straight into its packet, after the header.
+     *
+     * @param stream   the stream to answer on
+     * @param filename the name of the file
+     * @param file     the file, opened through the cache
+     * @param start    the offset of the first byte to send
+     * @param end      the offset just past the last byte to send
+     * @param checksum the running checksum of the data sent, or null if none was negotiated
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendBlocks(TFTPStream stream, String filename, BlockCache.CachedFile file, long start, long end,
+                            CRC32C checksum) throws IOException {
+        int blockSize = TFTPRequestBuilder.MAX_DATA_BYTES - 4;
+        int numPackets = (int) ((end - start) / blockSize + 1);
+        byte[] buffer = new byte[TFTPRequestBuilder.MAX_DATA_BYTES];
+        long position = start;
+        int block = 1;
+        int size;
+        // A part that fills its last block exactly is terminated by an extra empty block
+        do {
+            int header = TFTPRequestBuilder.createPackDataHeader(buffer, block & 0xFFFF);
+            size = file.read(position, buffer, header, (int) Math.min(blockSize, end - position));
+            stream.writePacket(buffer, header + size);
+            logger.logDATASent(filename, block, size, numPackets);
+            if (checksum != null) {
+                checksum.update(buffer, header, size);
+            }
+            position += size;
+            // Block numbers wrap around for transfers larger than 32 MB
+            block++;
+        } while (size == blockSize);
+        logger.logDATAEnd(filename, false);
+        if (checksum != null) {
+            sendChecksum(stream, filename, block & 0xFFFF, checksum);
+        }
+    }
+
+
+    /**
+     * Sends a file as a deflate stream split into DATA blocks.
+     *
+     * @param stream   the stream to answer on
+     * @param filename the name of the file
+     * @param file     the file, opened through the cache
+     * @param checksum the running checksum of the contents, or null if none was negotiated
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendCompressed(TFTPStream stream, String filename, BlockCache.CachedFile file,
+                                CRC32C checksum) throws IOException {
+        DataBlockOutputStream blocks = new DataBlockOutputStream(stream);
+        Deflater deflater = new Deflater(Compression.LEVEL);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(blocks, deflater, IO_BUFFER_BYTES)) {
+            byte[] buffer = new byte[IO_BUFFER_BYTES];
+            long position = 0;
+            int read;
+            while ((read = file.read(position, buffer, 0, buffer.length)) > 0) {
+                out.write(buffer, 0, read);
+                // The digest covers the file contents, not the deflate stream, so it also vouches for the decompression
+                if (checksum != null) {
+                    checksum.update(buffer, 0, read);
+                }
+                position += read;
+            }
+        } finally {
+            deflater.end();
+        }
+        logger.logCompression(filename, file.getSize(), blocks.getBytesWritten());
+        logger.logDATAEnd(filename, false);
+        if (checksum != null) {
+            sendChecksum(stream, filename, blocks.getBlockNumber(), checksum);
         }
     }
 
 
+    /**
+     * Sends the CRC32C of a transfer in the DATA block following the one that ended it.
+     *
+     * @param stream   the stream to answer on
+     * @param filename the name of the file
+     * @param block    the block number of the checksum packet
+     * @param checksum the running checksum of the data sent
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendChecksum(TFTPStream stream, String filename, int block, CRC32C checksum) throws IOException {
+        byte[] buffer = new byte[TFTPRequestBuilder.MAX_DATA_BYTES];
+        int length = TFTPRequestBuilder.createPackChecksum(buffer, block, checksum.getValue());
+        stream.writePacket(buffer, length);
+        logger.logChecksum(filename, checksum.getValue(), false);
+    }
+
+
+    /**
+     * Reads the CRC32C sent after the end of an upload and compares it with the one computed on arrival.
+     * The client is told the outcome with an ACK of the checksum block, or an error if the digests differ.
+     *
+     * @param stream   the stream the data arrives on
+     * @param filename the name of the file
+     * @param checksum the running checksum of the data received
+     * @return true if the digests match, false otherwise
+     * @throws IOException   if an I/O error occurs
+     * @throws TFTPException if the checksum packet is malformed
+     */
+    private boolean verifyChecksum(TFTPStream stream, String filename, CRC32C checksum) throws IOException, TFTPException {
+        byte[] packet = stream.readPacket();
+        int block = TFTPRequestDecoder.decodeData(packet, 0).blockNumber;
+        long expected = TFTPRequestDecoder.decodeChecksum(packet, 0);
+        if (expected != checksum.getValue()) {
+            sendError(stream, 0x00, String.format("Checksum mismatch for %s - expected %08x, computed %08x",
+                    filename, expected, checksum.getValue()));
+            return false;
+        }
+        byte[] buffer = new byte[TFTPRequestBuilder.MAX_DATA_BYTES];
+        stream.writePacket(buffer, TFTPRequestBuilder.createPackAck(buffer, block));
+        logger.logChecksum(filename, expected, true);
+        return true;
+    }
+
+
+    /**
+     * Handles a Read Request (RRQ) for a byte range of a file, given as {@code start-end} with the end excluded.
+     * The server answers with an OACK carrying the range it will send and the total file size (tsize),
+     * followed by the DATA blocks of the range, terminated by a short block.
+     * Ranges are streamed through the block cache, so they are not bound by the in-memory file limit.
+     *
+     * @param stream   the stream to answer on
+     * @param filename the name of the file
+     * @param file     the file, opened through the cache
+     * @param range    the requested range
+     * @param checksum the running checksum of the range, or null if none was negotiated
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleRangeRRQ(TFTPStream stream, String filename, BlockCache.CachedFile file, String range,
+                                CRC32C checksum) throws IOException {
+        long fileSize = file.getSize();
+        long start;
+        long end;
+        try {
+            String[] bounds = range.split("-");
+            start = Long.parseLong(bounds[0]);
+            end = Math.min(Long.parseLong(bounds[1]), fileSize);
+        } catch (RuntimeException e) {
+            sendError(stream, 0x08, "Invalid range " + range);
+            return;
+        }
+        if (start < 0 || start > end) {
+            sendError(stream, 0x08, "Invalid range " + range);
+            return;
+        }
+
+        byte[] buffer = new byte[TFTPRequestBuilder.MAX_DATA_BYTES];
+        Map<String, String> accepted = new LinkedHashMap<>();
+        accepted.put("range", start + "-" + end);
+        accepted.put(TFTPRequestBuilder.TSIZE, String.valueOf(fileSize));
+        if (checksum != null) {
+            accepted.put(Checksum.OPTION, Checksum.CRC32C);
+        }
+        int length = TFTPRequestBuilder.createPackOACK(buffer, accepted);
+        stream.writePacket(buffer, length);
+        logger.logRangeSent(filename, start, end);
+        sendBlocks(stream, filename, file, start, end, checksum);
+    }
+
+
     /**
      * Handles a Write Request (WRQ).
      *
+     * @param stream  the stream the data arrives on
      * @param request the request buffer
      * @throws Exception if an error occurs
      */
-    private void handleWRQ(byte[] request) throws Exception {
+    private void handleWRQ(TFTPStream stream, byte[] request) throws Exception {
         TFTPRequestDecoder.WrqOrRrqPacket req = TFTPRequestDecoder.unpackWRQorRRQ(request, 0);
-        dataPacketsBuilder.reset();
+        try {
+            FileStore.checkRequestName(req.filename);
+        } catch (AccessDeniedException e) {
+            sendError(stream, 0x02, "Access violation");
+            return;
+        }
+        try {
+            receiveFile(stream, req);
+        } finally {
+            // The upload may have created a file that earlier requests found missing
+            cache.forgetMissing(req.filename);
+        }
+    }
+
+
+    /**
+     * Receives the file of a Write Request (WRQ) and saves it.
+     *
+     * @param stream the stream the data arrives on
+     * @param req    the decoded request
+     * @throws Exception if an error occurs
+     */
+    private void receiveFile(TFTPStream stream, TFTPRequestDecoder.WrqOrRrqPacket req) throws Exception {
+        DataPacketsBuilder dataPacketsBuilder = new DataPacketsBuilder(logger, store);
 
         dataPacketsBuilder.setFilename(req.filename);
         logger.logWRQ(req.filename);
 
+        // The client only sends the chunks the store does not hold yet
+        if (Chunker.SHA256.equals(req.options.get(Chunker.OPTION))) {
+            handleDedupWRQ(stream, req);
+            return;
+        }
+
+        // Refuse an upload the store has no room for before any of it arrives
+        long transferSize = TFTPRequestDecoder.decodeTransferSize(req.options);
+        if (!hasSpace(stream, transferSize)) {
+            return;
+        }
+        dataPacketsBuilder.setExpectedSize(Math.max(transferSize, 0));
+
+        // The client sends a new version of a file as changes against the current copy
+        if (Delta.RSYNC.equals(req.options.get(Delta.OPTION))) {
+            handleDeltaWRQ(stream, req);
+            return;
+        }
+
+        CRC32C checksum = Checksum.CRC32C.equals(req.options.get(Checksum.OPTION)) ? new CRC32C() : null;
+
+        // The client deflates uploads that are worth compressing
+        if (Compression.DEFLATE.equals(req.options.get(Compression.OPTION))) {
+            DataBlockInputStream blocks = new DataBlockInputStream(stream);
+            try (InflaterInputStream in = new InflaterInputStream(blocks)) {
+                byte[] buffer = new byte[IO_BUFFER_BYTES];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    dataPacketsBuilder.addData(buffer, 0, read);
+                    if (checksum != null) {
+                        checksum.update(buffer, 0, read);
+                    }
+                }
+                // The inflater stops at the end of the deflate stream, consume the terminating block too
+                while (blocks.read(buffer) != -1) {
+                    // discard
+                }
+            }
+            logger.logCompression(req.filename, dataPacketsBuilder.getSize(), blocks.getBytesRead());
+            logger.logDATAEnd(req.filename, true);
+            if (checksum == null || verifyChecksum(stream, req.filename, checksum)) {
+                dataPacketsBuilder.save();
+            } else {
+                dataPacketsBuilder.reset();
+            }
+            return;
+        }
+
         // Wait for the client to send the first data packet
         int dataSize = TFTPRequestBuilder.MAX_DATA_BYTES - 4;
 
         while (dataSize >= TFTPRequestBuilder.MAX_DATA_BYTES - 4) {
-            byte[] packet = new byte[TFTPRequestBuilder.MAX_DATA_BYTES];
-            int read = in.read(packet);
-            if (read == -1) {
-                throw new TFTPException("Client has disconnected");
-            }
+            byte[] packet = stream.readPacket();
             TFTPRequestDecoder.DataPacket dataPacket = TFTPRequestDecoder.decodeData(packet, 0);
             dataPacketsBuilder.addDataPacket(dataPacket);
+            if (checksum != null) {
+                checksum.update(dataPacket.data, 0, dataPacket.size);
+            }
             dataSize = dataPacket.data.length;
             logger.logDATAReceived(req.filename, dataPacket.blockNumber, dataPacket.size);
         }
 
-        // Last Packet Received, Save the File.
+        // Last Packet Received, Save the File once its checksum, if any, has been verified.
+        logger.logDATAEnd(req.filename, true);
+
+        if (checksum == null || verifyChecksum(stream, req.filename, checksum)) {
+            dataPacketsBuilder.save();
+        } else {
+            dataPacketsBuilder.reset();
+        }
+
+    }
+
+
+    /**
+     * Handles a deduplicated Write Request (WRQ).
+     * The client lists the hash and length of every chunk of the file, the server answers with a bitmap of the chunks
+     * its store is missing, and the client then sends just those chunks back to back, deflated if the WRQ asked for it.
+     * Every chunk received is checked against its hash before it is stored, and an ACK confirms the file was saved.
+     *
+     * @param stream the stream the data arrives on
+     * @param req    the decoded request
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleDedupWRQ(TFTPStream stream, TFTPRequestDecoder.WrqOrRrqPacket req) throws IOException {
+        byte[] buffer = new byte[IO_BUFFER_BYTES];
+
+        // Read the chunk list: a count, then the hash and length of every chunk
+        DataBlockInputStream listBlocks = new DataBlockInputStream(stream);
+        DataInputStream list = new DataInputStream(listBlocks);
+        int count = list.readInt();
+        // Every chunk but the last is at least MIN_SIZE long, so the size of the file bounds their number
+        long transferSize = TFTPRequestDecoder.decodeTransferSize(req.options);
+        int maxCount = transferSize >= 0 ? (int) Math.min(transferSize / Chunker.MIN_SIZE + 1, MAX_CHUNKS) : MAX_CHUNKS;
+        if (count < 0 || count > maxCount) {
+            sendError(stream, 0x04, "Invalid chunk count " + count);
+            return;
+        }
+        List<Chunker.Chunk> chunks = new ArrayList<>();
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[Chunker.HASH_BYTES];
+            list.readFully(hash);
+            int length = list.readInt();
+            if (length <= 0 || length > Chunker.MAX_SIZE) {
+                sendError(stream, 0x04, "Invalid chunk length " + length);
+                return;
+            }
+            chunks.add(new Chunker.Chunk(hash, offset, length));
+            offset += length;
+        }
+        while (listBlocks.read(buffer) != -1) {
+            // consume the terminating block
+        }
+
+        // Answer with one bit per chunk, set for the chunks the store is missing
+        byte[] missing = new byte[(count + 7) / 8];
+        int newChunks = 0;
+        long newBytes = 0;
+        for (int i = 0; i < count; i++) {
+            if (!store.contains(chunks.get(i).hash)) {
+                missing[i / 8] |= (byte) (1 << (i % 8));
+                newChunks++;
+                newBytes += chunks.get(i).length;
+            }
+        }
+        // Only the missing chunks take up space, so a large file the store mostly holds is not refused
+        if (!hasSpace(stream, newBytes)) {
+            return;
+        }
+        try (DataBlockOutputStream out = new DataBlockOutputStream(stream)) {
+            out.write(missing);
+        }
+        stream.flush();
+
+        // Store the missing chunks as they arrive, checking each against its hash
+        boolean direct = store.isDirect(offset);
+        DataBlockInputStream bodyBlocks = new DataBlockInputStream(stream);
+        boolean intact = true;
+        try (InputStream bodies = Compression.DEFLATE.equals(req.options.get(Compression.OPTION))
+                ? new InflaterInputStream(bodyBlocks) : bodyBlocks) {
+            DataInputStream in = new DataInputStream(bodies);
+            MessageDigest digest = Chunker.newDigest();
+            for (int i = 0; i < count; i++) {
+                if ((missing[i / 8] & (1 << (i % 8))) == 0) {
+                    continue;
+                }
+                Chunker.Chunk chunk = chunks.get(i);
+                byte[] data = new byte[chunk.length];
+                in.readFully(data);
+                if (MessageDigest.isEqual(digest.digest(data), chunk.hash)) {
+                    store.put(chunk.hash, data, 0, data.length, direct);
+                } else {
+                    intact = false;
+                }
+            }
+            while (bodyBlocks.read(buffer) != -1) {
+                // consume the terminating block
+            }
+        }
+        logger.logDATAEnd(req.filename, true);
+        if (!intact) {
+            sendError(stream, 0x00, "Chunk of " + req.filename + " does not match its hash");
+            return;
+        }
+
+        store.putManifest(req.filename, chunks);
+        logger.logFileSave(req.filename);
+        logger.logDedup(req.filename, count, newChunks, bodyBlocks.getBytesRead());
+        int length = TFTPRequestBuilder.createPackAck(buffer, 0);
+        stream.writePacket(buffer, length);
+    }
+
+
+    /**
+     * Handles a delta Write Request (WRQ).
+     * The server accepts it with an OACK and sends the signatures of its current copy of the file: the block size,
+     * the size of the copy and the number of blocks, then the weak checksum and strong hash of every block.
+     * The client answers with COPY and LITERAL instructions, deflated if the WRQ asked for it, and ends them with
+     * the SHA-256 of the new version. The file is rebuilt from the old copy and the literals, and only saved if the
+     * rebuilt contents match that hash. The old copy stays readable until the new one replaces it, since saving goes
+     * through the chunk store.
+     *
+     * @param stream the stream the data arrives on
+     * @param req    the decoded request
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleDeltaWRQ(TFTPStream stream, TFTPRequestDecoder.WrqOrRrqPacket req) throws IOException {
+        byte[] base;
+        int baseSize;
+        try {
+            DataPacketsBuilder current = DataPacketsBuilder.fromFile(req.filename, logger, store);
+            base = current.getData();
+            baseSize = current.getSize();
+        } catch (FileNotFoundException e) {
+            // Without a copy there are no signatures, and the whole file arrives as literals
+            base = new byte[0];
+            baseSize = 0;
+        } catch (TFTPException e) {
+            sendError(stream, 0x03, e.getMessage());
+            return;
+        }
+
+        byte[] buffer = new byte[IO_BUFFER_BYTES];
+        Map<String, String> accepted = new LinkedHashMap<>();
+        accepted.put(Delta.OPTION, Delta.RSYNC);
+        stream.writePacket(buffer, TFTPRequestBuilder.createPackOACK(buffer, accepted));
+
+        // Send the signatures of every block of the current copy
+        int blockSize = Delta.blockSize(baseSize);
+        int count = (baseSize + blockSize - 1) / blockSize;
+        MessageDigest digest = Chunker.newDigest();
+        try (DataOutputStream signatures = new DataOutputStream(new DataBlockOutputStream(stream))) {
+            signatures.writeInt(blockSize);
+            signatures.writeLong(baseSize);
+            signatures.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                int offset = i * blockSize;
+                int length = Math.min(blockSize, baseSize - offset);
+                signatures.writeInt(Delta.weak(base, offset, length));
+                signatures.write(Delta.strong(digest, base, offset, length));
+            }
+        }
+        stream.flush();
+
+        // Rebuild the new version from the instructions
+        DataPacketsBuilder dataPacketsBuilder = new DataPacketsBuilder(logger, store);
+        dataPacketsBuilder.setFilename(req.filename);
+        dataPacketsBuilder.setExpectedSize(Math.max(TFTPRequestDecoder.decodeTransferSize(req.options), 0));
+        DataBlockInputStream blocks = new DataBlockInputStream(stream);
+        long copied = 0;
+        String invalid = null;
+        byte[] expected = new byte[Chunker.HASH_BYTES];
+        try (InputStream instructions = Compression.DEFLATE.equals(req.options.get(Compression.OPTION))
+                ? new InflaterInputStream(blocks) : blocks) {
+            DataInputStream in = new DataInputStream(instructions);
+            int tag;
+            while ((tag = in.readUnsignedByte()) != Delta.END) {
+                if (tag == Delta.LITERAL) {
+                    int length = in.readInt();
+                    if (length <= 0 || length > Delta.MAX_LITERAL) {
+                        invalid = "Invalid literal length " + length;
+                        break;
+                    }
+                    in.readFully(buffer, 0, length);
+                    dataPacketsBuilder.addData(buffer, 0, length);
+                    digest.update(buffer, 0, length);
+                } else if (tag == Delta.COPY) {
+                    int index = in.readInt();
+                    if (index < 0 || index >= count) {
+                        invalid = "Invalid block index " + index;
+                        break;
+                    }
+                    int offset = index * blockSize;
+                    int length = Math.min(blockSize, baseSize - offset);
+                    dataPacketsBuilder.addData(base, offset, length);
+                    digest.update(base, offset, length);
+                    copied += length;
+                } else {
+                    invalid = "Invalid delta instruction " + tag;
+                    break;
+                }
+            }
+            if (invalid == null) {
+                in.readFully(expected);
+            }
+            while (blocks.read(buffer) != -1) {
+                // consume the terminating block
+            }
+        }
         logger.logDATAEnd(req.filename, true);
+        if (invalid != null) {
+            dataPacketsBuilder.reset();
+            sendError(stream, 0x04, invalid);
+            return;
+        }
+        if (!MessageDigest.isEqual(digest.digest(), expected)) {
+            dataPacketsBuilder.reset();
+            sendError(stream, 0x00, "Rebuilt " + req.filename + " does not match its hash");
+            return;
+        }
 
+        logger.logDelta(req.filename, dataPacketsBuilder.getSize(), copied, blocks.getBytesRead());
         dataPacketsBuilder.save();
+        int length = TFTPRequestBuilder.createPackAck(buffer, 0);
+        stream.writePacket(buffer, length);
+    }
+
+
+    /**
+     * Checks that the store has room for the bytes an upload adds, answering with a disk full error if it does not.
+     * Chunks are only written as they arrive, so nothing is reserved: the check just fails a transfer that cannot fit
+     * before any of it is sent, instead of part way through.
+     *
+     * @param stream the stream to answer on
+     * @param bytes  the number of bytes the upload adds, or -1 if unknown
+     * @return true if the upload fits or its size is unknown, false if it was refused
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean hasSpace(TFTPStream stream, long bytes) throws IOException {
+        if (bytes <= store.getFiles().getUsableSpace()) {
+            return true;
+        }
+        sendError(stream, 0x03, "Disk full or allocation exceeded");
+        return false;
+    }
+
 
+    /**
+     * Sends an error packet to the client.
+     *
+     * @param stream       the stream to answer on
+     * @param errorCode    the TFTP error code
+     * @param errorMessage the error message
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendError(TFTPStream stream, int errorCode, String errorMessage) throws IOException {
+        logger.logError(errorMessage);
+        byte[] buf = new byte[TFTPRequestBuilder.MAX_DATA_BYTES];
+        int len = TFTPRequestBuilder.createPackError(buf, errorCode, errorMessage);
+        stream.writePacket(buf, len);
     }
 
 
     /**
-     * Closes the input and output streams and the client socket.
+     * Closes the connection and the client socket, and stops the stream workers.
      */
     private void closeStreams() {
-        try {
-            in.close();
-            out.close();
-            clientSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        streamExecutor.shutdownNow();
+        if (connection != null) {
+            connection.close();
+        } else {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 }
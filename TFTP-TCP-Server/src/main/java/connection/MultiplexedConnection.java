@@ -0,0 +1,219 @@
+package connection;
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+
+/**
+ * MultiplexedConnection class carries many independent TFTP streams over a single TCP connection.
+ * <p>
+ * Every frame on the wire is laid out as {@code length (2) | type (1) | stream id (4) | payload}.
+ * PACKET frames carry one TFTP packet for a stream, and WINDOW_UPDATE frames return flow-control
+ * credit to the sender of a stream, so a large transfer on one stream cannot starve the others.
+ * <p>
+ * As in HTTP/2, the ids of the streams the peer opens must increase, so a late frame of a stream already served is
+ * dropped instead of starting its request again. The peer may have at most {@link #MAX_STREAMS} streams open at once,
+ * and may not send a stream more than its flow-control window; either is a protocol error that closes the connection.
+ */
+public class MultiplexedConnection {
+
+    static final int TYPE_PACKET = 0;
+    static final int TYPE_WINDOW_UPDATE = 1;
+
+    /**
+     * Number of payload bytes a stream may have in flight before the receiver grants more credit.
+     */
+    static final int INITIAL_WINDOW = 65536;
+
+    /**
+     * Number of streams the peer may have open at once.
+     */
+    public static final int MAX_STREAMS = 64;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    // Fair lock so that streams writing at the same time interleave frame by frame
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private final Map<Integer, TFTPStream> streams = new ConcurrentHashMap<>();
+    private int highestStreamId = 0;// Highest id of a stream the peer opened, every lower id is open or served
+    private int streamLimit = MAX_STREAMS;// Streams the peer may have open at once, as the server counts them
+    private volatile boolean closed;
+
+
+    /**
+     * Listener notified when the peer opens a new stream.
+     */
+    public interface StreamListener {
+
+        /**
+         * Called from the reading thread when the first frame of a new stream arrives.
+         *
+         * @param stream the newly opened stream
+         */
+        void streamOpened(TFTPStream stream);
+    }
+
+
+    /**
+     * Constructor for MultiplexedConnection.
+     *
+     * @param socket the connected socket
+     * @throws IOException if the socket streams cannot be opened
+     */
+    public MultiplexedConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+
+    /**
+     * Reads frames and dispatches them to their streams until the connection closes or goes idle.
+     * A connection only counts as idle when no read arrives within the timeout and no stream is active.
+     *
+     * @param listener      the listener notified of streams opened by the peer
+     * @param idleTimeoutMs the idle timeout in milliseconds
+     * @throws SocketTimeoutException if the connection was idle for too long
+     * @throws EOFException           if the peer closed the connection
+     * @throws IOException            if an I/O error occurs
+     */
+    public void readFrames(StreamListener listener, int idleTimeoutMs) throws IOException {
+        socket.setSoTimeout(idleTimeoutMs);
+        try {
+            while (true) {
+                int first;
+                try {
+                    first = in.read();
+                } catch (SocketTimeoutException e) {
+                    if (streams.isEmpty()) {
+                        throw e;
+                    }
+                    continue;
+                }
+                if (first == -1) {
+                    throw new EOFException("Connection closed");
+                }
+                int length = (first << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int streamId = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                TFTPStream stream = streams.get(streamId);
+                if (type == TYPE_PACKET) {
+                    if (stream == null) {
+                        if (streamId <= highestStreamId) {
+                            // A late frame of a stream already served, its request must not run again
+                            continue;
+                        }
+                        if (streams.size() >= streamLimit) {
+                            throw new ProtocolException("More than " + streamLimit + " streams open at once");
+                        }
+                        highestStreamId = streamId;
+                        stream = new TFTPStream(this, streamId);
+                        streams.put(streamId, stream);
+                        listener.streamOpened(stream);
+                    }
+                    stream.deliver(payload);
+                } else if (type == TYPE_WINDOW_UPDATE && stream != null) {
+                    stream.grantWindow(new DataInputStream(new ByteArrayInputStream(payload)).readInt());
+                }
+            }
+        } catch (IOException e) {
+            // Nothing more can arrive, so the streams failing below are not errors of their own
+            closed = true;
+            for (TFTPStream stream : streams.values()) {
+                stream.fail(e);
+            }
+            throw e;
+        }
+    }
+
+
+    /**
+     * Allows streams beyond {@link #MAX_STREAMS} that are still open on this side only: the peer closes a stream as
+     * soon as it has read the response, which may be before the worker that sent it is done with the stream.
+     *
+     * @param workers the number of streams served at once
+     */
+    public void setFinishingStreams(int workers) {
+        streamLimit = MAX_STREAMS + workers;
+    }
+
+
+    /**
+     * Writes a single frame. Frames from different streams are interleaved but never split.
+     *
+     * @param type     the frame type
+     * @param streamId the stream the frame belongs to
+     * @param buf      the buffer holding the payload
+     * @param length   the length of the payload
+     * @throws IOException if an I/O error occurs
+     */
+    void writeFrame(int type, int streamId, byte[] buf, int length) throws IOException {
+        writeLock.lock();
+        try {
+            out.writeShort(length);
+            out.writeByte(type);
+            out.writeInt(streamId);
+            out.write(buf, 0, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    /**
+     * Flushes any queued frames to the peer.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes a stream once its request has been fully served.
+     *
+     * @param stream the finished stream
+     */
+    public void closeStream(TFTPStream stream) {
+        streams.remove(stream.getId());
+    }
+
+
+    /**
+     * Closes the connection and the underlying socket.
+     */
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Checks whether the connection has been closed.
+     *
+     * @return true if the connection is closed, false otherwise
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,617 @@
+package request;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+
+/**
+ * BlockCache class keeps the contents of recently read files in memory, shared by every request the server serves.
+ * Files are cached in blocks of {@link #BLOCK_BYTES} bytes, held in one direct buffer allocated up front, so the cache
+ * never grows past its capacity and cached contents put no pressure on the garbage collector.
+ * Blocks are keyed by file, modification time, size and block index, so a file that changes is simply read again
+ * and its stale blocks age out. An opened plain file keeps reading the version it opened, so an upload replacing it
+ * mid-transfer never tears the data sent. Concurrent misses on the same block share a single disk read. When the cache is full, a CLOCK sweep evicts the first block not read since the
+ * previous sweep.
+ * A file read in order has its next blocks loaded ahead of the reader by background threads, so the reader finds them
+ * cached or already on their way instead of stalling on every block. How far ahead follows how long a block takes to
+ * load against how fast the reader consumes them, so slow disks and network file systems stream without gaps.
+ */
+public class BlockCache {
+
+    /**
+     * Size of a cached block, in bytes.
+     */
+    public static final int BLOCK_BYTES = 65536;
+
+    /**
+     * Capacity used by the server, in bytes.
+     */
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    // Parsed manifests kept for files in the chunk store, so a hit needs no manifest read
+    private static final int MAX_MANIFESTS = 256;
+
+    /**
+     * Fewest and most blocks loaded ahead of a sequential reader.
+     */
+    public static final int MIN_READ_AHEAD_BLOCKS = 2;
+    public static final int MAX_READ_AHEAD_BLOCKS = 32;
+
+    // Threads loading blocks ahead of the readers
+    private static final int READ_AHEAD_THREADS = 4;
+
+    private final ChunkStore store;
+    private final FileStore files;
+    private final MissingFiles missingFiles;
+
+    private final ByteBuffer slab;
+    private final Key[] keys;
+    private final int[] lengths;
+    private final boolean[] referenced;
+    private final Map<Key, Integer> slots = new HashMap<>();
+    // Blocks being read from disk, which readers missing the same block wait for
+    private final Map<Key, CompletableFuture<byte[]>> loading = new HashMap<>();
+    private int used = 0;
+    private int hand = 0;
+    private final ExecutorService readAhead;
+    // Average time to load a block from disk, in nanoseconds
+    private long loadNanos = 0;
+
+    private final Map<String, ChunkStore.Manifest> manifests = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ChunkStore.Manifest> eldest) {
+            return size() > MAX_MANIFESTS;
+        }
+    };
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long coalesced = 0;
+    private long readAheads = 0;
+
+
+    /**
+     * Identifies one block of one version of a file.
+     */
+    private static class Key {
+        private final String filename;
+        private final long modified;
+        private final long size;
+        private final long block;
+
+        // Constructor for the key
+        private Key(String filename, long modified, long size, long block) {
+            this.filename = filename;
+            this.modified = modified;
+            this.size = size;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return modified == key.modified && size == key.size && block == key.block && filename.equals(key.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(filename, modified, size, block);
+        }
+    }
+
+
+    /**
+     * A version of a file opened through the cache, to be closed once the transfer is over.
+     */
+    public class CachedFile implements Closeable {
+        private final String filename;
+        private final long modified;
+        private final long size;
+        private final ChunkStore.Manifest manifest;// Chunks of the file, or null for a plain file
+        private final ByteBuffer mapped;// Contents the file store holds in memory, or null if they are read through the cache
+        private final FileStore.ReadChannel channel;// Channel the blocks of a plain file are loaded through, or null
+        // Read-ahead state, only used by the thread reading the file
+        private long lastBlock = -1;// Block the reader was last in
+        private long lastBlockNanos = 0;// When the reader entered it
+        private long blockNanos = 0;// Average time the reader spends on a block
+        private long loadedAhead = -1;// Last block loaded ahead of the reader
+        private final List<CompletableFuture<byte[]>> aheadLoads = new ArrayList<>();
+
+        // Constructor for the cached file
+        private CachedFile(String filename, long modified, long size, ChunkStore.Manifest manifest, ByteBuffer mapped,
+                           FileStore.ReadChannel channel) {
+            this.filename = filename;
+            this.modified = modified;
+            this.size = size;
+            this.manifest = manifest;
+            this.mapped = mapped;
+            this.channel = channel;
+        }
+
+        /**
+         * Gets the size of the file.
+         *
+         * @return the size of the file in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Reads bytes of the file, starting at a given position, from the cache or from disk on a miss.
+         * Files the store holds in memory, such as the files of a pack, are copied straight from it instead.
+         *
+         * @param position the offset of the first byte to read
+         * @param buf      the buffer to fill
+         * @param offset   the offset in the buffer of the first byte to fill
+         * @param length   the maximum number of bytes to read
+         * @return the number of bytes read, 0 at the end of the file
+         * @throws IOException if the file cannot be read
+         */
+        public int read(long position, byte[] buf, int offset, int length) throws IOException {
+            if (mapped != null) {
+                int count = (int) Math.max(0, Math.min(length, mapped.capacity() - position));
+                ByteBuffer slice = mapped.duplicate();
+                slice.position((int) Math.min(position, mapped.capacity()));
+                slice.get(buf, offset, count);
+                return count;
+            }
+            int read = 0;
+            while (read < length && position < size) {
+                long block = position / BLOCK_BYTES;
+                if (block != lastBlock) {
+                    enterBlock(block);
+                }
+                int from = (int) (position - block * BLOCK_BYTES);
+                int count = readBlock(this, block, from, buf, offset + read, length - read);
+                if (count == 0) {
+                    // The file shrank since it was opened
+                    break;
+                }
+                read += count;
+                position += count;
+            }
+            return read;
+        }
+
+        /**
+         * Tracks the reader moving to another block, and loads the blocks after it ahead if it reads in order.
+         *
+         * @param block the block the reader moves to
+         */
+        private void enterBlock(long block) {
+            long now = System.nanoTime();
+            if (lastBlock >= 0 && block == lastBlock + 1) {
+                long spent = now - lastBlockNanos;
+                blockNanos = blockNanos == 0 ? spent : (blockNanos * 7 + spent) / 8;
+            } else {
+                // A seek, what was loaded ahead of the old position does not help
+                loadedAhead = block;
+            }
+            lastBlock = block;
+            lastBlockNanos = now;
+            long last = (size - 1) / BLOCK_BYTES;
+            long end = Math.min(last, block + readAheadBlocks(blockNanos));
+            aheadLoads.removeIf(CompletableFuture::isDone);
+            for (long ahead = Math.max(loadedAhead, block) + 1; ahead <= end; ahead++) {
+                CompletableFuture<byte[]> load = loadAhead(this, ahead);
+                if (load != null) {
+                    aheadLoads.add(load);
+                }
+                loadedAhead = ahead;
+            }
+        }
+
+        /**
+         * Closes the channel of a plain file, once the blocks being loaded ahead through it are in.
+         * Cached blocks of the file stay in the cache.
+         */
+        @Override
+        public void close() {
+            for (CompletableFuture<byte[]> load : aheadLoads) {
+                // Other readers of this version may be waiting for the load, so it has to finish rather than fail
+                load.handle((data, e) -> null).join();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing was written through the channel, so nothing can be lost
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Constructor for BlockCache.
+     *
+     * @param capacity the number of bytes the cache may hold, rounded down to whole blocks
+     * @param store    the chunk store, whose file store holds the files that are not in the chunk store
+     */
+    public BlockCache(long capacity, ChunkStore store) {
+        int count = (int) Math.min(capacity / BLOCK_BYTES, Integer.MAX_VALUE / BLOCK_BYTES);
+        this.store = store;
+        files = store.getFiles();
+        Path directory = files.getDirectory();
+        // Only a store on disk can be watched, and looking a name up in any other store is cheap anyway
+        missingFiles = directory == null ? new MissingFiles() : new MissingFiles(directory, store.getManifestDirectory());
+        slab = ByteBuffer.allocateDirect(count * BLOCK_BYTES);
+        keys = new Key[count];
+        lengths = new int[count];
+        referenced = new boolean[count];
+        readAhead = Executors.newFixedThreadPool(READ_AHEAD_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /**
+     * Opens the current version of a file, from the chunk store if it holds the file, or from the served folder.
+     * Names recently found missing are answered from memory, without looking at the disk.
+     * The file must be closed once read.
+     *
+     * @param filename the name of the file
+     * @return the opened file, or null if the file does not exist
+     * @throws java.nio.file.AccessDeniedException if the name would reach outside the served folder or into the chunk store
+     * @throws IOException if the file's attributes cannot be read
+     */
+    public CachedFile open(String filename) throws IOException {
+        FileStore.checkRequestName(filename);
+        if (missingFiles.isMissing(filename)) {
+            return null;
+        }
+        long appeared = missingFiles.getAppeared();
+        long modified = store.manifestModified(filename);
+        if (modified >= 0) {
+            String version = filename + '@' + modified;
+            ChunkStore.Manifest manifest;
+            synchronized (this) {
+                manifest = manifests.get(version);
+            }
+            if (manifest == null) {
+                manifest = store.getManifest(filename);
+                if (manifest == null) {
+                    return null;
+                }
+                synchronized (this) {
+                    manifests.put(version, manifest);
+                }
+            }
+            return new CachedFile(filename, modified, manifest.size, manifest, null, null);
+        }
+
+        FileStore.Attributes attributes = files.stat(filename);
+        if (attributes == null) {
+            missingFiles.add(filename, appeared);
+            return null;
+        }
+        ByteBuffer mapped = files.map(filename);
+        if (mapped != null) {
+            return new CachedFile(filename, attributes.modified, attributes.size, null, mapped, null);
+        }
+
+        // Blocks are loaded through the channel opened here, so they all come from this version even if an upload
+        // moves a new one into place meanwhile
+        FileStore.ReadChannel channel;
+        try {
+            channel = files.openRead(filename);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        FileStore.Attributes opened = files.stat(filename);
+        if (opened == null || opened.modified != attributes.modified || opened.size != channel.size()) {
+            // The file was replaced while it was being opened, open the new version instead
+            channel.close();
+            return open(filename);
+        }
+        return new CachedFile(filename, attributes.modified, attributes.size, null, null, channel);
+    }
+
+
+    /**
+     * Forgets that a file was missing, once the server has stored it.
+     *
+     * @param filename the name of the file
+     */
+    public void forgetMissing(String filename) {
+        missingFiles.forget(filename);
+    }
+
+
+    /**
+     * Reads bytes of one block of a file, loading the block into the cache on a miss.
+     * The disk is read outside the lock, so a miss does not hold up hits on other blocks. Only the first reader to
+     * miss a block loads it: readers missing the same block while that load is in flight wait for its result instead
+     * of reading the disk themselves, so a crowd of clients asking for the same file causes one read per block.
+     *
+     * @param file   the file
+     * @param block  the index of the block
+     * @param from   the offset in the block of the first byte to read
+     * @param buf    the buffer to fill
+     * @param offset the offset in the buffer of the first byte to fill
+     * @param length the maximum number of bytes to read
+     * @return the number of bytes read
+     * @throws IOException if the block cannot be read from disk
+     */
+    private int readBlock(CachedFile file, long block, int from, byte[] buf, int offset, int length) throws IOException {
+        Key key = new Key(file.filename, file.modified, file.size, block);
+        CompletableFuture<byte[]> load;
+        boolean loader = false;
+        synchronized (this) {
+            Integer slot = slots.get(key);
+            if (slot != null) {
+                hits++;
+                referenced[slot] = true;
+                int count = Math.max(0, Math.min(lengths[slot] - from, length));
+                slab.position(slot * BLOCK_BYTES + from);
+                slab.get(buf, offset, count);
+                return count;
+            }
+            load = loading.get(key);
+            if (load == null) {
+                misses++;
+                load = new CompletableFuture<>();
+                loading.put(key, load);
+                loader = true;
+            } else {
+                coalesced++;
+            }
+        }
+
+        byte[] data = loader ? loadBlock(file, block, key, load) : await(load);
+        int count = Math.max(0, Math.min(data.length - from, length));
+        System.arraycopy(data, from, buf, offset, count);
+        return count;
+    }
+
+
+    /**
+     * Starts loading a block in the background, unless it is cached or already being loaded.
+     * The load is registered like a reader's miss, so the reader reaching the block waits for it instead of reading
+     * the disk again.
+     *
+     * @param file  the file
+     * @param block the index of the block
+     * @return the load started, or null if none was needed
+     */
+    private CompletableFuture<byte[]> loadAhead(CachedFile file, long block) {
+        Key key = new Key(file.filename, file.modified, file.size, block);
+        CompletableFuture<byte[]> load;
+        synchronized (this) {
+            if (slots.containsKey(key) || loading.containsKey(key)) {
+                return null;
+            }
+            readAheads++;
+            load = new CompletableFuture<>();
+            loading.put(key, load);
+        }
+        CompletableFuture<byte[]> started = load;
+        readAhead.execute(() -> {
+            try {
+                loadBlock(file, block, key, started);
+            } catch (IOException | RuntimeException e) {
+                // the reader reaching the block gets the error from the load
+            }
+        });
+        return load;
+    }
+
+
+    /**
+     * Works out how many blocks to keep loading ahead of a reader: enough to cover the time a block takes to load at
+     * the pace the reader consumes them, and at least two, so one block is on its way while the reader is in another.
+     *
+     * @param blockNanos the average time the reader spends on a block, in nanoseconds
+     * @return the number of blocks to load ahead
+     */
+    private synchronized int readAheadBlocks(long blockNanos) {
+        if (blockNanos <= 0) {
+            return MIN_READ_AHEAD_BLOCKS;
+        }
+        long needed = loadNanos / blockNanos + 1;
+        return (int) Math.max(MIN_READ_AHEAD_BLOCKS, Math.min(MAX_READ_AHEAD_BLOCKS, needed + 1));
+    }
+
+
+    /**
+     * Loads a block from disk into the cache, and hands it to the readers waiting for it.
+     *
+     * @param file  the file
+     * @param block the index of the block
+     * @param key   the key of the block
+     * @param load  the in-flight load the waiting readers are attached to
+     * @return the bytes of the block
+     * @throws IOException if the block cannot be read from disk
+     */
+    private byte[] loadBlock(CachedFile file, long block, Key key, CompletableFuture<byte[]> load) throws IOException {
+        byte[] data;
+        long started = System.nanoTime();
+        try {
+            data = load(file, block);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                loading.remove(key);
+            }
+            load.completeExceptionally(e);
+            throw e;
+        }
+        long took = System.nanoTime() - started;
+        synchronized (this) {
+            loadNanos = loadNanos == 0 ? took : (loadNanos * 7 + took) / 8;
+            if (keys.length > 0) {
+                int slot = freeSlot();
+                keys[slot] = key;
+                lengths[slot] = data.length;
+                // A block read only once is the first to go
+                referenced[slot] = false;
+                slab.position(slot * BLOCK_BYTES);
+                slab.put(data);
+                slots.put(key, slot);
+            }
+            loading.remove(key);
+        }
+        load.complete(data);
+        return data;
+    }
+
+
+    /**
+     * Waits for another reader's load of a block.
+     *
+     * @param load the in-flight load
+     * @return the bytes of the block
+     * @throws IOException if the load failed or the wait was interrupted
+     */
+    private static byte[] await(CompletableFuture<byte[]> load) throws IOException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+
+    /**
+     * Reads one block of a file from disk.
+     *
+     * @param file  the file
+     * @param block the index of the block
+     * @return the bytes of the block, fewer than expected if the file shrank
+     * @throws IOException if the block cannot be read
+     */
+    private byte[] load(CachedFile file, long block) throws IOException {
+        long start = block * BLOCK_BYTES;
+        byte[] data = new byte[(int) Math.min(BLOCK_BYTES, file.size - start)];
+        int read = 0;
+        if (file.manifest != null) {
+            read = store.read(file.manifest, start, data, 0, data.length);
+        } else {
+            read = file.channel.readFully(ByteBuffer.wrap(data), start);
+        }
+        return read == data.length ? data : Arrays.copyOf(data, read);
+    }
+
+
+    /**
+     * Finds a slot for a new block, evicting one if the cache is full.
+     * The CLOCK hand clears the reference bit of every block it passes and stops at the first one already clear.
+     *
+     * @return the index of the slot
+     */
+    private int freeSlot() {
+        if (used < keys.length) {
+            return used++;
+        }
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % keys.length;
+        }
+        int slot = hand;
+        hand = (hand + 1) % keys.length;
+        slots.remove(keys[slot]);
+        evictions++;
+        return slot;
+    }
+
+
+    /**
+     * Gets the number of reads served from the cache.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    /**
+     * Gets the number of reads that had to go to disk.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    /**
+     * Gets the number of reads that missed while another reader was already loading the same block, and waited for it.
+     *
+     * @return the number of coalesced reads
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+
+    /**
+     * Gets the number of blocks loaded ahead of a reader.
+     *
+     * @return the number of blocks loaded ahead
+     */
+    public synchronized long getReadAheads() {
+        return readAheads;
+    }
+
+
+    /**
+     * Gets the number of blocks evicted to make room for others.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+
+    /**
+     * Gets the number of bytes of file contents held in the cache.
+     *
+     * @return the number of cached bytes
+     */
+    public synchronized long getUsedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < used; i++) {
+            bytes += lengths[i];
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Gets the capacity of the cache.
+     *
+     * @return the number of bytes the cache may hold
+     */
+    public long getCapacity() {
+        return slab.capacity();
+    }
+}
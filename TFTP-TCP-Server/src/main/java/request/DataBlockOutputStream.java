@@ -0,0 +1,121 @@
+package request;
+import connection.TFTPStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+
+/**
+ * DataBlockOutputStream class turns a stream of bytes into consecutive DATA packets on a {@link TFTPStream}.
+ * Closing the output stream sends the final short (possibly empty) block that ends the transfer,
+ * but leaves the underlying TFTP stream open.
+ */
+public class DataBlockOutputStream extends OutputStream {
+
+    private static final int BLOCK_SIZE = TFTPRequestBuilder.MAX_DATA_BYTES - 4;
+
+    private final TFTPStream stream;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] packet = new byte[TFTPRequestBuilder.MAX_DATA_BYTES];
+    private int size = 0;
+    private int blockNumber = 1;
+    private long bytesWritten = 0;
+    private boolean closed = false;
+
+
+    /**
+     * Constructor for DataBlockOutputStream.
+     *
+     * @param stream the stream to send the DATA packets on
+     */
+    public DataBlockOutputStream(TFTPStream stream) {
+        this.stream = stream;
+    }
+
+
+    /**
+     * Writes a single byte.
+     *
+     * @param b the byte to write
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void write(int b) throws IOException {
+        block[size++] = (byte) b;
+        bytesWritten++;
+        if (size == BLOCK_SIZE) {
+            sendBlock();
+        }
+    }
+
+
+    /**
+     * Writes a slice of a buffer, sending every block as soon as it is full.
+     *
+     * @param buf    the buffer holding the bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes to write
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, BLOCK_SIZE - size);
+            System.arraycopy(buf, offset, block, size, count);
+            size += count;
+            offset += count;
+            length -= count;
+            bytesWritten += count;
+            if (size == BLOCK_SIZE) {
+                sendBlock();
+            }
+        }
+    }
+
+
+    /**
+     * Gets the number of bytes written so far.
+     *
+     * @return the number of bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+
+    /**
+     * Gets the number of the next block to be sent, which once the stream is closed is the block following the transfer.
+     *
+     * @return the next block number, wrapped to 16 bits
+     */
+    public int getBlockNumber() {
+        return blockNumber & 0xFFFF;
+    }
+
+
+    /**
+     * Sends the final short block, ending the transfer.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            sendBlock();
+        }
+    }
+
+
+    /**
+     * Sends the buffered block as a DATA packet.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendBlock() throws IOException {
+        // Block numbers wrap around for transfers larger than 32 MB
+        int length = TFTPRequestBuilder.createPackData(packet, blockNumber++ & 0xFFFF, block, 0, size);
+        stream.writePacket(packet, length);
+        size = 0;
+    }
+}
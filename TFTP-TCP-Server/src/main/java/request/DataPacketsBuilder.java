@@ -1,11 +1,17 @@
 package request;
 import exceptions.TFTPException;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
 
 
 
 /**
  * DataPacketsBuilder class is responsible for building data packets for a given file and saving them to a file.
+ * Saved files go to the {@link ChunkStore}, so the content they share with earlier uploads is not written again.
+ * Data added to the builder is stored behind the transfer by a {@link WriteBehind}, rather than held until the file
+ * is complete, so only files read with {@link #fromFile} are kept whole in memory.
  */
 public class DataPacketsBuilder {
     private static final int MAX_BYTES_PER_FILE = 33554432; // 32 MB limit on file size in TFTP
@@ -13,18 +19,22 @@ public class DataPacketsBuilder {
     private byte[] data;
     private int size = 0;
     private String filename;
+    private WriteBehind upload;// Stores the data added, created by the first add
+    private long expectedSize = 0;// Size the client announced for the file, 0 if unknown
 
     private RequestHandlerLogger logger;
+    private final ChunkStore store;
 
 
     /**
      * Constructor for DataPacketsBuilder.
      *
      * @param logger the logger to use for logging
+     * @param store  the chunk store files are saved to
      */
-    public DataPacketsBuilder(RequestHandlerLogger logger) {
-        data = new byte[MAX_BYTES_PER_FILE];
+    public DataPacketsBuilder(RequestHandlerLogger logger, ChunkStore store) {
         this.logger = logger;
+        this.store = store;
     }
 
 
@@ -33,34 +43,49 @@ public class DataPacketsBuilder {
      *
      * @param filename the name of the file
      * @param logger   the logger to use for logging
+     * @param store    the chunk store, whose file store holds the files that are not in the chunk store
      * @return a DataPacketsBuilder instance
      * @throws TFTPException if there is an error in the TFTP protocol
      * @throws IOException   if an I/O error occurs
      */
-    public static DataPacketsBuilder fromFile(String filename, RequestHandlerLogger logger) throws TFTPException, IOException {
-        DataPacketsBuilder dataPacketsBuilder = new DataPacketsBuilder(logger);
+    public static DataPacketsBuilder fromFile(String filename, RequestHandlerLogger logger, ChunkStore store) throws TFTPException, IOException {
+        DataPacketsBuilder dataPacketsBuilder = new DataPacketsBuilder(logger, store);
         dataPacketsBuilder.setFilename(filename);
 
-        String path = new File(".").getCanonicalPath() + '/' + filename;
-        // Create the file
-        File file = new File(path);
+        // Files uploaded to the server are rebuilt from their chunks
+        ChunkStore.Manifest manifest = store.getManifest(filename);
+        if (manifest != null) {
+            if (manifest.size > MAX_BYTES_PER_FILE) {
+                throw new TFTPException("File is too large");
+            }
+            byte[] data = new byte[(int) manifest.size];
+            store.read(manifest, 0, data, 0, data.length);
+            dataPacketsBuilder.setData(data);
+            return dataPacketsBuilder;
+        }
 
-        // Check if the file exists
-        if (!file.exists()) {
+        // Check if the file exists, the version opened is read whole even if an upload replaces it meanwhile
+        if (store.getFiles().stat(filename) == null) {
             throw new FileNotFoundException("File does not exist");
         }
-
-        // Check if the file is too large
-        if (file.length() > MAX_BYTES_PER_FILE) {
-            throw new TFTPException("File is too large");
+        FileStore.ReadChannel channel;
+        try {
+            channel = store.getFiles().openRead(filename);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("File does not exist");
         }
 
-        // Read the file into the data packets builder
-        byte[] data = new byte[(int) file.length()];
-        FileInputStream fis = new FileInputStream(file);
-        fis.read(data);
-        fis.close();
-        dataPacketsBuilder.setData(data);
+        try (channel) {
+            // Check if the file is too large
+            if (channel.size() > MAX_BYTES_PER_FILE) {
+                throw new TFTPException("File is too large");
+            }
+
+            // Read the file into the data packets builder
+            byte[] data = new byte[(int) channel.size()];
+            int read = channel.readFully(ByteBuffer.wrap(data), 0);
+            dataPacketsBuilder.setData(read == data.length ? data : Arrays.copyOf(data, read));
+        }
         return dataPacketsBuilder;
     }
 
@@ -77,6 +102,16 @@ public class DataPacketsBuilder {
     }
 
 
+    /**
+     * Sets the size the client announced for the file being received, before any of it is added.
+     *
+     * @param expectedSize the size of the file in bytes, 0 if unknown
+     */
+    public void setExpectedSize(long expectedSize) {
+        this.expectedSize = expectedSize;
+    }
+
+
     /**
      * Sets the data.
      *
@@ -94,13 +129,28 @@ public class DataPacketsBuilder {
      * @param dataPacket the data packet to add
      */
     public void addDataPacket(TFTPRequestDecoder.DataPacket dataPacket) {
-        System.arraycopy(dataPacket.data, 0, data, size, dataPacket.size);
-        size += dataPacket.size;
+        addData(dataPacket.data, 0, dataPacket.size);
     }
 
 
     /**
-     * Gets the data.
+     * Appends a slice of a buffer to the file being received.
+     *
+     * @param buf    the buffer holding the bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes to append
+     */
+    public void addData(byte[] buf, int offset, int length) {
+        if (upload == null) {
+            upload = new WriteBehind(store, expectedSize);
+        }
+        upload.write(buf, offset, length);
+        size += length;
+    }
+
+
+    /**
+     * Gets the data of a file read with {@link #fromFile}.
      *
      * @return the data
      */
@@ -142,37 +192,34 @@ public class DataPacketsBuilder {
 
 
     /**
-     * Saves the data packets to a file.
+     * Saves the data packets to the chunk store under the filename.
      *
      * @throws IOException if an I/O error occurs
      */
     public void save() throws IOException {
-
-        // Save the file into the resources folder of the project
-        // Get the resources folder
-        String path = new File(".").getCanonicalPath() + '/' + filename;
-
-        // Create the file
-        File file = new File(path);
-
-        logger.logFileSave(path);
-
-        FileOutputStream fos = new FileOutputStream(file);
-
-        fos.write(data, 0, size);
-
-        fos.flush();
+        if (upload == null) {
+            upload = new WriteBehind(store, expectedSize);
+        }
+        // Most of the file is already stored, only the last buffer and the manifest are left to wait for
+        upload.finishAndWait(filename);
+        logger.logFileSave(filename);
+        logger.logDedup(filename, upload.getChunkCount(), upload.getNewChunkCount(), size);
+        upload = null;
         reset();
-
     }
 
     /**
-     * Resets the builder.
+     * Resets the builder, abandoning the file being received if it was not saved.
      */
     public void reset() {
+        if (upload != null) {
+            upload.abandon();
+            upload = null;
+        }
         size = 0;
+        expectedSize = 0;
         filename = null;
-        data = new byte[MAX_BYTES_PER_FILE];
+        data = null;
     }
 
 
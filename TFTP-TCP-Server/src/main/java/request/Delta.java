@@ -0,0 +1,91 @@
+package request;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+
+
+/**
+ * Delta class holds the settings and checksums of rsync-style delta uploads.
+ * The server cuts its current copy of a file into fixed-size blocks and sends a weak rolling checksum and a strong hash
+ * of each one. The client slides a window over the new version looking for those blocks, and answers with instructions
+ * to copy the blocks it found and literal bytes for everything else, followed by the SHA-256 of the whole new file.
+ */
+public class Delta {
+
+    /**
+     * Name of the request option asking for a delta upload, and its supported value.
+     */
+    public static final String OPTION = "delta";
+    public static final String RSYNC = "rsync";
+
+    /**
+     * Instruction tags of the delta stream.
+     */
+    public static final int LITERAL = 0;
+    public static final int COPY = 1;
+    public static final int END = 2;
+
+    /**
+     * Largest number of bytes carried by a single literal instruction.
+     */
+    public static final int MAX_LITERAL = 65536;
+
+    /**
+     * Length of the strong hash sent per block, in bytes. The whole file is checked with a full SHA-256 at the end.
+     */
+    public static final int STRONG_BYTES = 16;
+
+    // Block sizes grow with the square root of the file, keeping the signatures and the literals both small
+    private static final int MIN_BLOCK_SIZE = 1024;
+    private static final int MAX_BLOCK_SIZE = 65536;
+    private static final int BLOCK_ALIGNMENT = 512;
+
+
+    /**
+     * Chooses the block size of the signatures for a file.
+     *
+     * @param fileSize the size of the file in bytes
+     * @return the block size in bytes
+     */
+    public static int blockSize(long fileSize) {
+        long root = (long) Math.sqrt(fileSize);
+        long aligned = (root + BLOCK_ALIGNMENT - 1) / BLOCK_ALIGNMENT * BLOCK_ALIGNMENT;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, aligned));
+    }
+
+
+    /**
+     * Computes the Adler-style weak checksum of a block.
+     * The low 16 bits sum the bytes and the high 16 bits sum the running sums, so the value can be rolled one byte
+     * at a time.
+     *
+     * @param data   the buffer holding the block
+     * @param offset the offset of the block
+     * @param length the length of the block
+     * @return the weak checksum
+     */
+    public static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xFF;
+            b += (length - i) * (data[offset + i] & 0xFF);
+        }
+        return (b << 16) | (a & 0xFFFF);
+    }
+
+
+    /**
+     * Computes the strong hash of a block, a truncated SHA-256.
+     *
+     * @param digest the digest to use
+     * @param data   the buffer holding the block
+     * @param offset the offset of the block
+     * @param length the length of the block
+     * @return the strong hash
+     */
+    public static byte[] strong(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+        return Arrays.copyOf(digest.digest(), STRONG_BYTES);
+    }
+}
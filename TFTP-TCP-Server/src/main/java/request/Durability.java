@@ -0,0 +1,25 @@
+package request;
+
+/**
+ * Durability enum lists the policies for when an uploaded file is forced to disk.
+ * Forcing a file and its directory makes it survive a crash, at the cost of waiting for the disk on every upload.
+ */
+public enum Durability {
+
+    /**
+     * Files are published without forcing them to disk, so a crash may lose the latest uploads.
+     */
+    NONE,
+
+    /**
+     * Every file is forced to disk before it is moved into place, and its directory is forced after, before the
+     * upload is acknowledged.
+     */
+    FSYNC,
+
+    /**
+     * Like {@link #FSYNC}, but a background thread forces the files of many uploads completing together in one batch,
+     * and every directory they are moved into once per batch.
+     */
+    GROUP
+}
@@ -0,0 +1,249 @@
+package request;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+
+
+/**
+ * FileStore interface is where the server keeps the files it serves and the chunks of the files it receives.
+ * Files are named by paths relative to the store, with '/' between directories, and are read and written through
+ * positional channels, so one opened file can serve many readers at different offsets.
+ * A written file only becomes visible once committed, so readers never see a partial one.
+ * Names are checked with {@link #checkName} before use, so a request cannot reach outside the store, and the names
+ * clients ask for with {@link #checkRequestName}, so a request cannot reach the chunk store either.
+ */
+public interface FileStore {
+
+    /**
+     * Attributes class holds the metadata of a stored file.
+     */
+    class Attributes {
+        public final long size;// Size of the file in bytes
+        public final long modified;// Modification time in nanoseconds, which changes every time the file is written
+
+        // Constructor for the attributes
+        public Attributes(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+
+    /**
+     * ReadChannel interface reads a stored file at given positions.
+     */
+    interface ReadChannel extends Closeable {
+
+        /**
+         * Gets the size of the file.
+         *
+         * @return the size of the file in bytes
+         * @throws IOException if the size cannot be read
+         */
+        long size() throws IOException;
+
+        /**
+         * Reads bytes of the file, starting at a given position.
+         *
+         * @param dst      the buffer to fill
+         * @param position the offset of the first byte to read
+         * @return the number of bytes read, -1 at the end of the file
+         * @throws IOException if the file cannot be read
+         */
+        int read(ByteBuffer dst, long position) throws IOException;
+
+        /**
+         * Reads bytes of the file until the buffer is full or the end of the file is reached.
+         *
+         * @param dst      the buffer to fill
+         * @param position the offset of the first byte to read
+         * @return the number of bytes read
+         * @throws IOException if the file cannot be read
+         */
+        default int readFully(ByteBuffer dst, long position) throws IOException {
+            int read = 0;
+            int count;
+            while (dst.hasRemaining() && (count = read(dst, position + read)) > 0) {
+                read += count;
+            }
+            return read;
+        }
+    }
+
+
+    /**
+     * WriteChannel interface writes a new version of a stored file, published by {@link #commit}.
+     * Closing the channel without committing discards what was written. How long a commit waits for the file to be
+     * durable depends on the {@link Durability} of the store.
+     */
+    interface WriteChannel extends Closeable {
+
+        /**
+         * Writes bytes of the file, starting at a given position.
+         *
+         * @param src      the buffer holding the bytes, all of which are written
+         * @param position the offset of the first byte to write
+         * @throws IOException if the file cannot be written
+         */
+        void write(ByteBuffer src, long position) throws IOException;
+
+        /**
+         * Publishes the file, replacing any earlier version, and waits until it is durable.
+         *
+         * @throws IOException if the file cannot be published
+         */
+        default void commit() throws IOException {
+            try {
+                commitAsync().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while committing a file");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        /**
+         * Publishes the file, replacing any earlier version, without waiting for it to be durable.
+         * The file may only become visible once it is durable.
+         *
+         * @return a future completed once the file is published and durable
+         * @throws IOException if the file cannot be published
+         */
+        CompletableFuture<Void> commitAsync() throws IOException;
+    }
+
+
+    /**
+     * Gets the attributes of a file.
+     *
+     * @param name the name of the file
+     * @return the attributes, or null if there is no such file
+     * @throws IOException if the attributes cannot be read
+     */
+    Attributes stat(String name) throws IOException;
+
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param name the name of the file
+     * @return the channel reading the file
+     * @throws IOException if there is no such file or it cannot be opened
+     */
+    ReadChannel openRead(String name) throws IOException;
+
+
+    /**
+     * Starts writing a new version of a file.
+     *
+     * @param name the name of the file
+     * @return the channel writing the file
+     * @throws IOException if the store cannot be written to
+     */
+    WriteChannel openWrite(String name) throws IOException;
+
+
+    /**
+     * Opens a new version of a file for writing, bypassing the page cache if the store can, so a large file that is
+     * rarely read back does not evict the files that are. A direct file must be written in order, from its start.
+     * Stores that cannot bypass a cache write the file as {@link #openWrite(String)} does.
+     *
+     * @param name   the name of the file
+     * @param direct whether to bypass the page cache
+     * @return a channel to write the file through
+     * @throws IOException if the file cannot be created
+     */
+    default WriteChannel openWrite(String name, boolean direct) throws IOException {
+        return openWrite(name);
+    }
+
+
+    /**
+     * Deletes a file.
+     *
+     * @param name the name of the file
+     * @return true if the file was deleted, false if there was no such file
+     * @throws IOException if the file cannot be deleted
+     */
+    boolean delete(String name) throws IOException;
+
+
+    /**
+     * Gets the contents of a file the store already holds in memory, so it can be read in place instead of through a
+     * cache.
+     *
+     * @param name the name of the file
+     * @return a read-only view of the contents, or null if the store does not hold the file in memory
+     * @throws IOException if the file cannot be looked up
+     */
+    default ByteBuffer map(String name) throws IOException {
+        return null;
+    }
+
+
+    /**
+     * Gets the directory holding the store, which can be watched for new files.
+     *
+     * @return the directory, or null if the store is not kept on the file system
+     */
+    Path getDirectory();
+
+
+    /**
+     * Gets the space left for new files, so an upload that cannot fit is refused before any of it is received.
+     *
+     * @return the number of bytes that can still be written, or Long.MAX_VALUE if the store does not know
+     * @throws IOException if the space cannot be looked up
+     */
+    default long getUsableSpace() throws IOException {
+        return Long.MAX_VALUE;
+    }
+
+
+    /**
+     * Checks that a name stays inside the store: it must be relative, and none of its parts may be empty, "." or "..".
+     *
+     * @param name the name of the file
+     * @return the name
+     * @throws AccessDeniedException if the name would reach outside the store
+     */
+    static String checkName(String name) throws AccessDeniedException {
+        if (name == null || name.isEmpty() || name.indexOf('\\') >= 0 || name.indexOf(':') >= 0 || name.indexOf('\0') >= 0) {
+            throw new AccessDeniedException(name, null, "Invalid file name");
+        }
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                throw new AccessDeniedException(name, null, "Invalid file name");
+            }
+        }
+        return name;
+    }
+
+
+    /**
+     * Checks a name a client asked for: it must stay inside the store, and may not reach into the directory the chunk
+     * store keeps its chunks and manifests in, which only the server writes.
+     *
+     * @param name the name of the file
+     * @return the name
+     * @throws AccessDeniedException if the name would reach outside the store or into the chunk store
+     */
+    static String checkRequestName(String name) throws AccessDeniedException {
+        checkName(name);
+        int slash = name.indexOf('/');
+        if ((slash < 0 ? name : name.substring(0, slash)).equalsIgnoreCase(ChunkStore.DIRECTORY)) {
+            throw new AccessDeniedException(name, null, "Reserved for the chunk store");
+        }
+        return name;
+    }
+}
@@ -0,0 +1,139 @@
+package request;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+
+/**
+ * GroupCommit class makes written files durable in batches, on a background thread.
+ * Every file committed while the thread is busy with a batch joins the next one. A batch forces all of its files to
+ * disk, moves them into place, then forces every directory they were moved into, once however many files it received.
+ * Uploads completing together thus share the wait for the disk instead of each paying for its own.
+ */
+public class GroupCommit {
+
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+
+
+    /**
+     * A written file waiting to be made durable and moved into place.
+     */
+    private static class Commit {
+        private final FileChannel channel;
+        private final Path temp;
+        private final Path path;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        // Constructor for the commit
+        private Commit(FileChannel channel, Path temp, Path path) {
+            this.channel = channel;
+            this.temp = temp;
+            this.path = path;
+        }
+    }
+
+
+    /**
+     * Constructor for GroupCommit, which starts the background thread.
+     */
+    public GroupCommit() {
+        Thread thread = new Thread(this::run, "group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Queues a written file to be made durable and moved into place with the next batch.
+     * The batch closes the channel, and deletes the temporary file if the commit fails.
+     *
+     * @param channel the channel the file was written through
+     * @param temp    the temporary file written
+     * @param path    the path the file is moved to
+     * @return a future completed once the file is durable in its place
+     */
+    public CompletableFuture<Void> commit(FileChannel channel, Path temp, Path path) {
+        Commit commit = new Commit(channel, temp, path);
+        queue.add(commit);
+        return commit.done;
+    }
+
+
+    /**
+     * Commits batches as files are queued.
+     */
+    private void run() {
+        List<Commit> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+
+    /**
+     * Forces the files of a batch, moves them into place and forces their directories.
+     *
+     * @param batch the files to commit
+     */
+    private static void commit(List<Commit> batch) {
+        Map<Path, List<Commit>> directories = new HashMap<>();
+        for (Commit commit : batch) {
+            try {
+                try {
+                    commit.channel.force(false);
+                } finally {
+                    commit.channel.close();
+                }
+                Files.move(commit.temp, commit.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                directories.computeIfAbsent(commit.path.getParent(), directory -> new ArrayList<>()).add(commit);
+            } catch (IOException | RuntimeException e) {
+                fail(commit, e);
+            }
+        }
+        for (Map.Entry<Path, List<Commit>> directory : directories.entrySet()) {
+            try {
+                FileSystemStore.forceDirectory(directory.getKey());
+                for (Commit commit : directory.getValue()) {
+                    commit.done.complete(null);
+                }
+            } catch (IOException e) {
+                for (Commit commit : directory.getValue()) {
+                    commit.done.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Fails a commit that could not be forced or moved, removing its temporary file.
+     *
+     * @param commit the commit
+     * @param cause  the error
+     */
+    private static void fail(Commit commit, Exception cause) {
+        try {
+            Files.deleteIfExists(commit.temp);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+        commit.done.completeExceptionally(cause);
+    }
+}
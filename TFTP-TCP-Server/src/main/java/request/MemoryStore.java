@@ -0,0 +1,166 @@
+package request;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * MemoryStore class keeps files in memory, for benchmarks and tests that should not depend on the disk.
+ * A committed file is never changed again, a new version replaces it, so readers holding the old version keep
+ * reading consistent contents.
+ */
+public class MemoryStore implements FileStore {
+
+    private final Map<String, StoredFile> files = new ConcurrentHashMap<>();
+    // Last modification time handed out, so two versions of a file never share one
+    private final AtomicLong clock = new AtomicLong();
+
+
+    /**
+     * A committed version of a file.
+     */
+    private static class StoredFile {
+        private final byte[] data;
+        private final long modified;
+
+        // Constructor for the stored file
+        private StoredFile(byte[] data, long modified) {
+            this.data = data;
+            this.modified = modified;
+        }
+    }
+
+
+    /**
+     * MemoryChannel class reads a version of a file.
+     */
+    private static class MemoryChannel implements ReadChannel {
+        private final byte[] data;
+
+        // Constructor for the channel
+        private MemoryChannel(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public long size() {
+            return data.length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int count = (int) Math.min(dst.remaining(), data.length - position);
+            dst.put(data, (int) position, count);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+
+
+    /**
+     * MemoryWriter class collects a new version of a file, stored on commit.
+     */
+    private class MemoryWriter implements WriteChannel {
+        private final String name;
+        private byte[] data = new byte[0];
+        private int size = 0;
+
+        // Constructor for the writer
+        private MemoryWriter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void write(ByteBuffer src, long position) throws IOException {
+            long end = position + src.remaining();
+            if (end > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to keep in memory");
+            }
+            if (end > data.length) {
+                data = Arrays.copyOf(data, (int) Math.max(end, Math.min(data.length * 2L, Integer.MAX_VALUE)));
+            }
+            src.get(data, (int) position, src.remaining());
+            size = (int) Math.max(size, end);
+        }
+
+        @Override
+        public CompletableFuture<Void> commitAsync() {
+            files.put(name, new StoredFile(Arrays.copyOf(data, size), tick()));
+            // Nothing in memory survives a crash, so there is nothing to wait for
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            data = null;
+        }
+    }
+
+
+    @Override
+    public Attributes stat(String name) throws IOException {
+        StoredFile file = files.get(FileStore.checkName(name));
+        return file == null ? null : new Attributes(file.data.length, file.modified);
+    }
+
+
+    @Override
+    public ReadChannel openRead(String name) throws IOException {
+        StoredFile file = files.get(FileStore.checkName(name));
+        if (file == null) {
+            throw new NoSuchFileException(name);
+        }
+        return new MemoryChannel(file.data);
+    }
+
+
+    @Override
+    public WriteChannel openWrite(String name) throws IOException {
+        return new MemoryWriter(FileStore.checkName(name));
+    }
+
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        return files.remove(FileStore.checkName(name)) != null;
+    }
+
+
+    @Override
+    public ByteBuffer map(String name) throws IOException {
+        StoredFile file = files.get(FileStore.checkName(name));
+        return file == null ? null : ByteBuffer.wrap(file.data).asReadOnlyBuffer();
+    }
+
+
+    @Override
+    public Path getDirectory() {
+        return null;
+    }
+
+
+    /**
+     * Gets a modification time for a new version, later than every one handed out before.
+     *
+     * @return the modification time in nanoseconds
+     */
+    private long tick() {
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        return clock.updateAndGet(last -> Math.max(now, last + 1));
+    }
+}
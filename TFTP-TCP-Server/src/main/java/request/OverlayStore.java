@@ -0,0 +1,81 @@
+package request;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+
+
+/**
+ * OverlayStore class serves the files of a read-only store in front of a writable one.
+ * A file held by the upper store hides the lower file of the same name, and everything written goes to the lower
+ * store, so a pack of boot files can be served next to a directory that still accepts uploads.
+ */
+public class OverlayStore implements FileStore {
+
+    private final FileStore upper;
+    private final FileStore lower;
+
+
+    /**
+     * Constructor for OverlayStore.
+     *
+     * @param upper the store looked in first, which is never written to
+     * @param lower the store looked in next, which receives every write
+     */
+    public OverlayStore(FileStore upper, FileStore lower) {
+        this.upper = upper;
+        this.lower = lower;
+    }
+
+
+    @Override
+    public Attributes stat(String name) throws IOException {
+        Attributes attributes = upper.stat(name);
+        return attributes != null ? attributes : lower.stat(name);
+    }
+
+
+    @Override
+    public ReadChannel openRead(String name) throws IOException {
+        return upper.stat(name) != null ? upper.openRead(name) : lower.openRead(name);
+    }
+
+
+    @Override
+    public WriteChannel openWrite(String name) throws IOException {
+        return lower.openWrite(name);
+    }
+
+
+    @Override
+    public WriteChannel openWrite(String name, boolean direct) throws IOException {
+        return lower.openWrite(name, direct);
+    }
+
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        return lower.delete(name);
+    }
+
+
+    @Override
+    public ByteBuffer map(String name) throws IOException {
+        if (upper.stat(name) != null) {
+            return upper.map(name);
+        }
+        return lower.map(name);
+    }
+
+
+    @Override
+    public Path getDirectory() {
+        return lower.getDirectory();
+    }
+
+
+    @Override
+    public long getUsableSpace() throws IOException {
+        return lower.getUsableSpace();
+    }
+}
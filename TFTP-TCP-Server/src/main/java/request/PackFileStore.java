@@ -0,0 +1,325 @@
+package request;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+
+
+/**
+ * PackFileStore class serves a read-only collection of files packed into one file, which is memory-mapped as a whole.
+ * A pack starts with the ASCII magic {@link #MAGIC} and the number of files, followed by an index sorted by name,
+ * then by the contents of the files. Every index entry holds the length of the name, the UTF-8 name, the offset and
+ * length of the contents, and their CRC32C. Looking a file up is a binary search of the index, and reading it is a
+ * slice of the mapping, so serving a file needs no open, read or close.
+ * Every file of the pack has the modification time of the pack itself. Packs are built with {@link #build}.
+ */
+public class PackFileStore implements FileStore {
+
+    /**
+     * Bytes every pack starts with.
+     */
+    public static final String MAGIC = "TFTPPACK";
+
+    // Bytes of an index entry besides the name: name length, offset, length and CRC32C
+    private static final int ENTRY_BYTES = 2 + 8 + 8 + 4;
+    // Size of the buffer files are copied into the pack through
+    private static final int COPY_BUFFER_BYTES = 65536;
+
+    private final ByteBuffer mapping;
+    private final long modified;
+    // Index of the pack, sorted by name
+    private final String[] names;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] checksums;
+
+
+    /**
+     * PackChannel class reads a file of the pack from the mapping.
+     */
+    private static class PackChannel implements ReadChannel {
+        private final ByteBuffer contents;
+
+        // Constructor for the channel
+        private PackChannel(ByteBuffer contents) {
+            this.contents = contents;
+        }
+
+        @Override
+        public long size() {
+            return contents.capacity();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            if (position >= contents.capacity()) {
+                return -1;
+            }
+            int count = (int) Math.min(dst.remaining(), contents.capacity() - position);
+            ByteBuffer slice = contents.duplicate();
+            slice.position((int) position).limit((int) position + count);
+            dst.put(slice);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // the mapping is shared by every reader and lives as long as the store
+        }
+    }
+
+
+    /**
+     * Constructor for PackFileStore, which maps the pack and reads its index.
+     *
+     * @param pack the pack file
+     * @throws IOException if the pack cannot be mapped or is not a valid pack
+     */
+    public PackFileStore(Path pack) throws IOException {
+        try (FileChannel channel = FileChannel.open(pack, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Pack " + pack + " is larger than 2 GB");
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        modified = Files.getLastModifiedTime(pack).to(TimeUnit.NANOSECONDS);
+
+        try {
+            byte[] magic = new byte[MAGIC.length()];
+            mapping.get(magic);
+            if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+                throw new IOException(pack + " is not a pack");
+            }
+            int count = mapping.getInt();
+            if (count < 0) {
+                throw new IOException("Invalid file count in pack " + pack);
+            }
+            names = new String[count];
+            offsets = new long[count];
+            lengths = new int[count];
+            checksums = new int[count];
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[mapping.getShort() & 0xFFFF];
+                mapping.get(name);
+                names[i] = new String(name, StandardCharsets.UTF_8);
+                offsets[i] = mapping.getLong();
+                long length = mapping.getLong();
+                checksums[i] = mapping.getInt();
+                if (offsets[i] < 0 || length < 0 || offsets[i] + length > mapping.capacity()) {
+                    throw new IOException("Entry " + names[i] + " lies outside of pack " + pack);
+                }
+                if (i > 0 && names[i - 1].compareTo(names[i]) >= 0) {
+                    throw new IOException("Index of pack " + pack + " is not sorted");
+                }
+                lengths[i] = (int) length;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Pack " + pack + " is truncated");
+        }
+    }
+
+
+    @Override
+    public Attributes stat(String name) throws IOException {
+        int index = find(name);
+        return index < 0 ? null : new Attributes(lengths[index], modified);
+    }
+
+
+    @Override
+    public ReadChannel openRead(String name) throws IOException {
+        int index = find(name);
+        if (index < 0) {
+            throw new NoSuchFileException(name);
+        }
+        return new PackChannel(contents(index));
+    }
+
+
+    @Override
+    public WriteChannel openWrite(String name) throws IOException {
+        throw new AccessDeniedException(name, null, "Pack is read-only");
+    }
+
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        throw new AccessDeniedException(name, null, "Pack is read-only");
+    }
+
+
+    @Override
+    public ByteBuffer map(String name) throws IOException {
+        int index = find(name);
+        return index < 0 ? null : contents(index);
+    }
+
+
+    @Override
+    public Path getDirectory() {
+        return null;
+    }
+
+
+    /**
+     * Gets the CRC32C of a file of the pack, recorded when the pack was built.
+     *
+     * @param name the name of the file
+     * @return the CRC32C of the file's contents
+     * @throws IOException if the pack does not hold the file
+     */
+    public long getChecksum(String name) throws IOException {
+        int index = find(name);
+        if (index < 0) {
+            throw new NoSuchFileException(name);
+        }
+        return checksums[index] & 0xFFFFFFFFL;
+    }
+
+
+    /**
+     * Gets the number of files in the pack.
+     *
+     * @return the number of files
+     */
+    public int getFileCount() {
+        return names.length;
+    }
+
+
+    /**
+     * Builds a pack holding every file under a directory, named by its path relative to the directory.
+     * Hidden files and directories, such as the chunk store, are left out, and so is the pack itself if it is built
+     * inside the directory. The pack is written to a temporary file and moved into place, so a server mapping an
+     * earlier version of it is not disturbed.
+     *
+     * @param directory the directory to pack
+     * @param pack      the pack file to write
+     * @return the number of files packed
+     * @throws IOException if a file cannot be read, or the pack cannot be written or would be larger than 2 GB
+     */
+    public static int build(Path directory, Path pack) throws IOException {
+        Path root = directory.toRealPath();
+        Path output = pack.toAbsolutePath().normalize();
+
+        // The index is sorted the way the server searches it
+        Map<String, Path> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            Iterator<Path> iterator = paths.iterator();
+            while (iterator.hasNext()) {
+                Path path = iterator.next();
+                String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+                if (Files.isRegularFile(path) && !path.toAbsolutePath().equals(output) && !isHidden(name)) {
+                    files.put(name, path);
+                }
+            }
+        }
+
+        long indexBytes = MAGIC.length() + 4;
+        for (String name : files.keySet()) {
+            int nameBytes = name.getBytes(StandardCharsets.UTF_8).length;
+            if (nameBytes > 0xFFFF) {
+                throw new IOException("File name too long for a pack: " + name);
+            }
+            indexBytes += ENTRY_BYTES + nameBytes;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate((int) indexBytes);
+        index.put(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        index.putInt(files.size());
+        Path temp = FileSystemStore.createTempFile(output);
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                // Contents go after the index, which is written last, once every offset and CRC32C is known
+                long offset = indexBytes;
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_BYTES);
+                for (Map.Entry<String, Path> file : files.entrySet()) {
+                    CRC32C checksum = new CRC32C();
+                    long length = 0;
+                    try (FileChannel in = FileChannel.open(file.getValue(), StandardOpenOption.READ)) {
+                        while (in.read(buffer) > 0) {
+                            buffer.flip();
+                            checksum.update(buffer.array(), 0, buffer.limit());
+                            while (buffer.hasRemaining()) {
+                                out.write(buffer, offset + length + buffer.position());
+                            }
+                            length += buffer.limit();
+                            buffer.clear();
+                        }
+                    }
+                    if (offset + length > Integer.MAX_VALUE) {
+                        throw new IOException("Pack would be larger than 2 GB");
+                    }
+                    byte[] name = file.getKey().getBytes(StandardCharsets.UTF_8);
+                    index.putShort((short) name.length);
+                    index.put(name);
+                    index.putLong(offset);
+                    index.putLong(length);
+                    index.putInt((int) checksum.getValue());
+                    offset += length;
+                }
+                index.flip();
+                while (index.hasRemaining()) {
+                    out.write(index, index.position());
+                }
+                out.force(true);
+            }
+            Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return files.size();
+    }
+
+
+    /**
+     * Checks whether a file, or any directory it is in, is hidden.
+     *
+     * @param name the name of the file, relative to the packed directory
+     * @return true if any part of the name starts with a dot
+     */
+    private static boolean isHidden(String name) {
+        return name.startsWith(".") || name.contains("/.");
+    }
+
+
+    /**
+     * Looks a file up in the index.
+     *
+     * @param name the name of the file
+     * @return the position of the file in the index, or a negative number if the pack does not hold it
+     * @throws AccessDeniedException if the name would reach outside the store
+     */
+    private int find(String name) throws AccessDeniedException {
+        return Arrays.binarySearch(names, FileStore.checkName(name));
+    }
+
+
+    /**
+     * Gets the contents of a file of the pack.
+     *
+     * @param index the position of the file in the index
+     * @return a view of the mapping holding just the file
+     */
+    private ByteBuffer contents(int index) {
+        ByteBuffer contents = mapping.duplicate();
+        contents.position((int) offsets[index]).limit((int) offsets[index] + lengths[index]);
+        return contents.slice();
+    }
+}
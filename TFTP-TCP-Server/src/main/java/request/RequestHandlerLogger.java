@@ -116,6 +116,80 @@ public class RequestHandlerLogger {
         log(String.format("Sent DATA block %d/%d for %s - Block size: %d bytes", blockNumber,totalBlocks, filename, dataLength));
     }
 
+    /**
+     * Logs the start of a byte-range transfer.
+     *
+     * @param filename the name of the file
+     * @param start    the offset of the first byte sent
+     * @param end      the offset just past the last byte sent
+     */
+    public void logRangeSent(String filename, long start, long end) {
+        log(String.format("Sending bytes %d-%d of %s", start, end, filename));
+    }
+
+    /**
+     * Logs the outcome of a compressed transfer.
+     *
+     * @param filename       the name of the file
+     * @param originalSize   the size of the file in bytes
+     * @param compressedSize the number of bytes that crossed the wire
+     */
+    public void logCompression(String filename, long originalSize, long compressedSize) {
+        log(String.format("Deflated transfer of %s - %d bytes sent as %d bytes", filename, originalSize, compressedSize));
+    }
+
+    /**
+     * Logs the CRC32C of a checksummed transfer.
+     *
+     * @param filename    the name of the file
+     * @param checksum    the CRC32C of the file contents
+     * @param isReceiving true if the checksum was verified on a write to the server, false if it was sent
+     */
+    public void logChecksum(String filename, long checksum, boolean isReceiving) {
+        log(String.format("%s CRC32C %08x for %s", isReceiving ? "Verified" : "Sent", checksum, filename));
+    }
+
+    /**
+     * Logs how much of an upload was already in the chunk store.
+     *
+     * @param filename    the name of the file
+     * @param chunks      the number of chunks the file is made of
+     * @param newChunks   the number of chunks the store did not hold yet
+     * @param transferred the number of bytes that crossed the wire for the new chunks
+     */
+    public void logDedup(String filename, int chunks, int newChunks, long transferred) {
+        log(String.format("Stored %s as %d chunks, %d new - %d bytes transferred", filename, chunks, newChunks, transferred));
+    }
+
+    /**
+     * Logs how much of a delta upload was copied from the previous version of the file.
+     *
+     * @param filename    the name of the file
+     * @param size        the size of the new version in bytes
+     * @param copied      the number of bytes copied from the previous version
+     * @param transferred the number of bytes that crossed the wire for the instructions
+     */
+    public void logDelta(String filename, long size, long copied, long transferred) {
+        log(String.format("Rebuilt %s from a delta - %d of %d bytes copied, %d bytes transferred", filename, copied, size, transferred));
+    }
+
+    /**
+     * Logs the state of the block cache after serving a file.
+     *
+     * @param hits      the number of reads served from the cache
+     * @param misses    the number of reads that went to disk
+     * @param coalesced the number of reads that waited for another reader's disk read
+     * @param readAheads the number of blocks loaded ahead of readers
+     * @param evictions the number of blocks evicted
+     * @param used      the number of bytes cached
+     * @param capacity  the capacity of the cache in bytes
+     */
+    public void logCache(long hits, long misses, long coalesced, long readAheads, long evictions, long used, long capacity) {
+        long reads = hits + misses + coalesced;
+        log(String.format("Block cache - %d hits, %d misses, %d coalesced (%.1f%% hit rate), %d read ahead, %d evictions, %d of %d bytes used",
+                hits, misses, coalesced, reads == 0 ? 0.0 : 100.0 * hits / reads, readAheads, evictions, used, capacity));
+    }
+
     /**
      * Logs the end of the data transfer.
      *
@@ -1,4 +1,5 @@
 package request;
+import java.util.Map;
 
 
 /**
@@ -11,6 +12,12 @@ public class TFTPRequestBuilder {
 	 */
 	public static int MAX_DATA_BYTES = 516;
 
+	/**
+	 * Name of the transfer size option (RFC 2349): the size of the file, sent by the client in a WRQ and by the server
+	 * in the OACK of an RRQ.
+	 */
+	public static final String TSIZE = "tsize";
+
 
 	/**
 	 * Creates a Read Request (RRQ) packet.
@@ -58,6 +65,43 @@ public class TFTPRequestBuilder {
 	}
 
 
+	/**
+	 * Creates an Option Acknowledgment (OACK) packet listing the options the server accepted.
+	 *
+	 * @param buf     the buffer to fill with the packet
+	 * @param options the accepted options and their values
+	 * @return the length of the created packet
+	 */
+	public static int createPackOACK(byte[] buf, Map<String, String> options) {
+		int length = 0;
+
+		length += createPackUInt16(buf, length, OPCODE.OACK.getValue());
+		length += createPackOptions(buf, length, options);
+
+		return length;
+	}
+
+
+	/**
+	 * Appends options to the buffer as a sequence of null terminated name and value strings.
+	 *
+	 * @param buf     the buffer to append the options to
+	 * @param offset  the offset at which to append the options
+	 * @param options the options and their values
+	 * @return the number of bytes written
+	 */
+	public static int createPackOptions(byte[] buf, int offset, Map<String, String> options) {
+		int length = 0;
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			length += createPackString(buf, offset + length, option.getKey());
+			buf[offset + length++] = 0;
+			length += createPackString(buf, offset + length, option.getValue());
+			buf[offset + length++] = 0;
+		}
+		return length;
+	}
+
+
 	/**
 	 * Creates an Error packet.
 	 *
@@ -106,6 +150,57 @@ public class TFTPRequestBuilder {
 	}
 
 
+	/**
+	 * Creates a Data packet from a slice of a larger buffer, without copying the slice first.
+	 *
+	 * @param buf    the buffer to fill with the packet
+	 * @param block  the block number
+	 * @param data   the buffer holding the data
+	 * @param offset the offset of the data in its buffer
+	 * @param size   the number of data bytes
+	 * @return the length of the created packet
+	 */
+	public static int createPackData(byte[] buf, int block, byte[] data, int offset, int size) {
+		int length = 0;
+		length += createPackUInt16(buf, length, OPCODE.DATA.getValue());
+		length += createPackUInt16(buf, length, block);
+		System.arraycopy(data, offset, buf, length, size);
+		length += size;
+		return length;
+	}
+
+
+	/**
+	 * Writes the header of a DATA packet whose data has already been read into the buffer right after it,
+	 * so file contents can be copied straight into the packet.
+	 *
+	 * @param buf   the buffer holding the packet, with its data starting at offset 4
+	 * @param block the block number
+	 * @return the length of the header
+	 */
+	public static int createPackDataHeader(byte[] buf, int block) {
+		int length = 0;
+		length += createPackUInt16(buf, length, OPCODE.DATA.getValue());
+		length += createPackUInt16(buf, length, block);
+		return length;
+	}
+
+
+	/**
+	 * Creates the DATA packet that follows the end of a checksummed transfer, carrying the CRC32C
+	 * of the file contents as 8 hexadecimal digits.
+	 *
+	 * @param buf      the buffer to fill with the packet
+	 * @param block    the block number, one past the block that ended the transfer
+	 * @param checksum the CRC32C of the data sent
+	 * @return the length of the created packet
+	 */
+	public static int createPackChecksum(byte[] buf, int block, long checksum) {
+		byte[] digest = String.format("%08x", checksum).getBytes();
+		return createPackData(buf, block, digest, 0, digest.length);
+	}
+
+
 	/**
 	 * Creates an Acknowledgment (ACK) packet.
 	 *
@@ -1,6 +1,8 @@
 package request;
 import exceptions.TFTPException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 // This class is responsible for decoding the different types of packets received as part of the TFTP protocol.
@@ -10,11 +12,13 @@ public class TFTPRequestDecoder {
 	public static class WrqOrRrqPacket {
 		public final String filename;// The filename to write/read
 		public final OPCODE opcode;// The operation code (WRQ or RRQ)
+		public final Map<String, String> options;// The requested options, keyed by lower case name
 
 		// Constructor for the WRQ/RRQ packet
-		public WrqOrRrqPacket(String filename, OPCODE op) {
+		public WrqOrRrqPacket(String filename, OPCODE op, Map<String, String> options) {
 			this.filename = filename;
 			this.opcode = op;
+			this.options = options;
 		}
 
 	}
@@ -75,7 +79,18 @@ public class TFTPRequestDecoder {
 			String mode = decodeString(packet, offset);// Decode the mode (should be "octet")
 			assert mode.equals("octet");// Ensure the mode is "octet"
 
-			return new WrqOrRrqPacket(filename, OPCODE.values()[op]);// Return the decoded WRQ/RRQ packet
+			// Any remaining name/value pairs are options
+			offset += mode.length() + 1;// Move past the mode and null terminator
+			Map<String, String> options = new LinkedHashMap<>();
+			while (offset < packet.length) {
+				String name = decodeString(packet, offset);
+				offset += name.length() + 1;
+				String value = decodeString(packet, offset);
+				offset += value.length() + 1;
+				options.put(name.toLowerCase(), value);
+			}
+
+			return new WrqOrRrqPacket(filename, OPCODE.values()[op], options);// Return the decoded WRQ/RRQ packet
 		} catch (Exception e) {
 			throw new TFTPException("NOT valid WRQ/RRQ packet");
 		}
@@ -112,14 +127,35 @@ public class TFTPRequestDecoder {
 
 		// Data
 		offset += 2;// Move past the block number
-		// Rest of packet contains data, find the end of the data
-		int end = offset;
-		while (end < packet.length && packet[end] != 0) {
-			end++;// Find the end of the data
-		}
-		byte[] data = Arrays.copyOfRange(packet, offset, end); // Copy the data from the packet
+		// Packets are framed to their exact length, so the rest of the packet is data
+		byte[] data = Arrays.copyOfRange(packet, offset, packet.length); // Copy the data from the packet
 		return new DataPacket(block, data, data.length);// Return the DataPacket instance
 
 
 	}
+
+
+	// Decodes the DATA packet sent after the end of a checksummed transfer to retrieve the CRC32C
+	public static long decodeChecksum(byte[] packet, int offset) throws TFTPException {
+		DataPacket dataPacket = decodeData(packet, offset);
+		try {
+			return Long.parseLong(new String(dataPacket.data, 0, dataPacket.size), 16);
+		} catch (NumberFormatException e) {
+			throw new TFTPException("NOT valid checksum packet");
+		}
+	}
+
+	// Decodes the transfer size option of a request or OACK, -1 if it is missing or not a valid size
+	public static long decodeTransferSize(Map<String, String> options) {
+		String value = options.get(TFTPRequestBuilder.TSIZE);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			long size = Long.parseLong(value);
+			return size >= 0 ? size : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
 }
@@ -0,0 +1,236 @@
+package request;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+// Commits files written to a temporary directory through a group commit
+public class GroupCommitTest {
+
+    private Path directory;
+    private GroupCommit groupCommit;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("tftp-group-commit-test");
+        groupCommit = new GroupCommit();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // Files committed while a batch waits for the disk all join the next batch, which forces every one of them before
+    // any of them counts as durable
+    @Test
+    public void batchesTheFilesCommittedWhileTheDiskIsBusy() throws Exception {
+        CountDownLatch forcing = new CountDownLatch(1);
+        CountDownLatch disk = new CountDownLatch(1);
+        CompletableFuture<Void> first = groupCommit.commit(new ObservedChannel(open("first.tmp"), () -> {
+            forcing.countDown();
+            disk.await();
+        }), directory.resolve("first.tmp"), directory.resolve("first"));
+        assertTrue(forcing.await(10, TimeUnit.SECONDS));
+
+        int count = 5;
+        List<CompletableFuture<Void>> batch = new ArrayList<>();
+        List<Integer> forced = new ArrayList<>();
+        // Files forced after another file of their batch already counted as durable
+        List<Integer> forcedLate = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int file = i;
+            FileChannel channel = new ObservedChannel(open("file" + i + ".tmp"), () -> {
+                synchronized (forced) {
+                    if (batch.stream().anyMatch(CompletableFuture::isDone)) {
+                        forcedLate.add(file);
+                    }
+                    forced.add(file);
+                }
+            });
+            batch.add(groupCommit.commit(channel, directory.resolve("file" + i + ".tmp"), directory.resolve("file" + i)));
+        }
+        disk.countDown();
+
+        first.get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<Void> done : batch) {
+            done.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(count, forced.size());
+        assertTrue("Forced after their batch was durable: " + forcedLate, forcedLate.isEmpty());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(("file" + i + ".tmp").getBytes(), Files.readAllBytes(directory.resolve("file" + i)));
+            assertFalse(Files.exists(directory.resolve("file" + i + ".tmp")));
+        }
+    }
+
+    // A file that cannot be forced fails on its own and leaves no temporary file, the rest of its batch still commits
+    @Test
+    public void failsOnlyTheFileThatCannotBeForced() throws Exception {
+        FileChannel broken = open("broken.tmp");
+        broken.close();
+        CompletableFuture<Void> failed = groupCommit.commit(broken, directory.resolve("broken.tmp"),
+                directory.resolve("broken"));
+        CompletableFuture<Void> committed = groupCommit.commit(open("kept.tmp"), directory.resolve("kept.tmp"),
+                directory.resolve("kept"));
+
+        committed.get(10, TimeUnit.SECONDS);
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            fail("Committed a file that could not be forced");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        assertFalse(Files.exists(directory.resolve("broken.tmp")));
+        assertFalse(Files.exists(directory.resolve("broken")));
+        assertTrue(Files.exists(directory.resolve("kept")));
+    }
+
+    // Writes a temporary file holding its own name, and returns the channel it was written through
+    private FileChannel open(String name) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(name), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.wrap(name.getBytes()));
+        return channel;
+    }
+
+
+    /**
+     * Runs an action before every force of the file channel it wraps.
+     */
+    private static class ObservedChannel extends FileChannel {
+        private final FileChannel channel;
+        private final Action beforeForce;
+
+        // Action run before a force, which may wait
+        private interface Action {
+            void run() throws InterruptedException;
+        }
+
+        // Constructor for the channel
+        private ObservedChannel(FileChannel channel, Action beforeForce) {
+            this.channel = channel;
+            this.beforeForce = beforeForce;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            try {
+                beforeForce.run();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            channel.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package request;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+
+// Packs a temporary directory and serves its files back from the pack
+public class PackFileStoreTest {
+
+    private Path directory;
+    private Path pack;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("tftp-pack-test");
+        pack = directory.resolve("boot.pack");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // Every file under the directory comes back from the pack with its contents, size and CRC32C, and nothing else does
+    @Test
+    public void servesEveryPackedFile() throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        Random random = new Random(1);
+        for (String name : new String[]{"pxelinux.0", "empty", "boot/vmlinuz", "boot/initrd.img", "boot/cfg/default"}) {
+            byte[] data = new byte[name.equals("empty") ? 0 : 1 + random.nextInt(200000)];
+            random.nextBytes(data);
+            contents.put(name, data);
+            write(name, data);
+        }
+        write(".chunks/objects/ab/cd", new byte[]{1});
+        write("boot/.hidden", new byte[]{2});
+
+        assertEquals(contents.size(), PackFileStore.build(directory, pack));
+        PackFileStore store = new PackFileStore(pack);
+        assertEquals(contents.size(), store.getFileCount());
+        for (Map.Entry<String, byte[]> file : contents.entrySet()) {
+            byte[] data = file.getValue();
+            assertEquals(data.length, store.stat(file.getKey()).size);
+            ByteBuffer mapped = store.map(file.getKey());
+            byte[] read = new byte[mapped.remaining()];
+            mapped.get(read);
+            assertArrayEquals(data, read);
+
+            CRC32C checksum = new CRC32C();
+            checksum.update(data);
+            assertEquals(checksum.getValue(), store.getChecksum(file.getKey()));
+        }
+        for (String name : new String[]{"boot.pack", "boot/.hidden", ".chunks/objects/ab/cd", "boot", "missing"}) {
+            assertNull(name, store.stat(name));
+        }
+        try {
+            store.openRead("missing");
+            fail("Opened a file the pack does not hold");
+        } catch (NoSuchFileException expected) {
+            // not in the pack
+        }
+    }
+
+    // A byte flipped in the contents no longer matches the CRC32C recorded in the index
+    @Test
+    public void recordsTheChecksumThatCatchesCorruption() throws IOException {
+        byte[] data = new byte[5000];
+        new Random(2).nextBytes(data);
+        write("kernel", data);
+        PackFileStore.build(directory, pack);
+
+        byte[] packed = Files.readAllBytes(pack);
+        byte[] tail = Arrays.copyOfRange(data, data.length - 100, data.length);
+        int at = packed.length - 50;
+        assertArrayEquals(tail, Arrays.copyOfRange(packed, packed.length - 100, packed.length));
+        packed[at] ^= 1;
+        Files.write(pack, packed);
+
+        PackFileStore store = new PackFileStore(pack);
+        byte[] read = new byte[data.length];
+        store.map("kernel").get(read);
+        CRC32C checksum = new CRC32C();
+        checksum.update(read);
+        assertNotEquals(checksum.getValue(), store.getChecksum("kernel"));
+    }
+
+    // Files that are not packs, or packs cut short, are refused when the store opens them
+    @Test
+    public void refusesBrokenPacks() throws IOException {
+        write("file", new byte[100]);
+        PackFileStore.build(directory, pack);
+        byte[] packed = Files.readAllBytes(pack);
+
+        Path broken = directory.resolve("broken.pack");
+        for (byte[] bytes : new byte[][]{"NOTAPACK".getBytes(), Arrays.copyOf(packed, PackFileStore.MAGIC.length() + 6)}) {
+            Files.write(broken, bytes);
+            try {
+                new PackFileStore(broken);
+                fail("Opened a broken pack");
+            } catch (IOException expected) {
+                // refused
+            }
+        }
+    }
+
+    private void write(String name, byte[] data) throws IOException {
+        Path path = directory.resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.write(path, data);
+    }
+}
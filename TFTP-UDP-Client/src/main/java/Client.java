@@ -1,4 +1,5 @@
 import client.TFTPClient;
+import request.Parity;
 import Exceptions.TFTPException;
 
 
@@ -14,12 +15,69 @@ public class Client {
 	 * Main method to launch the TFTP client application.
 	 * It sets up the client with a specified server address and port, then runs the command line interface.
 	 *
-	 * @param args Command line arguments (not used in this application).
+	 * @param args Command line arguments: optionally, {@code --timeout=<milliseconds>}, the retransmission timeout
+	 *             asked of the server, from 10 ms on a LAN to 255 s on a slow link, and {@code --window=<blocks>},
+	 *             the most blocks either end sends ahead of their ACKs, 1 to send a block at a time, and
+	 *             {@code --rate=<kilobytes per second>}, to send uploads at a fixed rate instead of one following
+	 *             their congestion window, and {@code --fec=<K>:<M>}, to have every group of K blocks followed by
+	 *             M parity packets, which rebuild up to M lost blocks in a row without waiting for a retransmission,
+	 *             and {@code --multicast}, to share each download with the other clients asking for the same file.
 	 */
 	public static void main(String[] args) {
+		int timeoutMs = TFTPClient.DEFAULT_TIMEOUT_MS;
+		int windowSize = TFTPClient.DEFAULT_WINDOW_SIZE;
+		long pacingRate = 0;
+		int[] parity = null;
+		boolean multicast = false;
+		for (String arg : args) {
+			if (arg.startsWith("--timeout=")) {
+				try {
+					timeoutMs = Integer.parseInt(arg.substring("--timeout=".length()));
+				} catch (NumberFormatException e) {
+					timeoutMs = -1;
+				}
+				if (timeoutMs < 10 || timeoutMs > 255000) {
+					System.out.println("Invalid timeout: " + arg);
+					System.exit(1);
+				}
+			} else if (arg.startsWith("--window=")) {
+				try {
+					windowSize = Integer.parseInt(arg.substring("--window=".length()));
+				} catch (NumberFormatException e) {
+					windowSize = -1;
+				}
+				if (windowSize < 1 || windowSize > 65535) {
+					System.out.println("Invalid window size: " + arg);
+					System.exit(1);
+				}
+			} else if (arg.startsWith("--rate=")) {
+				try {
+					pacingRate = Long.parseLong(arg.substring("--rate=".length())) * 1024;
+				} catch (NumberFormatException e) {
+					pacingRate = -1;
+				}
+				if (pacingRate <= 0) {
+					System.out.println("Invalid rate: " + arg);
+					System.exit(1);
+				}
+			} else if (arg.equals("--multicast")) {
+				multicast = true;
+			} else if (arg.startsWith("--fec=")) {
+				parity = Parity.parse(arg.substring("--fec=".length()));
+				if (parity == null || parity[0] > Parity.MAX_GROUP) {
+					System.out.println("Invalid forward error correction: " + arg);
+					System.exit(1);
+				}
+			}
+		}
 
 		// Create an instance of TFTPClient pointing to "localhost" on port 8888
-		TFTPClient client = new TFTPClient("localhost", 8888);
+		TFTPClient client = new TFTPClient("localhost", 8888, timeoutMs, windowSize);
+		client.setPacingRate(pacingRate);
+		if (parity != null) {
+			client.setParity(parity[0], parity[1]);
+		}
+		client.setMulticast(multicast);
 		// Initialize the command line interface with the created TFTPClient
 		CommandLine commandLine = new CommandLine(client);
 		try {
@@ -6,6 +6,14 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
 
 
 
@@ -14,9 +22,22 @@ import java.nio.file.Paths;
  */
 public class TFTPClient implements InterfaceClient {
 
+	public static final int DEFAULT_TIMEOUT_MS = 2000;// Retransmission timeout when none is configured
+	private static final int MAX_RETRANSMISSIONS = 5;// Times a packet is sent again before the transfer is given up
+	public static final int DEFAULT_WINDOW_SIZE = 64;// Window size asked of the server when none is configured
+	private static final int DUPLICATE_ACKS = 3;// Duplicate ACKs that report a block as lost, shrinking the window
+	private static final int PACED = -2;// Returned by receiveWindowAck when the next block may leave before any ACK arrived
+	private static final int POLL_MS = 50;// How often the threads reading a multicast download check whether it ended
+
 	private InetAddress host;// Host IP address for the TFTP server
 	private int port;// Port number on which the TFTP server is listening to
 	private DatagramSocket socket;// Socket to send and receive datagram packets
+	private final int timeoutMs;// Retransmission timeout, used by the client and asked of the server
+	private final int windowSize;// Window size asked of the server, the cap of the congestion window of either end
+	private long pacingRate = 0;// Rate uploads are sent at in bytes per second, 0 to follow the congestion window
+	private int parityGroup = 0;// Blocks per group of forward error correction asked of the server, 0 for none
+	private int parityCount = 0;// Parity packets per group of forward error correction
+	private boolean multicast = false;// Whether downloads ask to share the server's multicast group
 
 
 	/**
@@ -26,6 +47,36 @@ public class TFTPClient implements InterfaceClient {
 	 * @param port the port number of the TFTP server
 	 */
 	public TFTPClient(String ip, int port) {
+		this(ip, port, DEFAULT_TIMEOUT_MS);
+	}
+
+
+	/**
+	 * Constructor to create an instance of TFTPClient with its own retransmission timeout.
+	 * Every request asks the server to use the same timeout, so both ends retransmit at the pace of the link.
+	 *
+	 * @param ip        the IP address of the TFTP server as a String
+	 * @param port      the port number of the TFTP server
+	 * @param timeoutMs the retransmission timeout in milliseconds, from 10 ms to 255 s
+	 */
+	public TFTPClient(String ip, int port, int timeoutMs) {
+		this(ip, port, timeoutMs, DEFAULT_WINDOW_SIZE);
+	}
+
+
+	/**
+	 * Constructor to create an instance of TFTPClient with its own retransmission timeout and window size.
+	 * Every request asks the server for the window size (RFC 7440), and the blocks sent ahead of their ACKs by
+	 * either end are then limited by a congestion window that ramps up to it.
+	 *
+	 * @param ip         the IP address of the TFTP server as a String
+	 * @param port       the port number of the TFTP server
+	 * @param timeoutMs  the retransmission timeout in milliseconds, from 10 ms to 255 s
+	 * @param windowSize the window size in blocks, 1 to send a block at a time
+	 */
+	public TFTPClient(String ip, int port, int timeoutMs, int windowSize) {
+		this.timeoutMs = timeoutMs;
+		this.windowSize = windowSize;
 		try {
 			this.host = InetAddress.getByName(ip);
 		} catch (IOException e) {
@@ -42,9 +93,48 @@ public class TFTPClient implements InterfaceClient {
 	}
 
 
+	/**
+	 * Sets the rate uploads are paced at, instead of one following their congestion window.
+	 *
+	 * @param pacingRate the rate in bytes per second, or 0 to follow the congestion window
+	 */
+	public void setPacingRate(long pacingRate) {
+		this.pacingRate = pacingRate;
+	}
+
+
+	/**
+	 * Asks the server for forward error correction on every transfer, see {@link Parity}.
+	 *
+	 * @param groupSize the number of DATA blocks per group, or 0 for none
+	 * @param parities  the number of parity packets per group
+	 */
+	public void setParity(int groupSize, int parities) {
+		this.parityGroup = groupSize;
+		this.parityCount = parities;
+	}
+
+
+	/**
+	 * Asks the server to send every download to its multicast group, shared with the other clients downloading the
+	 * same file meanwhile, see {@link Multicast}.
+	 *
+	 * @param multicast whether downloads ask for multicast
+	 */
+	public void setMulticast(boolean multicast) {
+		this.multicast = multicast;
+	}
+
+
 	/**
 	 * Sends a file to the TFTP server following the protocol's workflow:
 	 * send a write request (WRQ), receive an acknowledgment (ACK), send the data, and wait for ACK for each data packet.
+	 * The WRQ asks for a CRC32C check: if the server accepts it with an OACK, the digest follows the last data packet
+	 * and the file only counts as sent once the server has acknowledged it.
+	 * The WRQ also carries the size of the file, so a server without room for it refuses it before any data is sent,
+	 * and the client's timeout, after which it sends a packet the server has not acknowledged again.
+	 * If the server accepts a window size, the data is sent through a congestion window capped by it, see
+	 * {@link #sendWindow}, and if it accepts forward error correction every group of blocks is followed by its parity.
 	 *
 	 * @param filename the name of the file to be sent
 	 * @return true if the file is sent successfully, false otherwise
@@ -65,7 +155,13 @@ public class TFTPClient implements InterfaceClient {
 		}
 		byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
 		// Build WRQ packet
-		int wrqReqSize = TFTPRequestBuilder.createPackWRQ(buffer, filename);
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put(Checksum.OPTION, Checksum.CRC32C);
+		options.put(TFTPRequestBuilder.TSIZE, String.valueOf(file.length));
+		putTimeout(options);
+		options.put(TFTPRequestBuilder.WINDOWSIZE, String.valueOf(windowSize));
+		putParity(options);
+		int wrqReqSize = TFTPRequestBuilder.createPackWRQ(buffer, filename, options);
 		DatagramPacket wrqPacket = new DatagramPacket(buffer, wrqReqSize, host, port);
 		// Send WRQ packet
 		try {
@@ -84,70 +180,363 @@ public class TFTPClient implements InterfaceClient {
 		int numRetries = 0;
 
 		try {
-			socket.setSoTimeout(2000);
+			socket.setSoTimeout(timeoutMs);
 		} catch (SocketException e) {
 			System.err.println("Error setting socket timeout");
 			return false;
 		}
 		DatagramPacket ackPacket = new DatagramPacket(buffer, TFTPRequestBuilder.MAX_BYTES, host, port);
-		while (!hasReceivedACK && numRetries < 3) {
+		CRC32C checksum = null;
+		int window = 1;// A server that accepts no window size takes a block at a time
+		Parity.Encoder encoder = null;
+		while (!hasReceivedACK && numRetries < MAX_RETRANSMISSIONS) {
 			try {
 				socket.receive(ackPacket);
 			} catch (IOException e) {
 				System.err.println("Error receiving ACK packet. Retrying...");
 				numRetries++;
-				continue;// Ignore and retry
+				try {
+					socket.send(wrqPacket);
+				} catch (IOException ignored) {
+					// Wait for the next timeout
+				}
+				continue;
 			}
 			try {
-				int n = TFTPRequestDecoder.decodeACK(ackPacket.getData());
+				TFTPRequestBuilder.OPCODE opcode = TFTPRequestDecoder.decodeOp(ackPacket.getData());
+				// A server without room for the file refuses it with an ERROR
+				if (opcode == TFTPRequestBuilder.OPCODE.ERROR) {
+					TFTPRequestDecoder.ErrorPacket error = TFTPRequestDecoder.decodeError(ackPacket.getData(), 0);
+					System.err.println("Error (" + error.errorCode + "): " + error.errorMessage);
+					return false;
+				}
+				// The server answers with an OACK instead of an ACK when it accepts any option
+				if (opcode == TFTPRequestBuilder.OPCODE.OACK) {
+					Map<String, String> accepted = TFTPRequestDecoder.decodeOACK(ackPacket.getData(), 0);
+					if (Checksum.CRC32C.equals(accepted.get(Checksum.OPTION))) {
+						checksum = new CRC32C();
+					}
+					window = Math.max(TFTPRequestDecoder.decodeWindowSize(accepted), 1);
+					int[] parity = Parity.parse(accepted.get(Parity.OPTION));
+					if (parity != null) {
+						encoder = new Parity.Encoder(parity[0], parity[1]);
+					}
+				} else {
+					TFTPRequestDecoder.decodeACK(ackPacket.getData());
+				}
 				hasReceivedACK = true;
 			} catch (TFTPException e) {
 				continue;
 			}
 			System.out.println("Received ACK, sending data...");
 		}
-		// Split file into packets
+		if (!hasReceivedACK) {
+			System.err.println("No answer to the WRQ");
+			return false;
+		}
+		// Split file into packets, a file that fills its last packet exactly is terminated by an extra empty one
 		// Send data packets
-		int numPackets = (int) Math.ceil((double) file.length / (TFTPRequestBuilder.MAX_BYTES - 4));
-
-		for (int i = 1; i <= numPackets; i++) {
-			// clear buffer
-			buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+		int numPackets = file.length / (TFTPRequestBuilder.MAX_BYTES - 4) + 1;
 
-			// Get the current packet (leaving room for the opcode and block number - 4 bytes total)
-			int start = (i - 1) * (TFTPRequestBuilder.MAX_BYTES - 4);
-			int end = Math.min(start + TFTPRequestBuilder.MAX_BYTES - 4, file.length);
+		if (!sendWindow(file, numPackets, window, encoder, ackPacket)) {
+			System.err.println("Timed out waiting for ACK.\n");
+			return false;
+		}
+		if (checksum != null) {
+			checksum.update(file, 0, file.length);
+		}
+		if (checksum != null && !confirmChecksum(numPackets + 1, checksum)) {
+			return false;
+		}
+		System.out.println("File sent successfully");
+		return true;
+	}
 
-			byte[] packet = new byte[end - start];
 
-			System.arraycopy(file, start, packet, 0, end - start);
-			// Build data packet by splitting file into 512 byte chunks
-			int dataReqSize = TFTPRequestBuilder.createPackData(buffer, i, packet);
-			DatagramPacket dataPacket = new DatagramPacket(buffer, dataReqSize, host, port);
-			// Send DATA packet
+	/**
+	 * Sends the data packets of a file through a congestion window, see {@link CongestionWindow}.
+	 * The server acknowledges every block it takes in order, and answers a block out of order with the ACK of the last
+	 * one it took, so an ACK covers every block up to its own and repeated ones report the block after it as lost.
+	 * On {@link #DUPLICATE_ACKS} of them the window shrinks, and when the timeout passes without a new ACK it shrinks
+	 * to one block and is sent again from the first block not acknowledged.
+	 * Duplicate ACKs never send anything again by themselves: the server also answers a block it got twice with one,
+	 * and sending data for it would double every duplicate that follows (the Sorcerer's Apprentice Syndrome, RFC 1123).
+	 * Blocks leave through a {@link Pacer}, and the time until the next one may leave is spent waiting for ACKs.
+	 * With forward error correction, the group of the first block in flight is always sent whole, so its parity can
+	 * rebuild it.
+	 *
+	 * @param file       the contents of the file
+	 * @param numPackets the number of data packets
+	 * @param limit      the window size the server accepted, in blocks
+	 * @param encoder    the encoder of the parity packets, or null if the server accepted no forward error correction
+	 * @param ackPacket  the packet to receive the ACKs into
+	 * @return true once every block is acknowledged, false if the server reported an error or stopped answering
+	 */
+	private boolean sendWindow(byte[] file, int numPackets, int limit, Parity.Encoder encoder, DatagramPacket ackPacket) {
+		CongestionWindow window = new CongestionWindow(limit);
+		Pacer pacer = new Pacer(pacingRate, TFTPRequestBuilder.MAX_BYTES);
+		// With forward error correction a whole parity group may be in flight, more blocks than the window holds
+		int maxInFlight = encoder != null ? Math.max(limit, encoder.getGroupSize()) : limit;
+		long[] sentAt = new long[maxInFlight];// When each block in flight was first sent, by block number modulo maxInFlight
+		int base = 1;// First block not acknowledged
+		int next = 1;// Next block to send
+		int sent = 0;// Highest block sent so far
+		int recover = 0;// Highest block sent when the last loss was seen, the losses of the blocks up to it count once
+		int duplicates = 0;// Duplicate ACKs since the last new ACK
+		int duplicateAcks = 0;
+		int retransmissions = 0;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);// When the first block in flight times out
+		byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+		try {
+			while (base <= numPackets) {
+				long delay = 0;
+				int inFlight = encoder != null
+						? Math.max(window.size(), encoder.getGroupSize() - (base - 1) % encoder.getGroupSize()) : window.size();
+				while (next <= numPackets && next < base + inFlight) {
+					delay = pacer.delay();
+					if (delay > 0) {
+						break;
+					}
+					// Get the current packet (leaving room for the opcode and block number - 4 bytes total)
+					int start = (next - 1) * (TFTPRequestBuilder.MAX_BYTES - 4);
+					int end = Math.min(start + TFTPRequestBuilder.MAX_BYTES - 4, file.length);
+					byte[] packet = new byte[end - start];
+					System.arraycopy(file, start, packet, 0, end - start);
+					int dataReqSize = TFTPRequestBuilder.createPackData(buffer, next, packet);
+					socket.send(new DatagramPacket(buffer, dataReqSize, host, port));
+					if (next > sent) {
+						System.out.println("Sent packet " + next);
+						sentAt[next % maxInFlight] = System.nanoTime();
+						sent = next;
+						if (encoder != null && encoder.add(next, file, start, end - start, next == numPackets)) {
+							sendParities(encoder);
+						}
+					}
+					next++;
+				}
+				// After a timeout the window is sent again from its first block, the server may acknowledge any block sent so far
+				int acked = receiveWindowAck(ackPacket, base, sent + 1, delay > 0 ? System.nanoTime() + delay : deadline, deadline);
+				if (acked == PACED) {
+					continue;
+				}
+				if (acked < 0) {
+					if (++retransmissions > MAX_RETRANSMISSIONS) {
+						return false;
+					}
+					window.timedOut();
+					recover = sent;
+					duplicates = 0;
+					next = base;
+				} else if (acked >= base) {
+					// Blocks sent again since the last loss would give ambiguous round trips, only the others are measured
+					if (acked > recover) {
+						pacer.sampleRtt(System.nanoTime() - sentAt[acked % maxInFlight]);
+					}
+					window.acknowledged(acked - base + 1);
+					base = acked + 1;
+					next = Math.max(next, base);
+					duplicates = 0;
+					retransmissions = 0;
+				} else {
+					// The lost block is left to the timeout, which a duplicate ACK does not push back
+					duplicateAcks++;
+					if (++duplicates == DUPLICATE_ACKS && base > recover) {
+						window.lost();
+						recover = sent;
+						pacer.setWindow(window.size());
+					}
+					continue;
+				}
+				pacer.setWindow(window.size());
+				deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+			}
+		} catch (IOException e) {
+			System.err.println("Error sending DATA packet or receiving ACK: " + e.getMessage());
+			return false;
+		} catch (TFTPException e) {
+			System.err.println(e.getMessage());
+			return false;
+		} finally {
+			// The ACKs that follow are waited for with the plain timeout
 			try {
-				socket.send(dataPacket);
-			} catch (IOException e) {
-				e.printStackTrace();
-				System.err.println("Error sending DATA packet");
-				System.exit(1);
+				socket.setSoTimeout(timeoutMs);
+			} catch (SocketException e) {
+				System.err.println("Error resetting socket timeout");
+			}
+		}
+		System.out.println("Congestion window peaked at " + window.getPeak() + " of " + limit + " blocks, "
+				+ window.getLosses() + " losses, " + window.getTimeouts() + " timeouts, " + duplicateAcks + " duplicate ACKs");
+		System.out.println("Paced at " + pacer.getRate() + " bytes/s over a " + TimeUnit.NANOSECONDS.toMicros(pacer.getSmoothedRtt())
+				+ " us round trip, " + pacer.getWaits() + " waits");
+		return true;
+	}
+
+
+	/**
+	 * Sends the parity packets of the group of blocks just sent.
+	 *
+	 * @param encoder the encoder of the parity packets
+	 * @throws IOException if a packet cannot be sent
+	 */
+	private void sendParities(Parity.Encoder encoder) throws IOException {
+		byte[] buffer = new byte[Parity.maxPacketBytes()];
+		for (int i = 0; i < encoder.getParityCount(); i++) {
+			int size = encoder.pack(buffer, i);
+			socket.send(new DatagramPacket(buffer, size, host, port));
+		}
+	}
+
+
+	/**
+	 * Waits for an ACK of a block sent, or a duplicate ACK of the block before them.
+	 * Waits shorter than the socket's millisecond timeout are spent parked, and the ACKs that arrive meanwhile read after.
+	 *
+	 * @param ackPacket the packet to receive the ACK into
+	 * @param base      the first block not acknowledged
+	 * @param next      the block after the highest one sent
+	 * @param until     when the next block may leave, as given by {@link System#nanoTime}
+	 * @param deadline  when the first block in flight times out, as given by {@link System#nanoTime}
+	 * @return the block acknowledged, counted from the start of the transfer, -1 if the timeout passed, or
+	 * {@link #PACED} if the wait ended first because the next block may leave
+	 * @throws IOException   if the socket fails
+	 * @throws TFTPException if the server reported an error
+	 */
+	private int receiveWindowAck(DatagramPacket ackPacket, int base, int next, long until, long deadline)
+			throws IOException, TFTPException {
+		until = Math.min(until, deadline);
+		while (true) {
+			long remaining = until - System.nanoTime();
+			if (remaining <= 0) {
+				return until < deadline ? PACED : -1;
+			}
+			if (remaining < TimeUnit.MILLISECONDS.toNanos(1)) {
+				LockSupport.parkNanos(remaining);
+				continue;
 			}
-			// Wait till we receive ACK
+			socket.setSoTimeout((int) TimeUnit.NANOSECONDS.toMillis(remaining));
+			ackPacket.setLength(ackPacket.getData().length);
 			try {
 				socket.receive(ackPacket);
+			} catch (SocketTimeoutException e) {
+				continue;
+			}
+			TFTPRequestBuilder.OPCODE opcode = TFTPRequestDecoder.decodeOp(ackPacket.getData());
+			if (opcode == TFTPRequestBuilder.OPCODE.ERROR) {
+				TFTPRequestDecoder.ErrorPacket error = TFTPRequestDecoder.decodeError(ackPacket.getData(), 0);
+				throw new TFTPException("Error (" + error.errorCode + "): " + error.errorMessage);
+			}
+			if (opcode != TFTPRequestBuilder.OPCODE.ACK) {
+				continue;
+			}
+			// Block numbers wrap around at 65536, the window is far smaller
+			int offset = (TFTPRequestDecoder.decodeACK(ackPacket.getData()) - (base - 1)) & 0xFFFF;
+			if (offset <= next - base) {
+				return base - 1 + offset;
+			}
+		}
+	}
+
 
-				// Ensure the ACK packet echos the block number we sent
-				assert TFTPRequestDecoder.decodeACK(ackPacket.getData()) == i;
-			} catch (Exception e) {
-				if (e instanceof TFTPException) {
-					e.printStackTrace();
+	/**
+	 * Waits for the server to acknowledge a block, sending the packet again each time the timeout passes without
+	 * its ACK. Duplicate ACKs of earlier blocks are skipped.
+	 *
+	 * @param sent      the packet carrying the block
+	 * @param ackPacket the packet to receive the ACK into
+	 * @param block     the block number
+	 * @return true once the block is acknowledged, false if the server reported an error or stopped answering
+	 */
+	private boolean awaitAck(DatagramPacket sent, DatagramPacket ackPacket, int block) {
+		for (int attempt = 0; attempt <= MAX_RETRANSMISSIONS; attempt++) {
+			try {
+				if (attempt > 0) {
+					socket.send(sent);
+				}
+				while (true) {
+					ackPacket.setLength(ackPacket.getData().length);
+					socket.receive(ackPacket);
+					if (TFTPRequestDecoder.decodeOp(ackPacket.getData()) == TFTPRequestBuilder.OPCODE.ERROR) {
+						TFTPRequestDecoder.ErrorPacket error = TFTPRequestDecoder.decodeError(ackPacket.getData(), 0);
+						System.err.println("Error (" + error.errorCode + "): " + error.errorMessage);
+						return false;
+					}
+					if (TFTPRequestDecoder.decodeACK(ackPacket.getData()) == (block & 0xFFFF)) {
+						return true;
+					}
 				}
-				System.err.println("Timed out waiting for ACK.\n");
+			} catch (SocketTimeoutException e) {
+				// No ACK in time, send the packet again
+			} catch (IOException | TFTPException e) {
+				System.err.println("Error receiving ACK: " + e.getMessage());
 				return false;
 			}
-			System.out.println("Sent packet " + i);
 		}
-		System.out.println("File sent successfully");
+		return false;
+	}
+
+
+	/**
+	 * Asks the server to retransmit after the client's timeout: in whole seconds with the timeout option (RFC 2349)
+	 * when the timeout allows it, and in microseconds with the utimeout option otherwise.
+	 *
+	 * @param options the options of the request
+	 */
+	private void putTimeout(Map<String, String> options) {
+		if (timeoutMs % 1000 == 0 && timeoutMs >= 1000 && timeoutMs <= 255000) {
+			options.put(TFTPRequestBuilder.TIMEOUT, String.valueOf(timeoutMs / 1000));
+		} else {
+			options.put(TFTPRequestBuilder.UTIMEOUT, String.valueOf(timeoutMs * 1000L));
+		}
+	}
+
+
+	/**
+	 * Asks the server for forward error correction, if the client is configured with it.
+	 *
+	 * @param options the options of the request
+	 */
+	private void putParity(Map<String, String> options) {
+		if (parityGroup > 0) {
+			options.put(Parity.OPTION, Parity.format(parityGroup, parityCount));
+		}
+	}
+
+
+	/**
+	 * Sends an ACK to the server.
+	 *
+	 * @param block the block number acknowledged
+	 * @throws IOException if the ACK cannot be sent
+	 */
+	private void sendAck(int block) throws IOException {
+		byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+		int size = TFTPRequestBuilder.createPackAck(buffer, block);
+		socket.send(new DatagramPacket(buffer, size, host, port));
+	}
+
+
+	/**
+	 * Sends the CRC32C of an upload in the block after its last data packet and waits for the server to confirm it.
+	 *
+	 * @param block    the block number of the checksum packet
+	 * @param checksum the running checksum of the data sent
+	 * @return true if the server acknowledged the checksum, false if it reported a mismatch or did not answer
+	 */
+	private boolean confirmChecksum(int block, CRC32C checksum) {
+		byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+		int size = TFTPRequestBuilder.createPackChecksum(buffer, block, checksum.getValue());
+		DatagramPacket checksumPacket = new DatagramPacket(buffer, size, host, port);
+		try {
+			socket.send(checksumPacket);
+		} catch (IOException e) {
+			System.err.println("Error confirming checksum: " + e.getMessage());
+			return false;
+		}
+		byte[] replyBuffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+		if (!awaitAck(checksumPacket, new DatagramPacket(replyBuffer, replyBuffer.length, host, port), block)) {
+			return false;
+		}
+		System.out.printf("Server verified CRC32C %08x%n", checksum.getValue());
 		return true;
 	}
 
@@ -155,6 +544,14 @@ public class TFTPClient implements InterfaceClient {
 	/**
 	 * Receives a file from the TFTP server by sending a read request (RRQ), waiting for the data packets,
 	 * and sending ACK for each received packet until all packets are received.
+	 * The RRQ asks for a CRC32C check: if the server accepts it with an OACK, the digest follows the last data packet
+	 * and the file is only saved if it matches what arrived. It also asks for the size of the file, which the receive
+	 * buffer is sized for before the first data packet, and for the server to retransmit after the client's timeout.
+	 * With forward error correction, blocks that arrive after a lost one are held until the lost one arrives again or
+	 * is rebuilt from the parity of its group, and it is only reported lost once that parity arrived and could not.
+	 * A block that arrives again is answered with the ACK of the last block taken and never written twice, and an OACK
+	 * the server sent again once the transfer started leaves what it negotiated as it is.
+	 * If the server accepts multicast, the file is received from its group instead, see {@link #receiveMulticast}.
 	 *
 	 * @param filename the name of the file to be received
 	 * @return true if the file is received and saved successfully, false otherwise
@@ -163,12 +560,21 @@ public class TFTPClient implements InterfaceClient {
 	public boolean receiveFile(String filename) {
 		DataPacketsBuilder dataPacketsBuilder = new DataPacketsBuilder();
 		byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
-		int size = TFTPRequestBuilder.createPackRRQ(buffer, filename);
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put(Checksum.OPTION, Checksum.CRC32C);
+		options.put(TFTPRequestBuilder.TSIZE, "0");
+		putTimeout(options);
+		options.put(TFTPRequestBuilder.WINDOWSIZE, String.valueOf(windowSize));
+		putParity(options);
+		if (multicast) {
+			options.put(Multicast.OPTION, "");
+		}
+		int size = TFTPRequestBuilder.createPackRRQ(buffer, filename, options);
 		DatagramPacket rrqPacket = new DatagramPacket(buffer, size, host, port);
 
 		try {
 			socket.send(rrqPacket);
-			socket.setSoTimeout(2000);
+			socket.setSoTimeout(timeoutMs);
 		} catch (IOException e) {
 			System.err.println("Error sending RRQ packet or setting socket timeout: " + e.getMessage());
 			return false;
@@ -176,18 +582,109 @@ public class TFTPClient implements InterfaceClient {
 
 		int expectedBlockNumber = 1;
 		boolean lastPacket = false;
+		boolean answered = false; // Whether anything came back for the RRQ
+		int timeouts = 0; // Timeouts in a row, the server retransmits at each of them
+		int duplicates = 0; // Blocks that arrived again after they were taken
+		boolean negotiated = false; // Whether the OACK arrived
+		CRC32C checksum = null;
+		Parity.Decoder decoder = null;
 
 		while (!lastPacket) {
-			buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+			// Parity packets are longer than DATA packets
+			buffer = new byte[Parity.maxPacketBytes()];
 			DatagramPacket dataPacket = new DatagramPacket(buffer, buffer.length, host, port);
 
 			try {
 				socket.receive(dataPacket);
-				TFTPRequestDecoder.DataPacket packet = TFTPRequestDecoder.decodeData(dataPacket.getData(), 0);
-				if (packet.blockNumber != expectedBlockNumber) {
+				answered = true;
+				timeouts = 0;
+				TFTPRequestBuilder.OPCODE opcode = TFTPRequestDecoder.decodeOp(dataPacket.getData());
+				if (opcode == TFTPRequestBuilder.OPCODE.ERROR) {
+					TFTPRequestDecoder.ErrorPacket error = TFTPRequestDecoder.decodeError(dataPacket.getData(), 0);
+					System.err.println("Error (" + error.errorCode + "): " + error.errorMessage);
+					return false;
+				}
+				// An OACK accepting the checksum or giving the size comes before the first block and is acknowledged as block 0
+				if (opcode == TFTPRequestBuilder.OPCODE.OACK) {
+					// The server sends the OACK again until block 0 is acknowledged, a copy that arrives after the
+					// first block would restart the checksum: it is only acknowledged again until then
+					if (negotiated) {
+						if (expectedBlockNumber == 1) {
+							sendAck(0);
+						}
+						continue;
+					}
+					negotiated = true;
+					Map<String, String> accepted = TFTPRequestDecoder.decodeOACK(dataPacket.getData(), 0);
+					if (accepted.containsKey(Multicast.OPTION)) {
+						return receiveMulticast(filename, accepted, rrqPacket);
+					}
+					if (Checksum.CRC32C.equals(accepted.get(Checksum.OPTION))) {
+						checksum = new CRC32C();
+					}
+					int[] parity = Parity.parse(accepted.get(Parity.OPTION));
+					if (parity != null) {
+						decoder = new Parity.Decoder(parity[0], parity[1]);
+					}
+					long transferSize = TFTPRequestDecoder.decodeTransferSize(accepted);
+					if (transferSize >= 0) {
+						dataPacketsBuilder.expectSize(transferSize);
+						System.out.println("Receiving " + filename + ": " + transferSize + " bytes");
+					}
+					buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+					size = TFTPRequestBuilder.createPackAck(buffer, 0);
+					socket.send(new DatagramPacket(buffer, size, host, port));
+					continue;
+				}
+				if (decoder != null) {
+					boolean isData = opcode == TFTPRequestBuilder.OPCODE.DATA;
+					if (isData) {
+						TFTPRequestDecoder.DataPacket packet = TFTPRequestDecoder.decodeData(dataPacket.getData(), 0, dataPacket.getLength());
+						if (!decoder.addData(packet.blockNumber, packet.data, packet.size)) {
+							duplicates++;
+							sendAck(expectedBlockNumber - 1);
+							continue;
+						}
+					} else if (opcode == TFTPRequestBuilder.OPCODE.PARITY) {
+						decoder.addParity(TFTPRequestDecoder.decodeParity(dataPacket.getData(), 0, dataPacket.getLength()));
+					} else {
+						continue;
+					}
+					// Take the blocks held in order, the last one taken is acknowledged
+					boolean took = false;
+					TFTPRequestDecoder.DataPacket packet;
+					while (!lastPacket && (packet = decoder.poll()) != null) {
+						dataPacketsBuilder.addDataPacket(packet);
+						if (checksum != null) {
+							checksum.update(packet.data, 0, packet.size);
+						}
+						took = true;
+						if (packet.size < TFTPRequestBuilder.MAX_BYTES - 4) {
+							lastPacket = true; // Last packet of data
+						} else {
+							expectedBlockNumber++; // Increment block number for next expected packet
+						}
+					}
+					// A DATA packet that let none be taken reports the next block lost, unless its parity is still to come
+					if (took || isData && !decoder.awaitingParity()) {
+						sendAck(lastPacket ? expectedBlockNumber : expectedBlockNumber - 1);
+					}
+					continue;
+				}
+				TFTPRequestDecoder.DataPacket packet = TFTPRequestDecoder.decodeData(dataPacket.getData(), 0, dataPacket.getLength());
+				if (packet.blockNumber != (expectedBlockNumber & 0xFFFF)) {
+					// A block sent again because its ACK was lost, or one after a lost block of a window, is answered
+					// with the ACK of the last block taken, which tells the server where to send from
+					if (((expectedBlockNumber - 1 - packet.blockNumber) & 0xFFFF) < 0x8000) {
+						duplicates++;
+					}
+					sendAck(expectedBlockNumber - 1);
 					continue; // Skip to the next loop iteration if unexpected block number
 				}
 				dataPacketsBuilder.addDataPacket(packet);
+				if (checksum != null) {
+					checksum.update(packet.data, 0, packet.size);
+				}
 				// Send ACK
 				buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
 				size = TFTPRequestBuilder.createPackAck(buffer, packet.blockNumber);
@@ -201,7 +698,19 @@ public class TFTPClient implements InterfaceClient {
 				}
 			} catch (SocketTimeoutException e) {
 				System.err.println("Socket timeout: " + e.getMessage());
-				continue; // On timeout, continue to next loop iteration and resend ACK
+				if (++timeouts > MAX_RETRANSMISSIONS) {
+					System.err.println("Server stopped sending " + filename);
+					return false;
+				}
+				// A lost RRQ is sent again, once the transfer started the server retransmits on its own
+				if (!answered) {
+					try {
+						socket.send(rrqPacket);
+					} catch (IOException ignored) {
+						// Wait for the next timeout
+					}
+				}
+				continue;
 			} catch (IOException e) {
 				System.err.println("IO error: " + e.getMessage());
 				return false; // On IOException, exit with failure
@@ -210,6 +719,15 @@ public class TFTPClient implements InterfaceClient {
 				return false; // On TFTPException, exit with failure
 			}
 		}
+		if (duplicates > 0) {
+			System.out.println("Ignored " + duplicates + " duplicate blocks of " + filename);
+		}
+		if (decoder != null && decoder.getRebuilt() > 0) {
+			System.out.println("Rebuilt " + decoder.getRebuilt() + " blocks of " + filename + " from parity packets");
+		}
+		if (checksum != null && !verifyChecksum(expectedBlockNumber + 1, checksum)) {
+			return false;
+		}
 		// Save the file to disk
 		dataPacketsBuilder.setFilename(filename);
 		try {
@@ -221,4 +739,222 @@ public class TFTPClient implements InterfaceClient {
 		}
 	}
 
+
+	/**
+	 * Receives a file the server sends to its multicast group, see {@link Multicast}.
+	 * The client joins the group on the interface it reaches the server through. The packets of the group and the ones
+	 * the server sends the client alone are read by a thread each, and taken here in the order they arrived.
+	 * The master client acknowledges the block before the first one it is missing after every block, a duplicate
+	 * included, and another member acknowledges the last block once it has the whole file. A member that hears nothing
+	 * within the timeout while it waits to catch up sends its RRQ again, which the server answers with its OACK.
+	 *
+	 * @param filename  the name of the file to be received
+	 * @param accepted  the options the server accepted
+	 * @param rrqPacket the RRQ sent for the file
+	 * @return true if the file is received and saved successfully, false otherwise
+	 */
+	private boolean receiveMulticast(String filename, Map<String, String> accepted, DatagramPacket rrqPacket) {
+		InetSocketAddress group = Multicast.parseAddress(accepted.get(Multicast.OPTION));
+		long transferSize = TFTPRequestDecoder.decodeTransferSize(accepted);
+		if (group == null || transferSize < 0) {
+			System.err.println("Invalid multicast OACK: " + accepted);
+			return false;
+		}
+		boolean master = Multicast.isMaster(accepted.get(Multicast.OPTION));
+		boolean checksummed = Checksum.CRC32C.equals(accepted.get(Checksum.OPTION));
+		Multicast.Receiver receiver = new Multicast.Receiver(transferSize, checksummed);
+		long expected = 0;// CRC32C sent after the last block of data
+		BlockingQueue<DatagramPacket> packets = new LinkedBlockingQueue<>();
+		AtomicBoolean done = new AtomicBoolean();
+		Thread unicastReader = null;
+		System.out.println("Receiving " + filename + " from multicast group " + group + (master ? " as master client" : ""));
+		try (MulticastSocket groupSocket = new MulticastSocket(group.getPort())) {
+			groupSocket.joinGroup(group, multicastInterface());
+			startReader(groupSocket, packets, done);
+			unicastReader = startReader(socket, packets, done);
+			if (master) {
+				sendAck(0);
+			}
+			int timeouts = 0;// Timeouts in a row
+			while (!receiver.isComplete()) {
+				DatagramPacket packet = packets.poll(timeoutMs, TimeUnit.MILLISECONDS);
+				if (packet == null) {
+					if (++timeouts > MAX_RETRANSMISSIONS) {
+						System.err.println("Server stopped sending " + filename);
+						return false;
+					}
+					if (master) {
+						sendAck(receiver.getFirstMissing() - 1);
+					} else {
+						socket.send(rrqPacket);
+					}
+					continue;
+				}
+				timeouts = 0;
+				TFTPRequestBuilder.OPCODE opcode = TFTPRequestDecoder.decodeOp(packet.getData());
+				if (opcode == TFTPRequestBuilder.OPCODE.ERROR) {
+					TFTPRequestDecoder.ErrorPacket error = TFTPRequestDecoder.decodeError(packet.getData(), 0);
+					System.err.println("Error (" + error.errorCode + "): " + error.errorMessage);
+					return false;
+				}
+				// The server makes a member master once it is its turn to catch up, and the first OACK may come again
+				if (opcode == TFTPRequestBuilder.OPCODE.OACK) {
+					if (Multicast.isMaster(TFTPRequestDecoder.decodeOACK(packet.getData(), 0).get(Multicast.OPTION))) {
+						if (!master) {
+							System.out.println("Catching up from block " + receiver.getFirstMissing() + " as master client");
+						}
+						master = true;
+						sendAck(receiver.getFirstMissing() - 1);
+					}
+					continue;
+				}
+				if (opcode != TFTPRequestBuilder.OPCODE.DATA) {
+					continue;
+				}
+				TFTPRequestDecoder.DataPacket data = TFTPRequestDecoder.decodeData(packet.getData(), 0, packet.getLength());
+				if (receiver.add(data.blockNumber, data.data, data.size) && checksummed
+						&& data.blockNumber == receiver.getLastBlock()) {
+					expected = TFTPRequestDecoder.decodeChecksum(packet.getData(), 0, packet.getLength());
+				}
+				if (master) {
+					sendAck(receiver.getFirstMissing() - 1);
+				}
+			}
+			// The last ACK of the master client tells the server it has the whole file, another member tells it on its own
+			if (!master) {
+				sendAck(receiver.getLastBlock());
+			}
+		} catch (IOException | TFTPException e) {
+			System.err.println("Error receiving from multicast group: " + e.getMessage());
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			done.set(true);
+			try {
+				if (unicastReader != null) {
+					unicastReader.join();
+				}
+				socket.setSoTimeout(timeoutMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (SocketException e) {
+				System.err.println("Error resetting socket timeout");
+			}
+		}
+		if (receiver.getDuplicates() > 0) {
+			System.out.println("Ignored " + receiver.getDuplicates() + " duplicate blocks of " + filename);
+		}
+		DataPacketsBuilder dataPacketsBuilder = new DataPacketsBuilder();
+		CRC32C checksum = checksummed ? new CRC32C() : null;
+		receiver.writeTo(dataPacketsBuilder, checksum);
+		if (checksum != null) {
+			if (expected != checksum.getValue()) {
+				System.err.printf("Checksum mismatch - expected %08x, computed %08x%n", expected, checksum.getValue());
+				return false;
+			}
+			System.out.printf("Verified CRC32C %08x%n", expected);
+		}
+		dataPacketsBuilder.setFilename(filename);
+		try {
+			dataPacketsBuilder.save();
+			return true;
+		} catch (IOException e) {
+			System.err.println("Error saving file: " + e.getMessage());
+			return false;
+		}
+	}
+
+
+	/**
+	 * Starts a thread that reads the packets a socket receives into a queue, until a multicast download ends.
+	 *
+	 * @param from the socket
+	 * @param to   the queue
+	 * @param done set once the download ended
+	 * @return the thread
+	 * @throws SocketException if the socket's timeout cannot be set
+	 */
+	private Thread startReader(DatagramSocket from, BlockingQueue<DatagramPacket> to, AtomicBoolean done) throws SocketException {
+		from.setSoTimeout(POLL_MS);
+		Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				try {
+					from.receive(packet);
+					to.add(packet);
+				} catch (SocketTimeoutException e) {
+					// Check whether the download ended
+				} catch (IOException e) {
+					return;// The socket was closed
+				}
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+		return reader;
+	}
+
+
+	/**
+	 * Gets the network interface the client reaches the server through, which multicast groups are joined on.
+	 *
+	 * @return the interface, or null to leave it to the system
+	 * @throws IOException if no socket can be opened
+	 */
+	private NetworkInterface multicastInterface() throws IOException {
+		try (DatagramSocket probe = new DatagramSocket()) {
+			probe.connect(host, port);
+			return NetworkInterface.getByInetAddress(probe.getLocalAddress());
+		}
+	}
+
+
+	/**
+	 * Receives the CRC32C the server sends after the last data packet, acknowledges it, and compares it with the
+	 * one computed on arrival.
+	 *
+	 * @param block    the block number of the checksum packet
+	 * @param checksum the running checksum of the data received
+	 * @return true if the digests match, false if the file was corrupted on the way or the digest never came
+	 */
+	private boolean verifyChecksum(int block, CRC32C checksum) {
+		byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+		DatagramPacket checksumPacket = new DatagramPacket(buffer, buffer.length, host, port);
+		long expected;
+		try {
+			socket.receive(checksumPacket);
+			// Data packets still in flight, or sent again because an ACK was lost, are answered with the ACK of the
+			// last data packet until the digest arrives, and the parity packets of the last group are skipped
+			int retries = 0;
+			while (retries++ < MAX_RETRANSMISSIONS + windowSize) {
+				TFTPRequestBuilder.OPCODE opcode = TFTPRequestDecoder.decodeOp(checksumPacket.getData());
+				if (opcode == TFTPRequestBuilder.OPCODE.DATA && TFTPRequestDecoder.decodeData(checksumPacket.getData(),
+						0, checksumPacket.getLength()).blockNumber == (block & 0xFFFF)) {
+					break;
+				}
+				if (opcode != TFTPRequestBuilder.OPCODE.PARITY) {
+					sendAck(block - 1);
+				}
+				checksumPacket.setLength(buffer.length);
+				socket.receive(checksumPacket);
+			}
+			expected = TFTPRequestDecoder.decodeChecksum(checksumPacket.getData(), 0, checksumPacket.getLength());
+			buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+			int size = TFTPRequestBuilder.createPackAck(buffer, block);
+			socket.send(new DatagramPacket(buffer, size, host, port));
+		} catch (IOException | TFTPException e) {
+			System.err.println("Error receiving checksum: " + e.getMessage());
+			return false;
+		}
+		if (expected != checksum.getValue()) {
+			System.err.printf("Checksum mismatch - expected %08x, computed %08x%n", expected, checksum.getValue());
+			return false;
+		}
+		System.out.printf("Verified CRC32C %08x%n", expected);
+		return true;
+	}
+
 }
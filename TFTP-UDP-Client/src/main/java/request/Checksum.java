@@ -0,0 +1,15 @@
+package request;
+
+
+
+/**
+ * Holds the settings of the end-to-end checksum option.
+ * When both ends agree on it, the sender keeps a running CRC32C of the file contents as the blocks are sent, and
+ * once the block that ends the transfer is acknowledged sends one more DATA block carrying the digest.
+ * The receiver compares it with its own running CRC32C, so corruption is caught without a second pass over the file.
+ */
+public class Checksum {
+	// Name of the request option negotiating the checksum, and its supported value
+	public static final String OPTION = "checksum";
+	public static final String CRC32C = "crc32c";
+}
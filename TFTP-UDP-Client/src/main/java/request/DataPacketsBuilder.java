@@ -3,6 +3,7 @@ package request;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 
 /**
@@ -12,6 +13,7 @@ import java.io.IOException;
  */
 public class DataPacketsBuilder {
 	private static final int MAX_BYTES_PER_FILE = 33554432; // 32 MB limit on file size in TFTP
+	private static final int INITIAL_CAPACITY = 65536; // Buffer grows from here, unless the server announced the size
 
 	private byte[] data;// Buffer to store the file data
 	private int size = 0; // Current size of data in the buffer
@@ -19,10 +21,10 @@ public class DataPacketsBuilder {
 
 
 	/**
-	 * Constructor initializes the data buffer with the maximum file size allowed by TFTP.
+	 * Constructor initializes a small data buffer, grown as data arrives up to the maximum file size allowed by TFTP.
 	 */
 	public DataPacketsBuilder() {
-		data = new byte[MAX_BYTES_PER_FILE];
+		data = new byte[INITIAL_CAPACITY];
 	}
 
 
@@ -51,11 +53,35 @@ public class DataPacketsBuilder {
 	 * @param dataPacket The data packet to add.
 	 */
 	public void addDataPacket(TFTPRequestDecoder.DataPacket dataPacket) {
+		ensureCapacity(size + dataPacket.size);
 		System.arraycopy(dataPacket.data, 0, data, size, dataPacket.size);
 		size += dataPacket.size;
 	}
 
 
+	/**
+	 * Sizes the data buffer for a file whose size the server announced, so it is not regrown as the packets arrive.
+	 * @param expectedSize The size of the file in bytes.
+	 */
+	public void expectSize(long expectedSize) {
+		if (expectedSize > data.length) {
+			data = Arrays.copyOf(data, (int) Math.min(expectedSize, MAX_BYTES_PER_FILE));
+		}
+	}
+
+
+	/**
+	 * Grows the data buffer so it can hold at least the given number of bytes, up to the file size limit.
+	 * @param capacity The number of bytes the buffer must hold.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			int newCapacity = Math.min(Math.max(capacity, data.length * 2), MAX_BYTES_PER_FILE);
+			data = Arrays.copyOf(data, newCapacity);
+		}
+	}
+
+
 
 	/**
 	 * Returns the current data buffer.
@@ -120,7 +146,7 @@ public class DataPacketsBuilder {
 	public void reset() {
 		size = 0;
 		filename = null;
-		data = new byte[MAX_BYTES_PER_FILE];
+		data = new byte[INITIAL_CAPACITY];
 	}
 
 
@@ -0,0 +1,163 @@
+package request;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+
+
+/**
+ * Holds the settings of the multicast option (RFC 2090), which serves one file to many clients at once.
+ * A client asks for it with an empty value, and the server answers with the address and port of the group the file is
+ * sent to, and whether the client is the master client: address,port,1 or address,port,0.
+ * Only the master client acknowledges the blocks sent to the group, the other members listen. Once the master client
+ * has the whole file, each other member missing blocks is made master in turn, acknowledges the block before the
+ * first one it is missing, and is sent the blocks it is missing alone. A member that has the whole file acknowledges
+ * the last block on its own, and is left out.
+ */
+public class Multicast {
+	// Name of the request option asking for a multicast transfer
+	public static final String OPTION = "multicast";
+
+
+	/**
+	 * Parses the address and port of the group from the value of the option.
+	 *
+	 * @param value the value, address,port,1 or address,port,0
+	 * @return the address of the group, or null if the value is invalid
+	 */
+	public static InetSocketAddress parseAddress(String value) {
+		String[] parts = value == null ? new String[0] : value.split(",");
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			InetAddress address = InetAddress.getByName(parts[0]);
+			return address.isMulticastAddress() ? new InetSocketAddress(address, Integer.parseInt(parts[1])) : null;
+		} catch (UnknownHostException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Checks whether the value of the option makes the client the master client.
+	 *
+	 * @param value the value, address,port,1 or address,port,0
+	 * @return true if the client is the master client
+	 */
+	public static boolean isMaster(String value) {
+		return value != null && value.endsWith(",1");
+	}
+
+
+	/**
+	 * Receiver class keeps the blocks of a multicast download, which arrive in any order and with gaps, until the
+	 * client has all of them.
+	 */
+	public static class Receiver {
+		private final int dataBlocks;
+		private final int lastBlock;// Last block of the download, checksum included
+		private final byte[][] blocks;// Data of the blocks taken, by block number
+		private int firstMissing = 1;
+		private int duplicates = 0;
+
+		/**
+		 * Constructor for Receiver.
+		 *
+		 * @param transferSize the size of the file, as the server reported it
+		 * @param checksummed  whether a checksum follows the last block of data
+		 */
+		public Receiver(long transferSize, boolean checksummed) {
+			this.dataBlocks = (int) (transferSize / (TFTPRequestBuilder.MAX_BYTES - 4) + 1);
+			this.lastBlock = dataBlocks + (checksummed ? 1 : 0);
+			this.blocks = new byte[lastBlock + 1][];
+		}
+
+		/**
+		 * Takes a block, unless it was taken already.
+		 *
+		 * @param block the block number
+		 * @param data  the data of the block
+		 * @param size  the size of the data
+		 * @return true if the block was taken, false if it was taken already or is not part of the download
+		 */
+		public boolean add(int block, byte[] data, int size) {
+			if (block < 1 || block > lastBlock) {
+				return false;
+			}
+			if (blocks[block] != null) {
+				duplicates++;
+				return false;
+			}
+			blocks[block] = Arrays.copyOf(data, size);
+			while (firstMissing <= lastBlock && blocks[firstMissing] != null) {
+				firstMissing++;
+			}
+			return true;
+		}
+
+		/**
+		 * Adds the blocks of data to a file in order, and to its running checksum.
+		 *
+		 * @param builder  the file
+		 * @param checksum the running checksum, or null if there is none
+		 */
+		public void writeTo(DataPacketsBuilder builder, CRC32C checksum) {
+			builder.expectSize((long) (dataBlocks - 1) * (TFTPRequestBuilder.MAX_BYTES - 4) + blocks[dataBlocks].length);
+			for (int block = 1; block <= dataBlocks; block++) {
+				builder.addDataPacket(new TFTPRequestDecoder.DataPacket(block, blocks[block], blocks[block].length));
+				if (checksum != null) {
+					checksum.update(blocks[block]);
+				}
+			}
+		}
+
+		/**
+		 * Gets the first block not taken yet.
+		 *
+		 * @return the block number, past the last block once every block is taken
+		 */
+		public int getFirstMissing() {
+			return firstMissing;
+		}
+
+		/**
+		 * Gets the number of blocks of data, the checksum left out.
+		 *
+		 * @return the number of blocks
+		 */
+		public int getDataBlocks() {
+			return dataBlocks;
+		}
+
+		/**
+		 * Gets the last block of the download, checksum included.
+		 *
+		 * @return the block number
+		 */
+		public int getLastBlock() {
+			return lastBlock;
+		}
+
+		/**
+		 * Checks whether every block is taken.
+		 *
+		 * @return true once the client has the whole file
+		 */
+		public boolean isComplete() {
+			return firstMissing > lastBlock;
+		}
+
+		/**
+		 * Gets the number of blocks that arrived again after they were taken.
+		 *
+		 * @return the number of blocks
+		 */
+		public int getDuplicates() {
+			return duplicates;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package request;
+
+
+
+/**
+ * Spaces the DATA packets of a windowed transfer out over the round trip, instead of sending a window back to back
+ * and overflowing the buffers of the switches and of the receiver on the way.
+ * Packets leave through a token bucket: tokens, in bytes, accrue at the pacing rate up to {@link #BURST_PACKETS}
+ * packets, and a packet only leaves once there are tokens for it. The rate is either configured, or follows the
+ * congestion window: a window of packets per smoothed round trip, times {@link #GAIN} so the window can still grow.
+ * The round trip is smoothed as in RFC 6298, from the ACKs of blocks that were only sent once.
+ * The sender is never put to sleep per packet: {@link #delay} tells it how long until the next packet may leave, and
+ * it spends that time waiting for ACKs.
+ */
+public class Pacer {
+
+	/**
+	 * Packets that may leave back to back once the bucket is full.
+	 */
+	public static final int BURST_PACKETS = 4;
+
+	/**
+	 * Pacing rate over the rate of a window per round trip, above one so the window is not held back.
+	 */
+	public static final double GAIN = 1.25;
+
+	private final long configuredRate;// Rate set by the operator in bytes per second, 0 to follow the window
+	private final int packetBytes;
+	private double rate;// Bytes per nanosecond, 0 while unpaced
+	private double tokens;
+	private long updated = System.nanoTime();// When the tokens were last added
+	private long smoothedRtt = 0;// Smoothed round trip in nanoseconds, 0 until the first sample
+	private int waits = 0;
+
+
+	/**
+	 * Constructor for Pacer.
+	 *
+	 * @param configuredRate the pacing rate in bytes per second, or 0 to follow the congestion window
+	 * @param packetBytes    the size of a full packet in bytes
+	 */
+	public Pacer(long configuredRate, int packetBytes) {
+		this.configuredRate = configuredRate;
+		this.packetBytes = packetBytes;
+		this.rate = configuredRate / 1e9;
+		this.tokens = BURST_PACKETS * packetBytes;
+	}
+
+
+	/**
+	 * Adds a round trip measured from a block sent once to the time its ACK arrived.
+	 *
+	 * @param rttNanos the round trip in nanoseconds
+	 */
+	public void sampleRtt(long rttNanos) {
+		rttNanos = Math.max(rttNanos, 1);
+		smoothedRtt = smoothedRtt == 0 ? rttNanos : smoothedRtt + (rttNanos - smoothedRtt) / 8;
+	}
+
+
+	/**
+	 * Sets the rate from the congestion window, unless a rate was configured.
+	 * Until a round trip is measured, packets are not paced.
+	 *
+	 * @param blocks the size of the congestion window in blocks
+	 */
+	public void setWindow(int blocks) {
+		if (configuredRate > 0 || smoothedRtt == 0) {
+			return;
+		}
+		refill();
+		rate = GAIN * blocks * packetBytes / smoothedRtt;
+	}
+
+
+	/**
+	 * Takes the tokens for a packet if there are enough of them.
+	 *
+	 * @return 0 if the packet may leave now, or else the nanoseconds until it may
+	 */
+	public long delay() {
+		if (rate == 0) {
+			return 0;
+		}
+		refill();
+		if (tokens >= packetBytes) {
+			tokens -= packetBytes;
+			return 0;
+		}
+		waits++;
+		return (long) Math.ceil((packetBytes - tokens) / rate);
+	}
+
+
+	/**
+	 * Gets the smoothed round trip.
+	 *
+	 * @return the round trip in nanoseconds, 0 if none was measured
+	 */
+	public long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+
+	/**
+	 * Gets the current pacing rate.
+	 *
+	 * @return the rate in bytes per second, 0 while unpaced
+	 */
+	public long getRate() {
+		return (long) (rate * 1e9);
+	}
+
+
+	/**
+	 * Gets the number of times a packet had to wait for tokens.
+	 *
+	 * @return the number of waits
+	 */
+	public int getWaits() {
+		return waits;
+	}
+
+
+	/**
+	 * Adds the tokens accrued since the last call, up to the size of the bucket.
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(tokens + (now - updated) * rate, BURST_PACKETS * packetBytes);
+		updated = now;
+	}
+}
@@ -0,0 +1,323 @@
+package request;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+
+/**
+ * Holds the settings of the forward error correction option, and encodes and decodes its parity packets.
+ * When both ends agree on it, the sender follows every group of K DATA blocks with M parity packets. Parity packet j
+ * is the XOR of the blocks whose position in the group is j modulo M, so the receiver rebuilds a lost block from it
+ * as long as no other block XORed into it was lost too: any M blocks lost in a row are rebuilt. A rebuilt block saves
+ * the round trip of a retransmission, and the whole timeout when nothing sent after it would have reported it lost.
+ * A parity packet carries the {@link TFTPRequestBuilder.OPCODE#PARITY} opcode, the block number of the first block of its group, its
+ * index, the number of blocks in its group, the XOR of the sizes of the blocks and the XOR of their data, zero padded.
+ */
+public class Parity {
+	// Name of the request option negotiating forward error correction, with a value of K:M
+	public static final String OPTION = "fec";
+
+	/**
+	 * Largest group accepted, in blocks.
+	 */
+	public static final int MAX_GROUP = 64;
+
+	/**
+	 * Size of the header of a parity packet, in bytes.
+	 */
+	public static final int HEADER_BYTES = 8;
+
+	// Furthest ahead of the next block a block is held, in blocks
+	private static final int MAX_AHEAD = 4096;
+
+
+	/**
+	 * Parses the value of the option.
+	 *
+	 * @param value the value, K:M
+	 * @return the group size and the number of parity packets per group, or null if the value is invalid
+	 */
+	public static int[] parse(String value) {
+		if (value == null) {
+			return null;
+		}
+		String[] parts = value.split(":");
+		if (parts.length != 2) {
+			return null;
+		}
+		try {
+			int groupSize = Integer.parseInt(parts[0]);
+			int parities = Integer.parseInt(parts[1]);
+			return groupSize >= 2 && parities >= 1 && parities < groupSize ? new int[]{groupSize, parities} : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Formats the value of the option.
+	 *
+	 * @param groupSize the number of DATA blocks per group
+	 * @param parities  the number of parity packets per group
+	 * @return the value, K:M
+	 */
+	public static String format(int groupSize, int parities) {
+		return groupSize + ":" + parities;
+	}
+
+
+	/**
+	 * Gets the largest packet a sender of parity packets sends, its parity packets being longer than DATA packets.
+	 *
+	 * @return the size in bytes
+	 */
+	public static int maxPacketBytes() {
+		return TFTPRequestBuilder.MAX_BYTES - 4 + HEADER_BYTES;
+	}
+
+
+	/**
+	 * Encoder class computes the parity packets of the blocks a sender sends, in order.
+	 */
+	public static class Encoder {
+		private final int groupSize;
+		private final int parities;
+		private final byte[][] payloads;// XOR of the data of the blocks of the group, per parity packet
+		private final int[] sizes;// XOR of the sizes of the blocks of the group, per parity packet
+		private int first = 1;// First block of the group
+		private int count = 0;// Blocks of the group added so far
+		private boolean ended = false;
+
+		/**
+		 * Constructor for Encoder.
+		 *
+		 * @param groupSize the number of DATA blocks per group
+		 * @param parities  the number of parity packets per group
+		 */
+		public Encoder(int groupSize, int parities) {
+			this.groupSize = groupSize;
+			this.parities = parities;
+			this.payloads = new byte[parities][TFTPRequestBuilder.MAX_BYTES - 4];
+			this.sizes = new int[parities];
+		}
+
+		/**
+		 * Adds a block sent for the first time. Blocks must be added in order, from the first one.
+		 *
+		 * @param block  the block number
+		 * @param data   the buffer holding the data of the block
+		 * @param offset the offset of the data
+		 * @param length the size of the data
+		 * @param last   whether the block is the last one of the transfer
+		 * @return true if the block ends its group, whose parity packets can then be packed
+		 */
+		public boolean add(int block, byte[] data, int offset, int length, boolean last) {
+			if (ended) {
+				for (byte[] payload : payloads) {
+					Arrays.fill(payload, (byte) 0);
+				}
+				Arrays.fill(sizes, 0);
+				count = 0;
+				ended = false;
+			}
+			if (count == 0) {
+				first = block;
+			}
+			int index = count % parities;
+			byte[] payload = payloads[index];
+			for (int i = 0; i < length; i++) {
+				payload[i] ^= data[offset + i];
+			}
+			sizes[index] ^= length;
+			count++;
+			ended = count == groupSize || last;
+			return ended;
+		}
+
+		/**
+		 * Gets the number of parity packets of the group just ended, fewer than configured if the group is short.
+		 *
+		 * @return the number of parity packets
+		 */
+		public int getParityCount() {
+			return Math.min(parities, count);
+		}
+
+		/**
+		 * Gets the number of DATA blocks per group.
+		 *
+		 * @return the group size in blocks
+		 */
+		public int getGroupSize() {
+			return groupSize;
+		}
+
+		/**
+		 * Packs a parity packet of the group just ended.
+		 *
+		 * @param buf   the buffer to pack into, of at least {@link #maxPacketBytes} bytes
+		 * @param index the index of the parity packet
+		 * @return the size of the packet
+		 */
+		public int pack(byte[] buf, int index) {
+			int length = TFTPRequestBuilder.createPackParityHeader(buf, first, index, count, sizes[index]);
+			System.arraycopy(payloads[index], 0, buf, length, payloads[index].length);
+			return length + payloads[index].length;
+		}
+	}
+
+
+	/**
+	 * Decoder class hands a receiver the blocks of a transfer in order, rebuilding the lost ones it can.
+	 * Blocks are held until they can be taken, and the blocks of a group are kept until the whole group is taken,
+	 * as rebuilding one needs the others.
+	 */
+	public static class Decoder {
+		private final int groupSize;
+		private final int parities;
+		private final Map<Integer, byte[]> blocks = new HashMap<>();// Data of the blocks held, by block counted from the start
+		private final Map<Integer, TFTPRequestDecoder.ParityPacket[]> groups = new HashMap<>();// Parity packets by first block of their group
+		private int next = 1;// Next block to take, counted from the start of the transfer
+		private int rebuilt = 0;
+
+		/**
+		 * Constructor for Decoder.
+		 *
+		 * @param groupSize the number of DATA blocks per group
+		 * @param parities  the number of parity packets per group
+		 */
+		public Decoder(int groupSize, int parities) {
+			this.groupSize = groupSize;
+			this.parities = parities;
+		}
+
+		/**
+		 * Adds a DATA block.
+		 *
+		 * @param block the block number, as sent
+		 * @param data  the data of the block
+		 * @param size  the size of the data
+		 * @return false if the block was taken already, true otherwise
+		 */
+		public boolean addData(int block, byte[] data, int size) {
+			int number = fromStart(block);
+			if (number < next) {
+				return false;
+			}
+			if (number - next < MAX_AHEAD) {
+				blocks.putIfAbsent(number, Arrays.copyOf(data, size));
+			}
+			return true;
+		}
+
+		/**
+		 * Adds a parity packet.
+		 *
+		 * @param packet the parity packet
+		 */
+		public void addParity(TFTPRequestDecoder.ParityPacket packet) {
+			int first = fromStart(packet.firstBlock);
+			if (first + packet.count <= next || first - next >= MAX_AHEAD || (first - 1) % groupSize != 0
+					|| packet.index >= parities) {
+				return;
+			}
+			groups.computeIfAbsent(first, f -> new TFTPRequestDecoder.ParityPacket[parities])[packet.index] = packet;
+		}
+
+		/**
+		 * Takes the next block, rebuilding it from the parity of its group if it was lost.
+		 *
+		 * @return the block, or null if it did not arrive and cannot be rebuilt yet
+		 */
+		public TFTPRequestDecoder.DataPacket poll() {
+			byte[] data = blocks.get(next);
+			if (data == null) {
+				data = rebuild(next);
+				if (data == null) {
+					return null;
+				}
+				blocks.put(next, data);
+				rebuilt++;
+			}
+			TFTPRequestDecoder.DataPacket packet = new TFTPRequestDecoder.DataPacket(next & 0xFFFF, data, data.length);
+			next++;
+			if ((next - 1) % groupSize == 0) {
+				// The whole group is taken, nothing needs its blocks any more
+				int first = next - groupSize;
+				for (int i = first; i < next; i++) {
+					blocks.remove(i);
+				}
+				groups.remove(first);
+			}
+			return packet;
+		}
+
+		/**
+		 * Checks whether the next block, which is missing, may still be rebuilt from a parity packet not received yet.
+		 * A receiver does not report the block lost until then.
+		 *
+		 * @return true if the parity packet covering the block did not arrive
+		 */
+		public boolean awaitingParity() {
+			int first = groupOf(next);
+			TFTPRequestDecoder.ParityPacket[] packets = groups.get(first);
+			return packets == null || packets[(next - first) % parities] == null;
+		}
+
+		/**
+		 * Gets the number of blocks rebuilt.
+		 *
+		 * @return the number of blocks
+		 */
+		public int getRebuilt() {
+			return rebuilt;
+		}
+
+		/**
+		 * Rebuilds a lost block from the parity packet covering it and the other blocks that packet covers.
+		 *
+		 * @param number the block, counted from the start of the transfer
+		 * @return the data of the block, or null if the parity packet or another of its blocks is missing
+		 */
+		private byte[] rebuild(int number) {
+			int first = groupOf(number);
+			TFTPRequestDecoder.ParityPacket[] packets = groups.get(first);
+			if (packets == null) {
+				return null;
+			}
+			TFTPRequestDecoder.ParityPacket parity = packets[(number - first) % parities];
+			if (parity == null || number - first >= parity.count) {
+				return null;
+			}
+			byte[] data = Arrays.copyOf(parity.data, TFTPRequestBuilder.MAX_BYTES - 4);
+			int size = parity.sizeXor;
+			for (int i = parity.index; i < parity.count; i += parities) {
+				if (first + i == number) {
+					continue;
+				}
+				byte[] other = blocks.get(first + i);
+				if (other == null) {
+					return null;
+				}
+				for (int j = 0; j < other.length; j++) {
+					data[j] ^= other[j];
+				}
+				size ^= other.length;
+			}
+			return size >= 0 && size <= data.length ? Arrays.copyOf(data, size) : null;
+		}
+
+		// Gets the first block of the group of a block, both counted from the start of the transfer
+		private int groupOf(int number) {
+			return (number - 1) / groupSize * groupSize + 1;
+		}
+
+		// Gets a block counted from the start of the transfer from its 16-bit block number, the closest to the next block
+		private int fromStart(int block) {
+			return next + (short) (block - next);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package request;
 
+import java.util.Map;
 
 
 /**
@@ -11,12 +12,16 @@ package request;
  */
 public class TFTPRequestBuilder {
 	public static int MAX_BYTES = 512; // Maximum data size for a single TFTP packet (512 bytes + headers)
+	public static final String TSIZE = "tsize"; // Name of the transfer size option (RFC 2349)
+	public static final String TIMEOUT = "timeout"; // Name of the retransmission timeout option (RFC 2349), in seconds
+	public static final String UTIMEOUT = "utimeout"; // Name of the retransmission timeout option in microseconds
+	public static final String WINDOWSIZE = "windowsize"; // Name of the window size option (RFC 7440), in blocks
 
 	/**
 	 * Enum representing TFTP operation codes (opcodes).
 	 */
 	public enum OPCODE {
-		NOOP(0), RRQ(1), WRQ(2), DATA(3), ACK(4), ERROR(5);
+		NOOP(0), RRQ(1), WRQ(2), DATA(3), ACK(4), ERROR(5), OACK(6), PARITY(7);
 		private final int value;
 		OPCODE(int value) {
 			this.value = value;
@@ -39,6 +44,19 @@ public class TFTPRequestBuilder {
 	}
 
 
+	/**
+	 * Builds a RRQ packet carrying options, as name and value pairs following the mode.
+	 * @param buf The buffer to fill with the packet data.
+	 * @param filename The name of the file being requested.
+	 * @param options The options to request.
+	 * @return The length of the completed packet.
+	 */
+	public static int createPackRRQ(byte[] buf, String filename, Map<String, String> options) {
+		int length = createPackRRQorWRQ(buf, OPCODE.RRQ, filename);
+		return length + createPackOptions(buf, length, options);
+	}
+
+
 	/**
 	 * Builds a WRQ packet for sending a file to the server.
 	 * @param buf The buffer to fill with the packet data.
@@ -50,6 +68,19 @@ public class TFTPRequestBuilder {
 	}
 
 
+	/**
+	 * Builds a WRQ packet carrying options, as name and value pairs following the mode.
+	 * @param buf The buffer to fill with the packet data.
+	 * @param filename The name of the file being sent.
+	 * @param options The options to request.
+	 * @return The length of the completed packet.
+	 */
+	public static int createPackWRQ(byte[] buf, String filename, Map<String, String> options) {
+		int length = createPackRRQorWRQ(buf, OPCODE.WRQ, filename);
+		return length + createPackOptions(buf, length, options);
+	}
+
+
 	/**
 	 * Helper method to construct a RRQ or WRQ packet.
 	 * The method uses the octet mode as the transfer mode according to the TFTP specifications.
@@ -73,6 +104,26 @@ public class TFTPRequestBuilder {
 
 
 
+	/**
+	 * Appends options to a byte buffer as null terminated name and value strings.
+	 * @param buf The buffer to which the options will be appended.
+	 * @param offset The offset in the buffer at which to start appending.
+	 * @param options The options and their values.
+	 * @return The number of bytes consumed in the buffer.
+	 */
+	public static int createPackOptions(byte[] buf, int offset, Map<String, String> options) {
+		int length = 0;
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			length += createPackString(buf, offset + length, option.getKey());
+			buf[offset + length++] = 0;
+			length += createPackString(buf, offset + length, option.getValue());
+			buf[offset + length++] = 0;
+		}
+		return length;
+	}
+
+
+
 	/**
 	 * Builds a DATA packet containing a block of file data.
 	 * @param buf The buffer to fill with the packet data.
@@ -100,6 +151,39 @@ public class TFTPRequestBuilder {
 
 
 
+	/**
+	 * Builds the header of a parity packet, which the XOR of the data of the blocks it covers follows.
+	 * @param buf The buffer to fill with the header.
+	 * @param block The block number of the first block of the group.
+	 * @param index The index of the parity packet in its group.
+	 * @param count The number of blocks in the group.
+	 * @param sizeXor The XOR of the sizes of the blocks the packet covers.
+	 * @return The length of the header.
+	 */
+	public static int createPackParityHeader(byte[] buf, int block, int index, int count, int sizeXor) {
+		int length = 0;
+		length += createPackUInt16(buf, length, OPCODE.PARITY.getValue());
+		length += createPackUInt16(buf, length, block);
+		buf[length++] = (byte) index;
+		buf[length++] = (byte) count;
+		length += createPackUInt16(buf, length, sizeXor);
+		return length;
+	}
+
+	/**
+	 * Builds the DATA packet that follows the end of a checksummed transfer, carrying the CRC32C
+	 * of the file contents as 8 hexadecimal digits.
+	 * @param buf The buffer to fill with the packet data.
+	 * @param block The block number, one past the block that ended the transfer.
+	 * @param checksum The CRC32C of the data sent.
+	 * @return The length of the completed packet.
+	 */
+	public static int createPackChecksum(byte[] buf, int block, long checksum) {
+		return createPackData(buf, block, String.format("%08x", checksum).getBytes());
+	}
+
+
+
 	/**
 	 * Builds an ACK packet acknowledging receipt of a data block.
 	 * @param buf The buffer to fill with the packet data.
@@ -0,0 +1,133 @@
+package request;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+// Sends transfers through a parity encoder, loses some of their blocks and takes them back from a decoder
+public class ParityTest {
+
+	private static final int BLOCK_BYTES = TFTPRequestBuilder.MAX_BYTES - 4;
+
+	// Any run of up to M lost blocks in a group is rebuilt, including in the short last group and its short last block
+	@Test
+	public void rebuildsRunsOfLostBlocks() throws Exception {
+		Random random = new Random(1);
+		for (int[] setting : new int[][]{{4, 1}, {8, 2}, {16, 4}, {64, 8}}) {
+			int groupSize = setting[0];
+			int parities = setting[1];
+			byte[][] blocks = randomBlocks(3 * groupSize + groupSize / 2 + 1, random);
+			for (int run = 1; run <= parities; run++) {
+				Set<Integer> lost = new HashSet<>();
+				for (int first = 1; first <= blocks.length; first += groupSize) {
+					int groupEnd = Math.min(first + groupSize, blocks.length + 1);
+					int start = first + random.nextInt(groupEnd - first);
+					for (int number = start; number < Math.min(start + run, groupEnd); number++) {
+						lost.add(number);
+					}
+				}
+				Parity.Decoder decoder = new Parity.Decoder(groupSize, parities);
+				List<byte[]> taken = transfer(blocks, lost, groupSize, parities, decoder);
+				assertEquals(blocks.length, taken.size());
+				for (int i = 0; i < blocks.length; i++) {
+					assertArrayEquals(blocks[i], taken.get(i));
+				}
+				assertEquals(lost.size(), decoder.getRebuilt());
+			}
+		}
+	}
+
+	// Two lost blocks covered by the same parity packet wait for a retransmission, which then lets the other be rebuilt
+	@Test
+	public void waitsForARetransmissionWhenAParityPacketCoversTwoLostBlocks() throws Exception {
+		byte[][] blocks = randomBlocks(4, new Random(2));
+		Set<Integer> lost = new HashSet<>();
+		lost.add(1);
+		lost.add(3);
+		Parity.Decoder decoder = new Parity.Decoder(4, 2);
+		assertTrue(decoder.awaitingParity());
+		assertTrue(transfer(blocks, lost, 4, 2, decoder).isEmpty());
+		assertFalse(decoder.awaitingParity());
+		assertNull(decoder.poll());
+
+		assertTrue(decoder.addData(1, blocks[0], blocks[0].length));
+		for (int i = 0; i < blocks.length; i++) {
+			TFTPRequestDecoder.DataPacket packet = decoder.poll();
+			assertEquals(i + 1, packet.blockNumber);
+			assertArrayEquals(blocks[i], packet.data);
+		}
+		assertEquals(1, decoder.getRebuilt());
+		assertFalse(decoder.addData(3, blocks[2], blocks[2].length));
+	}
+
+	// Block numbers wrap past 65535, and the blocks and parity packets after the wrap still land in their groups
+	@Test
+	public void followsBlockNumbersPastTheWrap() throws Exception {
+		Random random = new Random(3);
+		byte[][] blocks = new byte[70001][];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = new byte[i == blocks.length - 1 ? 3 : 16];
+			random.nextBytes(blocks[i]);
+		}
+		Set<Integer> lost = new HashSet<>();
+		// One block per group, among them block 65536, sent as block 0
+		for (int number = 65528; number < 65560; number += 4) {
+			lost.add(number);
+		}
+		Parity.Decoder decoder = new Parity.Decoder(4, 1);
+		List<byte[]> taken = transfer(blocks, lost, 4, 1, decoder);
+		assertEquals(blocks.length, taken.size());
+		for (int i = 0; i < blocks.length; i++) {
+			assertArrayEquals(blocks[i], taken.get(i));
+		}
+		assertEquals(lost.size(), decoder.getRebuilt());
+	}
+
+	// Sends the blocks but the lost ones, each group followed by its parity packets, and takes every block it can
+	private static List<byte[]> transfer(byte[][] blocks, Set<Integer> lost, int groupSize, int parities,
+			Parity.Decoder decoder) throws Exception {
+		Parity.Encoder encoder = new Parity.Encoder(groupSize, parities);
+		byte[] buf = new byte[Parity.maxPacketBytes()];
+		List<byte[]> taken = new ArrayList<>();
+		for (int number = 1; number <= blocks.length; number++) {
+			byte[] data = blocks[number - 1];
+			boolean ended = encoder.add(number & 0xFFFF, data, 0, data.length, number == blocks.length);
+			if (!lost.contains(number)) {
+				decoder.addData(number & 0xFFFF, data, data.length);
+			}
+			if (ended) {
+				for (int index = 0; index < encoder.getParityCount(); index++) {
+					int length = encoder.pack(buf, index);
+					decoder.addParity(TFTPRequestDecoder.decodeParity(buf, 0, length));
+				}
+			}
+			TFTPRequestDecoder.DataPacket packet;
+			while ((packet = decoder.poll()) != null) {
+				assertEquals((taken.size() + 1) & 0xFFFF, packet.blockNumber);
+				taken.add(packet.data);
+			}
+		}
+		return taken;
+	}
+
+	// Full blocks but the last, which is short
+	private static byte[][] randomBlocks(int count, Random random) {
+		byte[][] blocks = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			blocks[i] = new byte[i == count - 1 ? random.nextInt(BLOCK_BYTES) : BLOCK_BYTES];
+			random.nextBytes(blocks[i]);
+		}
+		return blocks;
+	}
+}
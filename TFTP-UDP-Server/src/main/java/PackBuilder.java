@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import request.PackFileStore;
+
+
+
+/**
+ * Tool that packs every file of a directory into one pack file, which the server maps at startup.
+ * Usage: {@code PackBuilder <directory> <pack>}
+ */
+public class PackBuilder {
+
+    /**
+     * Entry point of the tool.
+     *
+     * @param args the directory to pack and the pack file to write
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: PackBuilder <directory> <pack>");
+            System.exit(1);
+        }
+        try {
+            int count = PackFileStore.build(Paths.get(args[0]), Paths.get(args[1]));
+            System.out.println("Packed " + count + " files into " + args[1]);
+        } catch (IOException e) {
+            System.err.println("Error building pack: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
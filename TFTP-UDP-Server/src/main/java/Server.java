@@ -1,6 +1,21 @@
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import request.BlockCache;
+import request.ChunkStore;
+import request.Durability;
+import request.FileStore;
+import request.FileSystemStore;
+import request.FrameCache;
+import request.OverlayStore;
+import request.PackFileStore;
 
 /**
  * Server class that listens for incoming TFTP requests on a specific port and handles each request.
@@ -16,12 +31,104 @@ public class Server {
      * Main method to start the server. It initializes a socket on a specified port and continuously
      * listens for incoming datagram packets. Each packet is processed by a TFTPRequestHandler.
      *
-     * @param args Command line arguments (not used in this server).
+     * @param args Command line arguments: optionally, {@code --durability=none|fsync|group},
+     *             {@code --direct-above=<megabytes>}, {@code --rate=<kilobytes per second>} to send every transfer at
+     *             a fixed rate instead of one following its congestion window, {@code --multicast=<group>:<port>} to
+     *             send the downloads clients ask to share to a multicast group (RFC 2090), with
+     *             {@code --multicast-interface=<address>} the address of the interface to send them from instead of
+     *             the one the master client of each download is reached through, and a pack
+     *             file to serve, built with {@link PackBuilder}.
      * @throws Exception if an I/O error occurs.
      */
     public static void main(String[] args) throws Exception {
         // Create a DatagramSocket to receive and respond to UDP packets
-        DatagramSocket socket = new DatagramSocket(PORT);
+        // It is backed by a channel, so encoded packets can be sent straight from off-heap memory
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(PORT));
+        DatagramSocket socket = channel.socket();
+        String packName = null;
+        Durability durability = Durability.GROUP; // Uploads completing together share one wait for the disk
+        long directAbove = Long.MAX_VALUE; // Every upload goes through the page cache unless asked otherwise
+        long pacingRate = 0; // Transfers are paced by their congestion window unless a rate is given
+        InetSocketAddress multicastAddress = null; // Every download is sent to its client alone unless a group is given
+        String multicastInterface = null; // Each group is sent from the interface its master client is reached through unless one is given
+        for (String arg : args) {
+            if (arg.startsWith("--direct-above=")) {
+                try {
+                    directAbove = Long.parseLong(arg.substring("--direct-above=".length())) * 1024 * 1024;
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid size: " + arg);
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--rate=")) {
+                try {
+                    pacingRate = Long.parseLong(arg.substring("--rate=".length())) * 1024;
+                } catch (NumberFormatException e) {
+                    pacingRate = -1;
+                }
+                if (pacingRate <= 0) {
+                    System.out.println("Invalid rate: " + arg);
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--multicast=")) {
+                String value = arg.substring("--multicast=".length());
+                int colon = value.lastIndexOf(':');
+                try {
+                    multicastAddress = new InetSocketAddress(InetAddress.getByName(value.substring(0, colon)),
+                            Integer.parseInt(value.substring(colon + 1)));
+                } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                    multicastAddress = null;
+                }
+                if (multicastAddress == null || !multicastAddress.getAddress().isMulticastAddress()) {
+                    System.out.println("Invalid multicast group: " + arg);
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--multicast-interface=")) {
+                multicastInterface = arg.substring("--multicast-interface=".length());
+            } else if (arg.startsWith("--durability=")) {
+                try {
+                    durability = Durability.valueOf(arg.substring("--durability=".length()).toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Unknown durability policy: " + arg);
+                    System.exit(1);
+                }
+            } else {
+                packName = arg;
+            }
+        }
+        // Files are served from the working directory, resolved once for every request
+        FileStore files = new FileSystemStore(Paths.get("."), durability);
+        System.out.println("Uploads are made durable with policy " + durability);
+        if (packName != null) {
+            // The pack is mapped once, so its files are served without opening anything
+            PackFileStore pack = new PackFileStore(Paths.get(packName));
+            System.out.println("Serving " + pack.getFileCount() + " files from pack " + packName);
+            files = new OverlayStore(pack, files);
+        }
+        ChunkStore store = new ChunkStore(files, directAbove);
+        if (directAbove != Long.MAX_VALUE) {
+            // Huge uploads are rarely read back, so they are kept from evicting the files that are
+            System.out.println("Uploads over " + directAbove + " bytes bypass the page cache");
+        }
+        if (pacingRate > 0) {
+            System.out.println("Transfers are paced at " + pacingRate + " bytes/s");
+        }
+        NetworkInterface networkInterface = null;
+        if (multicastAddress != null) {
+            if (multicastInterface != null) {
+                networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(multicastInterface));
+                if (networkInterface == null) {
+                    System.out.println("No interface with address " + multicastInterface);
+                    System.exit(1);
+                }
+            }
+            // Clients on the server's own host are members like any other
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            System.out.println("Multicast downloads are sent to " + multicastAddress);
+        }
+        // One cache for every client, so a file many clients ask for is read from disk once
+        BlockCache cache = new BlockCache(BlockCache.DEFAULT_CAPACITY, store);
+        FrameCache frameCache = new FrameCache(FrameCache.DEFAULT_CAPACITY);
 
         while (true) { // Run an infinite loop to keep the server running
             byte[] buffer = new byte[1024]; // Buffer to store incoming data
@@ -37,7 +144,8 @@ public class Server {
             if (!clients.containsKey(clientAddress)) {
                 System.out.println("New client: " + clientAddress);
                 // If not, create a new TFTPRequestHandler and add it to the map
-                clients.put(clientAddress, new TFTPRequestHandler(socket));
+                clients.put(clientAddress, new TFTPRequestHandler(socket, cache, frameCache, store, pacingRate, multicastAddress,
+                        networkInterface));
             }
 
             // Retrieve the handler for the current client and handle the received packet
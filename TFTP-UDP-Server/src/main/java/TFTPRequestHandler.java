@@ -5,30 +5,92 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
 import java.nio.channels.DatagramChannel;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.AccessDeniedException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
 
 
 
 // Defines a server thread responsible for handling individual client requests using the TFTP protocol.
 public class TFTPRequestHandler {
 
+    // Retransmission timeout of a session that did not negotiate one
+    private static final int DEFAULT_TIMEOUT_MS = 2000;
+    // Times a packet is sent again without an ACK before the transfer is given up
+    private static final int MAX_RETRANSMISSIONS = 5;
+    // Largest window size accepted, in blocks; a session that did not negotiate one sends a block at a time
+    private static final int MAX_WINDOW = 64;
+    // Duplicate ACKs that report a block as lost, shrinking the window without sending anything again
+    private static final int DUPLICATE_ACKS = 3;
+    // Returned by receiveWindowACK when the next block may leave before any ACK arrived
+    private static final int PACED = -2;
+    // Port a socket is connected to only to find the local address a client is reached from, nothing is sent to it
+    private static final int PROBE_PORT = 9;
+
     // Fields for packet, socket, and status management
     private DatagramPacket requestPacket;
     private boolean running;
     private final DataPacketsBuilder dataPacketsBuilder;
     private  RequestHandlerLogger logger;
     private final DatagramSocket socket;
+    private final BlockCache cache; // Block cache shared by every client, which files are read through
+    private final FrameCache frameCache; // Encoded DATA packets of popular files, shared by every client
+    private final ChunkStore store; // Store uploads are saved to, checked for room before one is accepted
+    private CRC32C checksum; // Running checksum of the current upload, or null if none was negotiated
+    private boolean awaitingChecksum; // True once the last block of a checksummed upload has arrived
+    private int lastBlock; // Block number of the last packet of the current upload that was acknowledged
+    private int timeoutMs = DEFAULT_TIMEOUT_MS; // Retransmission timeout negotiated by the current request
+    private int windowSize = 1; // Window size negotiated by the current request, the cap of its congestion window
+    private final long pacingRate; // Rate blocks are sent at in bytes per second, 0 to follow the congestion window
+    private int parityGroup; // Blocks per group of forward error correction negotiated by the current request, 0 if none
+    private int parityCount; // Parity packets per group of forward error correction
+    private Parity.Decoder parityDecoder; // Holds the blocks of the current upload and rebuilds lost ones, or null if it has no parity
+    private boolean uploading; // True from the WRQ of an upload until it is saved or refused
+    private long lastDataAt; // When the last DATA packet of the current upload arrived, as given by System.nanoTime
+    private int duplicates; // DATA packets of the current upload that arrived again after their block was taken
+    private final InetSocketAddress multicastAddress; // Group multicast downloads are sent to, or null if the server sends none
+    private final NetworkInterface multicastInterface; // Interface groups are sent from, or null for the one each master client is reached through
+    private SocketAddress peer; // Client the current download takes ACKs from, packets from any other one are not its own
+    private Multicast.Group group; // Multicast group of the current download, which other clients join, or null
+
+    // Sends a packet of a transfer again, when its ACK did not arrive in time
+    private interface Retransmission {
+        void send() throws IOException;
+    }
+
+    // Sends a block of a windowed transfer, for the first time or again after it was lost
+    private interface BlockSender {
+        void send(int block, boolean first) throws IOException;
+    }
 
-    // Constructor initializes the socket and sets the thread as running
-    public TFTPRequestHandler(DatagramSocket socket)  {
+    // Constructor initializes the socket, the shared caches, the store uploads are saved to, the pacing rate and the
+    // multicast group and its interface, and sets the thread as running
+    public TFTPRequestHandler(DatagramSocket socket, BlockCache cache, FrameCache frameCache, ChunkStore store, long pacingRate,
+                              InetSocketAddress multicastAddress, NetworkInterface multicastInterface)  {
         System.out.println("Server thread started");
         this.socket = socket;
+        this.cache = cache;
+        this.frameCache = frameCache;
         this.running = true;
-        this.dataPacketsBuilder = new DataPacketsBuilder();
+        this.store = store;
+        this.pacingRate = pacingRate;
+        this.multicastAddress = multicastAddress;
+        this.multicastInterface = multicastInterface;
+        this.dataPacketsBuilder = new DataPacketsBuilder(store);
     }
 
 
@@ -61,6 +123,9 @@ public class TFTPRequestHandler {
                 case DATA:
                     handleData(requestPacket);
                     break;
+                case PARITY:
+                    handleParity(requestPacket);
+                    break;
                 case ACK:
                     break;
                 case ERROR:
@@ -93,16 +158,59 @@ public class TFTPRequestHandler {
             // filename for the data packets builder
 
             logger.logWRQ(request.filename);
+            // A WRQ the client sent again before the OACK reached it may arrive after the upload started, and would
+            // throw away the blocks taken so far: while the upload's DATA keeps coming, it is a duplicate and ignored
+            if (uploading && lastBlock != 0 && request.filename.equals(dataPacketsBuilder.getFilename())
+                    && System.nanoTime() - lastDataAt < TimeUnit.MILLISECONDS.toNanos(timeoutMs)) {
+                logger.logError("Ignored duplicate WRQ for " + request.filename);
+                return;
+            }
+            try {
+                FileStore.checkRequestName(request.filename);
+            } catch (AccessDeniedException e) {
+                sendError(packet, 0b010, "Access violation");
+                return;
+            }
+            // Refuse an upload the store has no room for before any of it arrives
+            long transferSize = TFTPRequestDecoder.decodeTransferSize(request.options);
+            if (!hasSpace(transferSize)) {
+                sendError(packet, 0b011, "Disk full or allocation exceeded");
+                return;
+            }
             dataPacketsBuilder.setFilename(request.filename);
-
-            // Send ACK back
-            sendACK(0, packet);
+            dataPacketsBuilder.setExpectedSize(Math.max(transferSize, 0));
+            awaitingChecksum = false;
+            lastBlock = 0;
+            uploading = true;
+            duplicates = 0;
+
+            // Accepted options are acknowledged with an OACK in place of the ACK of block 0
+            Map<String, String> accepted = new LinkedHashMap<>();
+            if (Checksum.CRC32C.equals(request.options.get(Checksum.OPTION))) {
+                checksum = new CRC32C();
+                accepted.put(Checksum.OPTION, Checksum.CRC32C);
+            } else {
+                checksum = null;
+            }
+            if (transferSize >= 0) {
+                accepted.put(TFTPRequestBuilder.TSIZE, String.valueOf(transferSize));
+            }
+            // The client retransmits during an upload, the server only answers its duplicate packets again
+            negotiateTimeout(request.options, accepted);
+            negotiateWindow(request.options, accepted);
+            negotiateParity(request.options, accepted);
+            parityDecoder = parityGroup > 0 ? new Parity.Decoder(parityGroup, parityCount) : null;
+            if (!accepted.isEmpty()) {
+                sendOACK(packet.getSocketAddress(), accepted);
+            } else {
+                sendACK(0, packet);
+            }
         } else {
             // If the operation is a read, we should send the file
             // to the client
             logger.logRRQ(request.filename);
             try {
-                sendFile(request.filename, packet);
+                sendFile(request.filename, packet, request.options);
             } catch (Exception e) {
                 System.err.println("Error sending file");
             }
@@ -121,67 +229,571 @@ public class TFTPRequestHandler {
     // send each chunk
     // wait for ACK
     // repeat until all chunks sent
-    public void sendFile(String filename, DatagramPacket packet) {
-        // Read file as byte array
-        byte[] file = null;
+    // if the client asked for a checksum, an OACK comes first and the CRC32C is sent after the last chunk
+    // if the client asked for the size of the file or a timeout, the OACK carries them too
+    // a packet whose ACK does not arrive within the session's timeout is sent again
+    // if the client asked for a window size, blocks are sent ahead of their ACKs through a congestion window capped by it
+    // if the client asked for forward error correction, every group of blocks is followed by its parity packets
+    // if the client asked for multicast and the server has a group, the blocks are sent to the group, which other clients
+    // asking for the same file meanwhile join, and the ones they missed are sent to each of them afterwards
+    // the file is read through the server's block cache, straight into each DATA packet
+    // popular files are sent from their encoded packets instead, handing each one to the socket's channel as it is
+    public void sendFile(String filename, DatagramPacket packet, Map<String, String> options) {
+        BlockCache.CachedFile file;
         try {
-            // Read the filename from the resources folder
-            String path = new java.io.File(".").getCanonicalPath() +  "/" + filename;
-            file = Files.readAllBytes(Paths.get(path));
+            // Uploaded files are rebuilt from their chunks, other files are read from the served folder
+            file = cache.open(filename);
+        } catch (AccessDeniedException e) {
+            sendError(packet, 0b010, "Access violation");
+            return;
         } catch (IOException e) {
+            file = null;
+        }
+        if (file == null) {
             // If there was an error reading the file, send an error packet
             sendError(packet);
             return;
         }
+        // The file keeps reading the version opened here until the transfer is over, even if an upload replaces it
+        try {
+            sendContents(filename, file, packet, options);
+        } finally {
+            file.close();
+        }
+    }
 
+    // Sends the contents of an opened file, from its encoded packets if it is popular, or block by block
+    private void sendContents(String filename, BlockCache.CachedFile file, DatagramPacket packet, Map<String, String> options) {
         byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
         DatagramPacket ackPacket = new DatagramPacket(buffer, TFTPRequestBuilder.MAX_BYTES, packet.getAddress(), packet.getPort());
-        // Split file into packets
-        int numPackets = (int) Math.ceil((double) file.length / (TFTPRequestBuilder.MAX_BYTES - 4));
-        for (int i = 1; i <= numPackets; i++) {
-            // clear buffer
-            buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
-            // Get the current packet (leaving room for the opcode and block number - 4 bytes total)
-            int start = (i - 1) * (TFTPRequestBuilder.MAX_BYTES - 4);
-            int end = Math.min(start + TFTPRequestBuilder.MAX_BYTES - 4, file.length);
-            byte[] packetToSend = new byte[end - start];
-            System.arraycopy(file, start, packetToSend, 0, end - start);
-            // Build data packet by splitting file into 512 byte chunks
-            int dataReqSize = TFTPRequestBuilder.createPackData(buffer, i, packetToSend);
-            DatagramPacket dataPacket = new DatagramPacket(buffer, dataReqSize, packet.getAddress(), packet.getPort());
+        peer = packet.getSocketAddress();
+
+        // Accept the checksum and timeout and report the size with an OACK, which the client acknowledges as block 0
+        CRC32C checksum = null;
+        Map<String, String> accepted = new LinkedHashMap<>();
+        if (Checksum.CRC32C.equals(options.get(Checksum.OPTION))) {
+            checksum = new CRC32C();
+            accepted.put(Checksum.OPTION, Checksum.CRC32C);
+        }
+        int lastBlock = (int) (file.getSize() / (TFTPRequestBuilder.MAX_BYTES - 4) + 1) + (checksum != null ? 1 : 0);
+        boolean multicast = multicastAddress != null && options.containsKey(Multicast.OPTION) && lastBlock <= Multicast.MAX_BLOCKS
+                && sendToGroupToward(packet.getAddress());
+        // The members of a multicast group count the blocks to expect from the size, which is always reported to them
+        if (options.containsKey(TFTPRequestBuilder.TSIZE) || multicast) {
+            accepted.put(TFTPRequestBuilder.TSIZE, String.valueOf(file.getSize()));
+        }
+        negotiateTimeout(options, accepted);
+        negotiateWindow(options, accepted);
+        if (multicast) {
+            // Parity would only rebuild the blocks of one member, the others catch up by unicast instead
+            parityGroup = 0;
+            group = new Multicast.Group(multicastAddress, filename, lastBlock, accepted, (InetSocketAddress) peer);
+            accepted.put(Multicast.OPTION, Multicast.format(multicastAddress, true));
+        } else {
+            negotiateParity(options, accepted);
+        }
+        try {
+            if (!accepted.isEmpty()) {
+                sendOACK(peer, accepted);
+                if (!receiveACK(ackPacket, 0, () -> sendOACK(peer, accepted))) {
+                    logger.logError("Gave up sending " + filename);
+                    return;
+                }
+            }
+            sendBlocks(filename, file, packet, ackPacket, checksum);
+        } finally {
+            group = null;
+            // The socket is shared by every client, the server goes back to waiting for any packet
+            try {
+                socket.setSoTimeout(0);
+            } catch (SocketException e) {
+                System.err.println("Error resetting socket timeout");
+            }
+        }
+    }
+
+    // Sends the blocks of an opened file and its checksum, if one was negotiated
+    // a multicast download is sent to its group, and then to each member that missed blocks of it
+    private void sendBlocks(String filename, BlockCache.CachedFile file, DatagramPacket packet, DatagramPacket ackPacket,
+                            CRC32C checksum) {
+        // Split file into packets, a file that fills its last packet exactly is terminated by an extra empty one
+        int blockSize = TFTPRequestBuilder.MAX_BYTES - 4;
+        int numPackets = (int) (file.getSize() / blockSize + 1);
+
+        FrameCache.Frames frames = null;
+        DatagramChannel channel = socket.getChannel();
+        if (channel != null) {
+            try {
+                frames = frameCache.get(file, blockSize);
+            } catch (IOException e) {
+                System.err.println("Error encoding packets of " + filename);
+            }
+        }
+        SocketAddress target = group != null ? group.getAddress() : packet.getSocketAddress();
+        Parity.Encoder encoder = parityGroup > 0 ? new Parity.Encoder(parityGroup, parityCount) : null;
+        BlockSender sender;
+        if (frames != null) {
+            sender = framesSender(filename, frames, channel, target, encoder);
+        } else {
+            sender = fileSender(filename, file, numPackets, target, checksum, encoder);
+        }
+        try {
+            if (!sendWindow(numPackets, sender, ackPacket)) {
+                logger.logError("Gave up sending " + filename);
+                return;
+            }
+        } catch (IOException e) {
+            sendError(packet, 0, "Error reading " + filename);
+            return;
+        }
+
+        logger.logDATAEnd(filename, false);
+        logger.logFrameCache(frameCache.getHits(), frameCache.getEncoded(), frameCache.getUsedBytes());
+        logger.logCache(cache.getHits(), cache.getMisses(), cache.getCoalesced(), cache.getReadAheads(), cache.getEvictions(), cache.getUsedBytes(), cache.getCapacity());
+
+        // Send the digest in the block after the last one
+        byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+        int checksumSize = 0;
+        if (checksum != null) {
+            // The CRC32C of encoded packets was computed once, when they were encoded
+            long digest = frames != null ? frames.getChecksum() : checksum.getValue();
+            checksumSize = TFTPRequestBuilder.createPackChecksum(buffer, numPackets + 1, digest);
+            DatagramPacket checksumPacket = new DatagramPacket(buffer, checksumSize, target);
+            try {
+                socket.send(checksumPacket);
+                logger.logChecksum(filename, digest, false);
+            } catch (IOException e) {
+                System.err.println("Error sending checksum packet");
+            }
+            receiveACK(ackPacket, numPackets + 1, () -> socket.send(checksumPacket));
+        }
+
+        if (group != null) {
+            FrameCache.Frames encoded = frames;
+            int size = checksumSize;
+            try {
+                catchUp(ackPacket, member -> {
+                    BlockSender blocks = encoded != null ? framesSender(filename, encoded, channel, member, null)
+                            : fileSender(filename, file, numPackets, member, null, null);
+                    return (block, first) -> {
+                        if (block > numPackets) {
+                            socket.send(new DatagramPacket(buffer, size, member));
+                        } else {
+                            blocks.send(block, first);
+                        }
+                    };
+                });
+            } catch (IOException e) {
+                logger.logError("Error catching up the multicast group of " + filename);
+            }
+        }
+    }
+
+    // Sends blocks of an opened file, reading each one through the block cache straight into its packet
+    private BlockSender fileSender(String filename, BlockCache.CachedFile file, int numPackets, SocketAddress target,
+                                   CRC32C checksum, Parity.Encoder encoder) {
+        int blockSize = TFTPRequestBuilder.MAX_BYTES - 4;
+        byte[] dataBuffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+        return (block, first) -> {
+            // Read the block straight into the packet, after the opcode and block number - 4 bytes total
+            long position = (long) (block - 1) * blockSize;
+            int header = TFTPRequestBuilder.createPackDataHeader(dataBuffer, block);
+            int size = file.read(position, dataBuffer, header, (int) Math.min(blockSize, file.getSize() - position));
 
             // Send DATA packet
             try {
-                socket.send(dataPacket);
-                logger.logDATASent(filename, i, end - start, numPackets);
+                socket.send(new DatagramPacket(dataBuffer, header + size, target));
+                if (first) {
+                    logger.logDATASent(filename, block, size, numPackets);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 System.err.println("Error sending DATA packet");
             }
-            // Wait till we receive ACK
+            // Blocks are sent for the first time in order, so the checksum sees the file once, from start to end
+            if (first && checksum != null) {
+                checksum.update(dataBuffer, header, size);
+            }
+            if (first && encoder != null && encoder.add(block, dataBuffer, header, size, block == numPackets)) {
+                sendParities(encoder, target);
+            }
+        };
+    }
+
+    // Sends the encoded packets of a popular file, handing each one to the channel without copying it
+    // a retransmission takes a fresh view of the same packet
+    private BlockSender framesSender(String filename, FrameCache.Frames frames, DatagramChannel channel, SocketAddress target,
+                                     Parity.Encoder encoder) {
+        return (block, first) -> {
+            ByteBuffer frame = frames.frame(block);
+            int size = frame.remaining() - 4;
+            try {
+                channel.send(frame, target);
+                if (first) {
+                    logger.logDATASent(filename, block, size, frames.getCount());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error sending DATA packet");
+            }
+            if (first && encoder != null) {
+                byte[] data = new byte[size];
+                ByteBuffer payload = frames.frame(block);
+                payload.position(payload.position() + 4);
+                payload.get(data);
+                if (encoder.add(block, data, 0, size, block == frames.getCount())) {
+                    sendParities(encoder, target);
+                }
+            }
+        };
+    }
+
+    // Brings the other members of the multicast group up to date once the master client has the whole file, one at a time
+    // each one is made master with an OACK and acknowledges the block before the first one it is missing, which is sent
+    // to it alone, and so on until it acknowledges the last block; members that acknowledged it on their own are left out
+    // only an ACK past the block sent last asks for another, a duplicate one leaves the block to the session's timeout
+    private void catchUp(DatagramPacket ackPacket, Function<InetSocketAddress, BlockSender> senders) throws IOException {
+        group.finished((InetSocketAddress) peer);
+        int members = 0; // Members sent blocks they missed
+        int blocks = 0;
+        InetSocketAddress member;
+        while ((member = group.nextPending()) != null) {
+            // A member that stops answering is not made master again
+            group.finished(member);
+            peer = member;
+            BlockSender sender = senders.apply(member);
+            Map<String, String> promotion = group.oack(true);
+            sendOACK(member, promotion);
+            int sent = 0; // Block sent last, 0 while the OACK is not acknowledged
+            int retransmissions = 0;
+            while (true) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                int acked = receiveWindowACK(ackPacket, sent + 1, group.getLastBlock() + 1, deadline, deadline);
+                if (acked == group.getLastBlock()) {
+                    break;
+                }
+                if (acked < 0) {
+                    if (++retransmissions > MAX_RETRANSMISSIONS) {
+                        logger.logError("Gave up catching up " + member);
+                        break;
+                    }
+                    logger.logRetransmit(sent, retransmissions, timeoutMs);
+                    if (sent == 0) {
+                        sendOACK(member, promotion);
+                    } else {
+                        sender.send(sent, false);
+                    }
+                    continue;
+                }
+                if (sent == 0) {
+                    members++;
+                }
+                sent = acked + 1;
+                sender.send(sent, false);
+                blocks++;
+                retransmissions = 0;
+            }
+        }
+        logger.logMulticast(group.getFilename(), group.size(), members, blocks);
+    }
+
+    // Sends the multicast group from the interface given to the server, or else from the one a client is reached through,
+    // which is the one the client joins the group on; returns false if there is none, the download is then sent to it alone
+    private boolean sendToGroupToward(InetAddress client) {
+        try {
+            NetworkInterface networkInterface = multicastInterface;
+            if (networkInterface == null) {
+                try (DatagramSocket probe = new DatagramSocket()) {
+                    probe.connect(client, PROBE_PORT);
+                    networkInterface = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+                }
+            }
+            if (networkInterface == null) {
+                logger.logError("No interface to send the multicast group toward " + client.getHostAddress());
+                return false;
+            }
+            socket.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.logError("Error setting the multicast interface: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Checks that a packet received during a download comes from its client, handing any other one to the multicast group
+    private boolean fromPeer(DatagramPacket received) {
+        if (received.getSocketAddress().equals(peer)) {
+            return true;
+        }
+        if (group != null) {
+            offerToGroup(received);
+        }
+        return false;
+    }
+
+    // Lets the multicast group of the current download take a packet another client sent meanwhile
+    // an RRQ with the multicast option for the same file joins the group, and is answered again if its OACK was lost or
+    // the member hears nothing while it waits to catch up; the ACK of the last block reports a member has the whole file
+    private void offerToGroup(DatagramPacket received) {
+        // The receive buffer is reused, only the bytes of this packet are decoded
+        byte[] data = Arrays.copyOf(received.getData(), received.getLength());
+        InetSocketAddress client = (InetSocketAddress) received.getSocketAddress();
+        try {
+            OPCODE opcode = TFTPRequestDecoder.decodeOp(data);
+            if (opcode == OPCODE.RRQ) {
+                TFTPRequestDecoder.WrqOrRrqPacket request = TFTPRequestDecoder.decodeWRQorRRQ(data, 0);
+                if (request.options.containsKey(Multicast.OPTION) && request.filename.equals(group.getFilename())) {
+                    if (group.join(client)) {
+                        logger.logJoin(group.getFilename(), client.getAddress().getHostAddress() + ":" + client.getPort(), group.size());
+                    }
+                    sendOACK(client, group.oack(false));
+                }
+            } else if (opcode == OPCODE.ACK && TFTPRequestDecoder.decodeACK(data) == group.getLastBlock()) {
+                group.finished(client);
+            }
+        } catch (TFTPException e) {
+            System.err.println("Error decoding packet of another client");
+        }
+    }
+
+    // Sends blocks 1 to count through the session's congestion window, returns false if the client stopped acknowledging them
+    // the client acknowledges every block it takes in order, and answers a block out of order with the ACK of the last
+    // one it took, so an ACK covers every block up to its own and repeated ones report the block after it as lost
+    // on DUPLICATE_ACKS of them the window shrinks, and when the session's timeout passes without a new ACK it shrinks
+    // to one block and is sent again from the first block not acknowledged
+    // duplicate ACKs never send anything again by themselves: a receiver also answers a block it got twice with one, and
+    // sending data for it would double every duplicate that follows (the Sorcerer's Apprentice Syndrome, RFC 1123)
+    // blocks leave through the pacer, the time until the next one may leave is spent waiting for ACKs
+    // with forward error correction the group of the first block in flight is always sent whole, so its parity can rebuild it
+    private boolean sendWindow(int count, BlockSender sender, DatagramPacket ackPacket) throws IOException {
+        CongestionWindow window = new CongestionWindow(windowSize);
+        Pacer pacer = new Pacer(pacingRate, TFTPRequestBuilder.MAX_BYTES);
+        // With forward error correction a whole parity group may be in flight, more blocks than the window holds
+        int maxInFlight = Math.max(windowSize, parityGroup);
+        long[] sentAt = new long[maxInFlight]; // When each block in flight was first sent, by block number modulo maxInFlight
+        int base = 1; // First block not acknowledged
+        int next = 1; // Next block to send
+        int sent = 0; // Highest block sent so far
+        int recover = 0; // Highest block sent when the last loss was seen, the losses of the blocks up to it count once
+        int duplicates = 0; // Duplicate ACKs since the last new ACK
+        int duplicateAcks = 0;
+        int retransmissions = 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs); // When the first block in flight times out
+        while (base <= count) {
+            long delay = 0;
+            int inFlight = parityGroup > 0 ? Math.max(window.size(), parityGroup - (base - 1) % parityGroup) : window.size();
+            while (next <= count && next < base + inFlight) {
+                delay = pacer.delay();
+                if (delay > 0) {
+                    break;
+                }
+                sender.send(next, next > sent);
+                if (next > sent) {
+                    sentAt[next % maxInFlight] = System.nanoTime();
+                    sent = next;
+                }
+                next++;
+            }
+            // After a timeout the window is sent again from its first block, the client may acknowledge any block sent so far
+            int acked = receiveWindowACK(ackPacket, base, sent + 1, delay > 0 ? System.nanoTime() + delay : deadline, deadline);
+            if (acked == PACED) {
+                continue;
+            }
+            if (acked < 0) {
+                if (++retransmissions > MAX_RETRANSMISSIONS) {
+                    return false;
+                }
+                logger.logRetransmit(base, retransmissions, timeoutMs);
+                window.timedOut();
+                recover = sent;
+                duplicates = 0;
+                next = base;
+            } else if (acked >= base) {
+                // Blocks sent again since the last loss would give ambiguous round trips, only the others are measured
+                if (acked > recover) {
+                    pacer.sampleRtt(System.nanoTime() - sentAt[acked % maxInFlight]);
+                }
+                window.acknowledged(acked - base + 1);
+                base = acked + 1;
+                next = Math.max(next, base);
+                duplicates = 0;
+                retransmissions = 0;
+            } else {
+                // The lost block is left to the timeout, which a duplicate ACK does not push back
+                duplicateAcks++;
+                if (++duplicates == DUPLICATE_ACKS && base > recover) {
+                    window.lost();
+                    recover = sent;
+                    pacer.setWindow(window.size());
+                }
+                continue;
+            }
+            pacer.setWindow(window.size());
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        }
+        logger.logWindow(windowSize, window.getPeak(), window.getLosses(), window.getTimeouts(), duplicateAcks);
+        logger.logPacing(TimeUnit.NANOSECONDS.toMicros(pacer.getSmoothedRtt()), pacer.getRate(), pacer.getWaits());
+        return true;
+    }
+
+    // Waits for an ACK of a block sent, from base up to the one before next, or a duplicate ACK of the block before them,
+    // until a time given by System.nanoTime
+    // returns the block acknowledged, counted from the start of the transfer, -1 if the session's timeout passed, or
+    // PACED if the wait ended first because the next block may leave
+    // waits shorter than the socket's millisecond timeout are spent parked, the ACKs meanwhile are read after
+    private int receiveWindowACK(DatagramPacket ackPacket, int base, int next, long until, long deadline) throws IOException {
+        until = Math.min(until, deadline);
+        while (true) {
+            long remaining = until - System.nanoTime();
+            if (remaining <= 0) {
+                return until < deadline ? PACED : -1;
+            }
+            if (remaining < TimeUnit.MILLISECONDS.toNanos(1)) {
+                LockSupport.parkNanos(remaining);
+                continue;
+            }
+            socket.setSoTimeout((int) TimeUnit.NANOSECONDS.toMillis(remaining));
+            ackPacket.setLength(ackPacket.getData().length);
             try {
                 socket.receive(ackPacket);
-                // Ensure the ACK packet echos the block number we sent
-                assert TFTPRequestDecoder.decodeACK(ackPacket.getData()) == i;
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            if (!fromPeer(ackPacket)) {
+                continue;
+            }
+            try {
+                if (TFTPRequestDecoder.decodeOp(ackPacket.getData()) != OPCODE.ACK) {
+                    continue;
+                }
+                // Block numbers wrap around at 65536, the window is far smaller
+                int offset = (TFTPRequestDecoder.decodeACK(ackPacket.getData()) - (base - 1)) & 0xFFFF;
+                if (offset <= next - base) {
+                    if (offset > 0) {
+                        logger.logACK(base - 1 + offset, true);
+                    }
+                    return base - 1 + offset;
+                }
+            } catch (TFTPException e) {
+                System.err.println("Error decoding ACK packet");
+            }
+        }
+    }
 
-                logger.logACK(i, true);
-            } catch (Exception e) {
-                if (e instanceof TFTPException) {
-                    e.printStackTrace();
+    // Waits for the client to acknowledge the given block, sending the packet again each time the session's timeout
+    // passes without its ACK, and gives up after MAX_RETRANSMISSIONS of them
+    // a duplicate ACK of an earlier block does not restart the wait
+    private boolean receiveACK(DatagramPacket ackPacket, int block, Retransmission retransmission) {
+        for (int attempt = 0; attempt <= MAX_RETRANSMISSIONS; attempt++) {
+            if (attempt > 0) {
+                logger.logRetransmit(block, attempt, timeoutMs);
+                try {
+                    retransmission.send();
+                } catch (IOException e) {
+                    System.err.println("Error retransmitting block " + block);
+                }
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            try {
+                while (true) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    socket.setSoTimeout((int) remaining);
+                    ackPacket.setLength(ackPacket.getData().length);
+                    socket.receive(ackPacket);
+                    if (fromPeer(ackPacket) && TFTPRequestDecoder.decodeOp(ackPacket.getData()) == OPCODE.ACK
+                            && TFTPRequestDecoder.decodeACK(ackPacket.getData()) == (block & 0xFFFF)) {
+                        logger.logACK(block, true);
+                        return true;
+                    }
                 }
+            } catch (SocketTimeoutException e) {
+                // No ACK in time, send the packet again
+            } catch (IOException | TFTPException e) {
                 System.err.println("Error receiving ACK packet");
+                return false;
             }
+        }
+        return false;
+    }
 
+    // Sets the retransmission timeout of the session from the options of a request, accepting the option it came in
+    private void negotiateTimeout(Map<String, String> options, Map<String, String> accepted) {
+        int timeout = TFTPRequestDecoder.decodeTimeout(options);
+        if (timeout < 0) {
+            timeoutMs = DEFAULT_TIMEOUT_MS;
+            return;
         }
+        timeoutMs = timeout;
+        String option = options.containsKey(TFTPRequestBuilder.UTIMEOUT) ? TFTPRequestBuilder.UTIMEOUT : TFTPRequestBuilder.TIMEOUT;
+        accepted.put(option, options.get(option));
+    }
 
-        logger.logDATAEnd(filename, false);
+    // Sets the window size of the session from the options of a request, accepting at most MAX_WINDOW blocks
+    private void negotiateWindow(Map<String, String> options, Map<String, String> accepted) {
+        int window = TFTPRequestDecoder.decodeWindowSize(options);
+        if (window < 0) {
+            windowSize = 1;
+            return;
+        }
+        windowSize = Math.min(window, MAX_WINDOW);
+        accepted.put(TFTPRequestBuilder.WINDOWSIZE, String.valueOf(windowSize));
     }
 
-    private void sendError(DatagramPacket packet) {
+    // Sets the forward error correction of the session from the options of a request, accepting at most Parity.MAX_GROUP blocks per group
+    private void negotiateParity(Map<String, String> options, Map<String, String> accepted) {
+        int[] parity = Parity.parse(options.get(Parity.OPTION));
+        if (parity == null) {
+            parityGroup = 0;
+            return;
+        }
+        parityGroup = Math.min(parity[0], Parity.MAX_GROUP);
+        parityCount = Math.min(parity[1], parityGroup - 1);
+        accepted.put(Parity.OPTION, Parity.format(parityGroup, parityCount));
+    }
+
+    // Sends the parity packets of the group of blocks just sent
+    private void sendParities(Parity.Encoder encoder, SocketAddress target) {
+        byte[] buffer = new byte[Parity.maxPacketBytes()];
+        for (int i = 0; i < encoder.getParityCount(); i++) {
+            int size = encoder.pack(buffer, i);
+            try {
+                socket.send(new DatagramPacket(buffer, size, target));
+            } catch (IOException e) {
+                System.err.println("Error sending parity packet");
+            }
+        }
+    }
 
-        String msg = "File Not Found";
-        int errorCode = 0b001;
+    // Sends an OACK with the options accepted and their values
+    private void sendOACK(SocketAddress client, Map<String, String> accepted) {
+        byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
+        int size = TFTPRequestBuilder.createPackOACK(buffer, accepted);
+        try {
+            socket.send(new DatagramPacket(buffer, size, client));
+        } catch (IOException e) {
+            System.err.println("Error sending OACK packet");
+        }
+    }
 
+    // Checks that the store has room for an upload of the given size, -1 if unknown
+    // nothing is reserved, the check only fails an upload that cannot fit before any of it is sent
+    private boolean hasSpace(long bytes) {
+        try {
+            return bytes <= store.getFiles().getUsableSpace();
+        } catch (IOException e) {
+            return true; // The space is unknown, the upload fails when it runs out instead
+        }
+    }
+
+    private void sendError(DatagramPacket packet) {
+        sendError(packet, 0b001, "File Not Found");
+    }
+
+    // Sends an error packet with the given code and message to the client
+    private void sendError(DatagramPacket packet, int errorCode, String msg) {
         // Create an error packet
         byte[] buf = new byte[TFTPRequestBuilder.MAX_BYTES];
         int size = TFTPRequestBuilder.createPackError(buf, errorCode, msg);
@@ -203,9 +815,9 @@ public class TFTPRequestHandler {
         try {
             byte[] buffer = new byte[TFTPRequestBuilder.MAX_BYTES];
 
-            TFTPRequestBuilder.createPackAck(buffer, block);
+            int size = TFTPRequestBuilder.createPackAck(buffer, block);
 
-            DatagramPacket ackPacket = new DatagramPacket(buffer, buffer.length, packet.getAddress(), packet.getPort());
+            DatagramPacket ackPacket = new DatagramPacket(buffer, size, packet.getAddress(), packet.getPort());
 
             socket.send(ackPacket);
             logger.logACK(block, false);
@@ -216,26 +828,132 @@ public class TFTPRequestHandler {
     }
 
     // Handles receiving data packets and sending ACKs back
+    // blocks are only taken in order: a packet the client sent again because its ACK was lost, or one that arrived
+    // after a lost one of a window, is answered with the ACK of the last block taken
+    // a block that arrives again is counted as a duplicate and never written twice
+    // with forward error correction, the blocks after a lost one are held instead, until the lost one arrives again or
+    // is rebuilt from the parity of its group
     public void handleData(DatagramPacket packet) throws TFTPException {
-        TFTPRequestDecoder.DataPacket dataPacket = TFTPRequestDecoder.decodeData(packet.getData(), 0);
-        dataPacketsBuilder.addDataPacket(dataPacket);
-        logger.logDATAReceived(dataPacketsBuilder.getFilename(), dataPacket.blockNumber, dataPacket.size);
+        TFTPRequestDecoder.DataPacket dataPacket = TFTPRequestDecoder.decodeData(packet.getData(), 0, packet.getLength());
+        lastDataAt = System.nanoTime();
+        if (parityDecoder != null) {
+            if (parityDecoder.addData(dataPacket.blockNumber, dataPacket.data, dataPacket.size)) {
+                takeHeldBlocks(packet, true);
+            } else {
+                duplicates++;
+                sendACK(lastBlock, packet);
+            }
+            return;
+        }
+        if (dataPacket.blockNumber != ((lastBlock + 1) & 0xFFFF)) {
+            // Blocks up to the last one taken are duplicates, the others arrived after a lost one
+            if (((lastBlock - dataPacket.blockNumber) & 0xFFFF) < 0x8000) {
+                duplicates++;
+            }
+            sendACK(lastBlock, packet);
+            return;
+        }
+        lastBlock = dataPacket.blockNumber;
+        if (awaitingChecksum) {
+            verifyChecksum(packet);
+            return;
+        }
+        boolean last = takeBlock(dataPacket);
 
         // Send ACK back
         sendACK(dataPacket.blockNumber, packet);
 
-        if (packet.getLength() < TFTPRequestBuilder.MAX_BYTES) {
-            // Check if we have received the last packet by checking if the size is less than the max size
-            // If it is the last packet, we should write the file
-            logger.logDATAEnd(dataPacketsBuilder.getFilename(), true);
-            try {
-                logger.logFileSave(dataPacketsBuilder.getFilename());
-                dataPacketsBuilder.save();
-            } catch (Exception e) {
+        if (last) {
+            endUpload();
+        }
+    }
+
+    // Handles a parity packet of an upload with forward error correction, taking the blocks it rebuilt
+    public void handleParity(DatagramPacket packet) throws TFTPException {
+        if (parityDecoder == null) {
+            return;
+        }
+        parityDecoder.addParity(TFTPRequestDecoder.decodeParity(packet.getData(), 0, packet.getLength()));
+        takeHeldBlocks(packet, false);
+    }
+
+    // Takes the blocks the parity decoder holds, in order, and acknowledges the last one taken
+    // when a DATA packet let none be taken, the ACK is sent again to report the next block lost, unless the parity
+    // packet that may rebuild it is still to come
+    private void takeHeldBlocks(DatagramPacket packet, boolean afterData) {
+        boolean took = false;
+        boolean last = false;
+        TFTPRequestDecoder.DataPacket dataPacket;
+        while (!last && (dataPacket = parityDecoder.poll()) != null) {
+            lastBlock = dataPacket.blockNumber;
+            last = takeBlock(dataPacket);
+            took = true;
+        }
+        if (took || afterData && !parityDecoder.awaitingParity()) {
+            sendACK(lastBlock, packet);
+        }
+        if (last) {
+            logger.logParity(dataPacketsBuilder.getFilename(), parityDecoder.getRebuilt());
+            parityDecoder = null;
+            endUpload();
+        }
+    }
+
+    // Adds a block taken in order to the upload, returns true if it is the last one
+    private boolean takeBlock(TFTPRequestDecoder.DataPacket dataPacket) {
+        dataPacketsBuilder.addDataPacket(dataPacket);
+        if (checksum != null) {
+            checksum.update(dataPacket.data, 0, dataPacket.size);
+        }
+        logger.logDATAReceived(dataPacketsBuilder.getFilename(), dataPacket.blockNumber, dataPacket.size);
+        // The last packet is the one shorter than the max size
+        return dataPacket.size < TFTPRequestBuilder.MAX_BYTES - 4;
+    }
+
+    // Ends an upload once its last block is taken
+    // the file is written, once its checksum has been verified if there is one
+    private void endUpload() {
+        logger.logDATAEnd(dataPacketsBuilder.getFilename(), true);
+        logger.logDuplicates(dataPacketsBuilder.getFilename(), duplicates);
+        if (checksum != null) {
+            awaitingChecksum = true;
+            return;
+        }
+        save();
+    }
+
+    // Compares the CRC32C sent after the last block with the one computed on arrival, saving the file if they match
+    private void verifyChecksum(DatagramPacket packet) throws TFTPException {
+        awaitingChecksum = false;
+        long expected = TFTPRequestDecoder.decodeChecksum(packet.getData(), 0, packet.getLength());
+        String filename = dataPacketsBuilder.getFilename();
+        if (expected != checksum.getValue()) {
+            sendError(packet, 0, String.format("Checksum mismatch for %s - expected %08x, computed %08x",
+                    filename, expected, checksum.getValue()));
+            dataPacketsBuilder.reset();
+            uploading = false;
+        } else {
+            logger.logChecksum(filename, expected, true);
+            sendACK(TFTPRequestDecoder.decodeData(packet.getData(), 0, packet.getLength()).blockNumber, packet);
+            save();
+        }
+        checksum = null;
+    }
+
+    // Writes the received file to disk
+    // the last ACK is already sent, so the file is finished by the writer while this thread serves other packets
+    private void save() {
+        uploading = false;
+        String filename = dataPacketsBuilder.getFilename();
+        logger.logFileSave(filename);
+        dataPacketsBuilder.save().whenComplete((saved, e) -> {
+            if (e != null) {
                 System.err.println("Error writing file");
-                e.printStackTrace();
+                WriteBehind.unwrap(e).printStackTrace();
             }
-        }
+            // The upload may have created a file that earlier requests found missing
+            cache.forgetMissing(filename);
+        });
     }
 
 }
@@ -0,0 +1,403 @@
+package request;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+
+
+/**
+ * Keeps uploaded files as content-addressed chunks, so content shared between uploads is stored once.
+ * Every chunk lives in a file named by its SHA-256 under {@code .chunks/objects}, and every stored filename has a
+ * manifest under {@code .chunks/manifests} listing its chunks in order. A file with a manifest is served from its
+ * chunks, and a plain file of the same name is only used when no manifest exists.
+ * Chunks and manifests are kept in the server's {@link FileStore} and only published once fully written, so readers
+ * never see a partial one. Chunks are committed without waiting for the disk, and a manifest is only committed once
+ * every chunk it lists is durable, so the chunks of an upload are forced together rather than one at a time.
+ * The chunks of uploads larger than a threshold are written around the page cache, so huge files that are rarely read
+ * back do not push the hot files out of it.
+ */
+public class ChunkStore {
+
+    /**
+     * Directory of the chunk store, relative to the directory the server serves. Clients cannot name files in it.
+     */
+    public static final String DIRECTORY = ".chunks";
+
+    // Directories of the chunks and the manifests, relative to the directory the server serves
+    private static final String OBJECTS = DIRECTORY + "/objects/";
+    private static final String MANIFESTS = DIRECTORY + "/manifests/";
+
+    private final FileStore files;
+    private final long directAbove;// Size above which uploads bypass the page cache
+    // Commits of the chunks not durable yet, by name; a failed commit stays until the chunk is put again
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+
+    /**
+     * Lists the chunks a stored file is made of.
+     */
+    public static class Manifest {
+        public final List<Chunker.Chunk> chunks;// Chunks of the file, in order
+        public final long size;// Size of the file in bytes
+
+        // Constructor for the manifest
+        public Manifest(List<Chunker.Chunk> chunks) {
+            this.chunks = chunks;
+            this.size = chunks.isEmpty() ? 0 : chunks.get(chunks.size() - 1).offset + chunks.get(chunks.size() - 1).length;
+        }
+
+        /**
+         * Finds the chunk holding a byte of the file, by binary search over the chunk offsets.
+         *
+         * @param position the offset of the byte in the file
+         * @return the index of the chunk, or the number of chunks if the position is past the end of the file
+         */
+        public int chunkAt(long position) {
+            int low = 0;
+            int high = chunks.size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                Chunker.Chunk chunk = chunks.get(middle);
+                if (position < chunk.offset) {
+                    high = middle - 1;
+                } else if (position >= chunk.offset + chunk.length) {
+                    low = middle + 1;
+                } else {
+                    return middle;
+                }
+            }
+            return chunks.size();
+        }
+    }
+
+
+    /**
+     * Constructor for ChunkStore, writing every upload through the page cache.
+     *
+     * @param files the store the chunks and manifests are kept in, next to the files the server serves
+     * @throws IOException if the store's directories cannot be created
+     */
+    public ChunkStore(FileStore files) throws IOException {
+        this(files, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Constructor for ChunkStore.
+     *
+     * @param files       the store the chunks and manifests are kept in, next to the files the server serves
+     * @param directAbove the size in bytes above which the chunks of an upload bypass the page cache
+     * @throws IOException if the store's directories cannot be created
+     */
+    public ChunkStore(FileStore files, long directAbove) throws IOException {
+        this.files = files;
+        this.directAbove = directAbove;
+        Path directory = files.getDirectory();
+        if (directory != null) {
+            // The manifest directory has to exist to be watched for new files
+            Files.createDirectories(directory.resolve(OBJECTS));
+            Files.createDirectories(directory.resolve(MANIFESTS));
+        }
+    }
+
+
+    /**
+     * Gets the store the chunks and manifests are kept in.
+     *
+     * @return the file store
+     */
+    public FileStore getFiles() {
+        return files;
+    }
+
+
+    /**
+     * Checks whether the chunks of an upload of a given size should bypass the page cache.
+     *
+     * @param size the size of the upload in bytes, or the bytes received so far if it is not known yet
+     * @return true to write the chunks directly, false to write them through the page cache
+     */
+    public boolean isDirect(long size) {
+        return size > directAbove;
+    }
+
+
+    /**
+     * Checks whether the store holds a chunk.
+     *
+     * @param hash the SHA-256 of the chunk
+     * @return true if the chunk is stored, false otherwise
+     * @throws IOException if the store cannot be read
+     */
+    public boolean contains(byte[] hash) throws IOException {
+        String name = chunkName(hash);
+        CompletableFuture<Void> commit = pending.get(name);
+        if (commit != null && !commit.isCompletedExceptionally()) {
+            return true;
+        }
+        return files.stat(name) != null;
+    }
+
+
+    /**
+     * Stores a chunk, unless a chunk with the same hash is already stored.
+     * The chunk may not be durable yet when this returns, {@link #putManifest} waits for it.
+     *
+     * @param hash   the SHA-256 of the chunk
+     * @param data   the buffer holding the chunk
+     * @param offset the offset of the chunk in the buffer
+     * @param length the length of the chunk
+     * @throws IOException if the chunk cannot be written
+     */
+    public void put(byte[] hash, byte[] data, int offset, int length) throws IOException {
+        put(hash, data, offset, length, false);
+    }
+
+
+    /**
+     * Stores a chunk, unless a chunk with the same hash is already stored, bypassing the page cache if asked to.
+     * The chunk may not be durable yet when this returns, {@link #putManifest} waits for it.
+     *
+     * @param hash   the SHA-256 of the chunk
+     * @param data   the buffer holding the chunk
+     * @param offset the offset of the chunk in the buffer
+     * @param length the length of the chunk
+     * @param direct whether to bypass the page cache, as {@link #isDirect} decides for the upload
+     * @throws IOException if the chunk cannot be written
+     */
+    public void put(byte[] hash, byte[] data, int offset, int length, boolean direct) throws IOException {
+        if (contains(hash)) {
+            return;
+        }
+        String name = chunkName(hash);
+        CompletableFuture<Void> commit;
+        try (FileStore.WriteChannel channel = files.openWrite(name, direct)) {
+            channel.write(ByteBuffer.wrap(data, offset, length), 0);
+            commit = channel.commitAsync();
+        }
+        pending.put(name, commit);
+        commit.thenRun(() -> pending.remove(name, commit));
+    }
+
+
+    /**
+     * Stores a whole file: stores the chunks not held yet and records its manifest.
+     *
+     * @param filename the name of the file
+     * @param data     the buffer holding the file
+     * @param chunks   the chunks the file was split into
+     * @return the number of chunks that were not stored before
+     * @throws IOException if the file cannot be stored
+     */
+    public int store(String filename, byte[] data, List<Chunker.Chunk> chunks) throws IOException {
+        int added = 0;
+        for (Chunker.Chunk chunk : chunks) {
+            if (!contains(chunk.hash)) {
+                put(chunk.hash, data, (int) chunk.offset, chunk.length);
+                added++;
+            }
+        }
+        putManifest(filename, chunks);
+        return added;
+    }
+
+
+    /**
+     * Records the manifest of a file whose chunks are all stored, replacing any plain file of the same name.
+     * Waits for the chunks to be durable first, so a manifest never outlives the chunks it lists.
+     *
+     * @param filename the name of the file
+     * @param chunks   the chunks of the file, in order
+     * @throws java.nio.file.AccessDeniedException if the name reaches outside the store or into the chunk store
+     * @throws IOException if the manifest cannot be written
+     */
+    public void putManifest(String filename, List<Chunker.Chunk> chunks) throws IOException {
+        // The plain file deleted below must never be a chunk or a manifest another file depends on
+        FileStore.checkRequestName(filename);
+        StringBuilder manifest = new StringBuilder();
+        for (Chunker.Chunk chunk : chunks) {
+            awaitChunk(chunkName(chunk.hash));
+            manifest.append(Chunker.toHex(chunk.hash)).append(' ').append(chunk.length).append('\n');
+        }
+        write(MANIFESTS + filename, ByteBuffer.wrap(manifest.toString().getBytes(StandardCharsets.US_ASCII)));
+        // The manifest is now the file's content, a stale plain copy would only waste space
+        files.delete(filename);
+    }
+
+
+    /**
+     * Reads the manifest of a stored file.
+     *
+     * @param filename the name of the file
+     * @return the manifest, or null if the file is not in the store
+     * @throws IOException if the manifest cannot be read
+     */
+    public Manifest getManifest(String filename) throws IOException {
+        List<Chunker.Chunk> chunks = new ArrayList<>();
+        long offset = 0;
+        String text;
+        try {
+            text = new String(readAll(MANIFESTS + filename), StandardCharsets.US_ASCII);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new StringReader(text))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                int length = Integer.parseInt(fields[1]);
+                chunks.add(new Chunker.Chunk(Chunker.fromHex(fields[0]), offset, length));
+                offset += length;
+            }
+        }
+        return new Manifest(chunks);
+    }
+
+
+    /**
+     * Gets the directory holding the manifests of stored files.
+     *
+     * @return the manifest directory, or null if the store is not kept on the file system
+     */
+    public Path getManifestDirectory() {
+        Path directory = files.getDirectory();
+        return directory == null ? null : directory.resolve(MANIFESTS);
+    }
+
+
+    /**
+     * Gets the modification time of a stored file's manifest, which changes every time the file is stored again.
+     *
+     * @param filename the name of the file
+     * @return the modification time in nanoseconds, or -1 if the file is not in the store
+     * @throws IOException if the manifest's attributes cannot be read
+     */
+    public long manifestModified(String filename) throws IOException {
+        FileStore.Attributes attributes = files.stat(MANIFESTS + filename);
+        return attributes == null ? -1 : attributes.modified;
+    }
+
+
+    /**
+     * Reads a chunk.
+     *
+     * @param hash the SHA-256 of the chunk
+     * @return the bytes of the chunk
+     * @throws IOException if the chunk cannot be read
+     */
+    public byte[] get(byte[] hash) throws IOException {
+        return readAll(chunkName(hash));
+    }
+
+
+    /**
+     * Reads bytes of a stored file, starting at a given position.
+     * Only the chunks overlapping the bytes asked for are opened, found by their offsets, and only those bytes of them
+     * are read.
+     *
+     * @param manifest the manifest of the file
+     * @param position the offset of the first byte to read
+     * @param buf      the buffer to fill
+     * @param offset   the offset in the buffer of the first byte to fill
+     * @param length   the maximum number of bytes to read
+     * @return the number of bytes read, 0 at the end of the file
+     * @throws IOException if a chunk cannot be read
+     */
+    public int read(Manifest manifest, long position, byte[] buf, int offset, int length) throws IOException {
+        int read = 0;
+        for (int i = manifest.chunkAt(position); i < manifest.chunks.size() && read < length; i++) {
+            Chunker.Chunk chunk = manifest.chunks.get(i);
+            int from = (int) (position - chunk.offset);
+            int count = Math.min(chunk.length - from, length - read);
+            String name = chunkName(chunk.hash);
+            try (FileStore.ReadChannel channel = files.openRead(name)) {
+                if (channel.readFully(ByteBuffer.wrap(buf, offset + read, count), from) < count) {
+                    throw new IOException("Chunk " + name + " is shorter than its manifest says");
+                }
+            }
+            read += count;
+            position += count;
+        }
+        return read;
+    }
+
+
+    /**
+     * Writes a whole file to the store and publishes it.
+     *
+     * @param name     the name of the file in the store
+     * @param contents the contents of the file
+     * @throws IOException if the file cannot be written
+     */
+    private void write(String name, ByteBuffer contents) throws IOException {
+        try (FileStore.WriteChannel channel = files.openWrite(name)) {
+            channel.write(contents, 0);
+            channel.commit();
+        }
+    }
+
+
+    /**
+     * Waits for a chunk put earlier to be durable.
+     *
+     * @param name the name of the chunk in the store
+     * @throws IOException if the chunk could not be committed
+     */
+    private void awaitChunk(String name) throws IOException {
+        CompletableFuture<Void> commit = pending.get(name);
+        if (commit == null) {
+            return;
+        }
+        try {
+            commit.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for chunk " + name);
+        } catch (ExecutionException e) {
+            throw new IOException("Chunk " + name + " could not be stored", e.getCause());
+        }
+    }
+
+
+    /**
+     * Reads a whole file of the store.
+     *
+     * @param name the name of the file in the store
+     * @return the contents of the file
+     * @throws IOException if the file does not exist or cannot be read
+     */
+    private byte[] readAll(String name) throws IOException {
+        try (FileStore.ReadChannel channel = files.openRead(name)) {
+            ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+            channel.readFully(contents, 0);
+            return contents.position() == contents.capacity() ? contents.array()
+                    : Arrays.copyOf(contents.array(), contents.position());
+        }
+    }
+
+
+    /**
+     * Builds the name of a chunk, fanned out by the first byte of its hash to keep directories small.
+     *
+     * @param hash the SHA-256 of the chunk
+     * @return the name of the chunk in the store
+     */
+    private String chunkName(byte[] hash) {
+        String hex = Chunker.toHex(hash);
+        return OBJECTS + hex.substring(0, 2) + '/' + hex;
+    }
+}
@@ -0,0 +1,106 @@
+package request;
+
+
+
+/**
+ * Keeps the congestion window of a windowed transfer, the number of blocks that may be sent and not acknowledged yet.
+ * The window starts at one block and grows by one block for every block acknowledged, doubling each round trip, until
+ * it reaches the slow start threshold (slow start). Past it, the window grows by one block per round trip (additive
+ * increase). A loss, seen from duplicate ACKs, halves the window, and a timeout halves the threshold and starts over
+ * from one block (multiplicative decrease). The window never grows past the window size negotiated for the transfer,
+ * so it ramps up to it on an idle link and backs off when transfers share a busy one.
+ */
+public class CongestionWindow {
+
+    private final int limit;// Window size negotiated for the transfer, in blocks
+    private double window = 1;
+    private double threshold;
+    private int peak = 1;
+    private int losses = 0;
+    private int timeouts = 0;
+
+
+    /**
+     * Constructor for CongestionWindow.
+     *
+     * @param limit the window size negotiated for the transfer, in blocks
+     */
+    public CongestionWindow(int limit) {
+        this.limit = Math.max(limit, 1);
+        this.threshold = this.limit;
+    }
+
+
+    /**
+     * Gets the number of blocks that may be in flight.
+     *
+     * @return the size of the window in blocks
+     */
+    public int size() {
+        return (int) Math.min(window, limit);
+    }
+
+
+    /**
+     * Grows the window for blocks newly acknowledged.
+     *
+     * @param blocks the number of blocks the ACK acknowledged
+     */
+    public void acknowledged(int blocks) {
+        for (int i = 0; i < blocks && window < limit; i++) {
+            window += window < threshold ? 1 : 1 / window;
+        }
+        window = Math.min(window, limit);
+        peak = Math.max(peak, size());
+    }
+
+
+    /**
+     * Halves the window after a loss the receiver reported with duplicate ACKs.
+     */
+    public void lost() {
+        threshold = Math.max(window / 2, 1);
+        window = threshold;
+        losses++;
+    }
+
+
+    /**
+     * Halves the threshold and shrinks the window to one block after a timeout.
+     */
+    public void timedOut() {
+        threshold = Math.max(window / 2, 1);
+        window = 1;
+        timeouts++;
+    }
+
+
+    /**
+     * Gets the largest window the transfer reached.
+     *
+     * @return the size of the window in blocks
+     */
+    public int getPeak() {
+        return peak;
+    }
+
+
+    /**
+     * Gets the number of losses reported by duplicate ACKs.
+     *
+     * @return the number of losses
+     */
+    public int getLosses() {
+        return losses;
+    }
+
+
+    /**
+     * Gets the number of timeouts.
+     *
+     * @return the number of timeouts
+     */
+    public int getTimeouts() {
+        return timeouts;
+    }
+}
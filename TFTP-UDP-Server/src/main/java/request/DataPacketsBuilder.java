@@ -1,26 +1,28 @@
 package request;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Builds up data packets for a given file and manages saving them to disk.
  * This class is used in the context of TFTP operations to handle large files by breaking
- * them into manageable data packets.
+ * them into manageable data packets. Saved files go to the {@link ChunkStore}, so the content
+ * they share with earlier uploads is not written again. Received data is stored behind the
+ * transfer by a {@link WriteBehind} instead of being held until the file is complete.
  */
 public class DataPacketsBuilder {
-    private static final int MAX_BYTES_PER_FILE = 33554432; // 32 MB limit on file size in TFTP
-
-    private byte[] data; // Buffer to hold the file data
-    private int size = 0; // Current size of the data in the buffer
+    private byte[] data; // Buffer to hold the file data set with setData
+    private int size = 0; // Current size of the data received
     private String filename; // Filename for the saved file
+    private final ChunkStore store; // Store the saved files go to
+    private WriteBehind upload; // Stores the data packets added, created by the first one
+    private long expectedSize = 0; // Size the client announced for the file, 0 if unknown
 
     /**
-     * Constructs a new DataPacketsBuilder instance initializing the data buffer.
+     * Constructs a new DataPacketsBuilder instance.
+     * @param store The chunk store files are saved to.
      */
-    public DataPacketsBuilder() {
-        data = new byte[MAX_BYTES_PER_FILE];
+    public DataPacketsBuilder(ChunkStore store) {
+        this.store = store;
     }
 
     /**
@@ -31,6 +33,14 @@ public class DataPacketsBuilder {
         this.filename = filename;
     }
 
+    /**
+     * Sets the size the client announced for the file to be received, before its first data packet.
+     * @param expectedSize The size of the file in bytes, 0 if unknown.
+     */
+    public void setExpectedSize(long expectedSize) {
+        this.expectedSize = expectedSize;
+    }
+
     /**
      * Sets the data for this builder, copying from an external array.
      * @param data The data to set.
@@ -45,12 +55,15 @@ public class DataPacketsBuilder {
      * @param dataPacket The data packet to add.
      */
     public void addDataPacket(TFTPRequestDecoder.DataPacket dataPacket) {
-        System.arraycopy(dataPacket.data, 0, data, size, dataPacket.size);
+        if (upload == null) {
+            upload = new WriteBehind(store, expectedSize);
+        }
+        upload.write(dataPacket.data, 0, dataPacket.size); // Handed to the writer a buffer at a time
         size += dataPacket.size;
     }
 
     /**
-     * Returns the complete data buffer.
+     * Returns the data buffer set with setData.
      * @return The data buffer as a byte array.
      */
     public byte[] getData() {
@@ -83,26 +96,31 @@ public class DataPacketsBuilder {
     }
 
     /**
-     * Saves the data packets to a file on disk.
-     * @throws IOException If an I/O error occurs writing to the file.
+     * Saves the data packets to the chunk store under the filename, without waiting for the disk.
+     * @return A future completed once the file is stored, or failed with the error that kept it from being stored.
      */
-    public void save() throws IOException {
-        String path = new File(".").getCanonicalPath() + '/' + filename; // Determine the file's path
-        File file = new File(path); // Create a new file object
-        FileOutputStream fos = new FileOutputStream(file); // Create a file output stream
-        fos.write(data, 0, size); // Write the data to file
-        fos.flush(); // Flush the stream to ensure all data is written
-        fos.close(); // Close the stream
+    public CompletableFuture<Void> save() {
+        if (upload == null) {
+            upload = new WriteBehind(store, expectedSize);
+        }
+        CompletableFuture<Void> saved = upload.finish(filename); // Store the last chunks and the manifest
+        upload = null; // The writer finishes this upload on its own, the builder is free for the next one
         reset(); // Reset the builder for reuse
+        return saved;
     }
 
     /**
-     * Resets the data builder, clearing the data buffer and other properties.
+     * Resets the data builder, abandoning the file being received if it was not saved.
      */
     public void reset() {
+        if (upload != null) {
+            upload.abandon();
+            upload = null;
+        }
         size = 0;
+        expectedSize = 0;
         filename = null;
-        data = new byte[MAX_BYTES_PER_FILE];
+        data = null;
     }
 
     /**
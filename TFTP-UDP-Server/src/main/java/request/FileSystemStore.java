@@ -0,0 +1,384 @@
+package request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import com.sun.nio.file.ExtendedOpenOption;
+
+
+
+/**
+ * Keeps files in a directory on disk.
+ * The directory is resolved once, when the store is created, instead of on every request, and every name is checked
+ * to resolve inside it. New versions of files are written to a hidden temporary file next to the file and moved into
+ * place when committed, after being forced to disk as the store's {@link Durability} requires.
+ * Files written with the direct hint bypass the page cache, through block-aligned direct buffers, where the file
+ * system allows it.
+ */
+public class FileSystemStore implements FileStore {
+
+    // Size of the aligned buffers direct writes are staged in, a multiple of any block size
+    private static final int DIRECT_BUFFER_BYTES = 1 << 20;
+    // Block size assumed when the file system does not report one
+    private static final int DEFAULT_BLOCK_BYTES = 4096;
+    // Permissions a new file is created with before the umask, as for any file the server creates without a temporary
+    private static final Set<PosixFilePermission> NEW_FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-rw-rw-");
+
+    private final Path root;
+    private final Durability durability;
+    private final GroupCommit groupCommit;// Batches the commits of the GROUP policy, null for the others
+    private final int blockBytes;// Alignment of direct writes
+    // Staging buffers of finished direct writes, reused instead of allocating new ones
+    private final Queue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+
+
+    /**
+     * Reads a file through a file channel.
+     */
+    private static class FileSystemChannel implements ReadChannel {
+        private final FileChannel channel;
+
+        // Constructor for the channel
+        private FileSystemChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+
+    /**
+     * Writes a new version of a file to a temporary file, moved into place on commit.
+     * A direct writer gathers the bytes in an aligned buffer and writes them a whole buffer at a time. The last block
+     * is padded to the block size and the file cut back to its real length on commit.
+     */
+    private class FileSystemWriter implements WriteChannel {
+        private final Path path;
+        private final Path temp;
+        private final FileChannel channel;
+        private final boolean direct;
+        private ByteBuffer staging;// Bytes of a direct write not written yet, null once the buffer is given back
+        private long written = 0;// Bytes of a direct write received so far
+        private long flushed = 0;// Bytes of a direct write written to the channel
+        private boolean committed = false;// Once committed, the channel and the temporary file belong to the commit
+
+        // Constructor for the writer
+        private FileSystemWriter(Path path, boolean direct) throws IOException {
+            this.path = path;
+            Files.createDirectories(path.getParent());
+            temp = createTempFile(path);
+            FileChannel opened = null;
+            if (direct) {
+                try {
+                    opened = FileChannel.open(temp, StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT);
+                } catch (UnsupportedOperationException | IOException e) {
+                    // The file system cannot bypass its cache, the file is written through it instead
+                }
+            }
+            this.direct = opened != null;
+            channel = opened != null ? opened : FileChannel.open(temp, StandardOpenOption.WRITE);
+            staging = this.direct ? takeDirectBuffer() : null;
+        }
+
+        @Override
+        public void write(ByteBuffer src, long position) throws IOException {
+            if (!direct) {
+                while (src.hasRemaining()) {
+                    position += channel.write(src, position);
+                }
+                return;
+            }
+            if (position != written) {
+                throw new IOException("Direct writes must append to the file");
+            }
+            while (src.hasRemaining()) {
+                int count = Math.min(src.remaining(), staging.remaining());
+                ByteBuffer part = src.slice();
+                part.limit(count);
+                staging.put(part);
+                src.position(src.position() + count);
+                written += count;
+                if (!staging.hasRemaining()) {
+                    flushStaging();
+                }
+            }
+        }
+
+        /**
+         * Writes the staged bytes of a direct write, which must fill whole blocks.
+         *
+         * @throws IOException if the bytes cannot be written
+         */
+        private void flushStaging() throws IOException {
+            staging.flip();
+            while (staging.hasRemaining()) {
+                flushed += channel.write(staging, flushed);
+            }
+            staging.clear();
+        }
+
+        /**
+         * Writes the last, partial block of a direct write padded to the block size, then cuts off the padding.
+         *
+         * @throws IOException if the bytes cannot be written
+         */
+        private void finishDirect() throws IOException {
+            try {
+                int tail = staging.position();
+                if (tail > 0) {
+                    int padded = (tail + blockBytes - 1) / blockBytes * blockBytes;
+                    while (staging.position() < padded) {
+                        staging.put((byte) 0);
+                    }
+                    flushStaging();
+                    channel.truncate(written);
+                }
+            } finally {
+                releaseStaging();
+            }
+        }
+
+        /**
+         * Gives the staging buffer of a direct write back for reuse.
+         */
+        private void releaseStaging() {
+            if (staging != null) {
+                staging.clear();
+                directBuffers.add(staging);
+                staging = null;
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> commitAsync() throws IOException {
+            if (direct) {
+                finishDirect();
+            }
+            committed = true;
+            if (durability == Durability.GROUP) {
+                return groupCommit.commit(channel, temp, path);
+            }
+            try {
+                if (durability == Durability.FSYNC) {
+                    channel.force(false);
+                }
+                channel.close();
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                channel.close();
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            if (durability == Durability.FSYNC) {
+                forceDirectory(path.getParent());
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            releaseStaging();
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+
+    /**
+     * Constructor for FileSystemStore.
+     *
+     * @param directory  the directory holding the files
+     * @param durability when written files are forced to disk
+     * @throws IOException if the directory does not exist
+     */
+    public FileSystemStore(Path directory, Durability durability) throws IOException {
+        root = directory.toRealPath();
+        this.durability = durability;
+        groupCommit = durability == Durability.GROUP ? new GroupCommit() : null;
+        blockBytes = blockSize(root);
+    }
+
+
+    @Override
+    public Attributes stat(String name) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(resolve(name), BasicFileAttributes.class);
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        return new Attributes(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+    }
+
+
+    @Override
+    public ReadChannel openRead(String name) throws IOException {
+        return new FileSystemChannel(FileChannel.open(resolve(name), StandardOpenOption.READ));
+    }
+
+
+    @Override
+    public WriteChannel openWrite(String name) throws IOException {
+        return new FileSystemWriter(resolve(name), false);
+    }
+
+
+    @Override
+    public WriteChannel openWrite(String name, boolean direct) throws IOException {
+        return new FileSystemWriter(resolve(name), direct);
+    }
+
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        return Files.deleteIfExists(resolve(name));
+    }
+
+
+    @Override
+    public Path getDirectory() {
+        return root;
+    }
+
+
+    @Override
+    public long getUsableSpace() throws IOException {
+        return Files.getFileStore(root).getUsableSpace();
+    }
+
+
+    /**
+     * Forces a directory to disk, so the files moved into it survive a crash.
+     * Platforms that cannot open a directory for that are skipped.
+     *
+     * @param directory the directory
+     * @throws IOException if the directory cannot be forced
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (AccessDeniedException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+
+    /**
+     * Creates the hidden temporary file a new version of a file is written to before it is moved into place.
+     * Unlike a plain temporary file, only readable by its owner, it gets the permissions of the file it replaces, or
+     * those the umask leaves for a new file.
+     *
+     * @param path the path of the file
+     * @return the path of the temporary file
+     * @throws IOException if the temporary file cannot be created
+     */
+    static Path createTempFile(Path path) throws IOException {
+        Path directory = path.getParent();
+        String prefix = "." + path.getFileName();
+        if (!directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return Files.createTempFile(directory, prefix, ".tmp");
+        }
+        FileAttribute<Set<PosixFilePermission>> permissions = PosixFilePermissions.asFileAttribute(NEW_FILE_PERMISSIONS);
+        Path temp = Files.createTempFile(directory, prefix, ".tmp", permissions);
+        try {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(path));
+        } catch (NoSuchFileException e) {
+            // A new file keeps the permissions it was created with
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+
+    /**
+     * Takes a staging buffer for a direct write, aligned to the block size.
+     *
+     * @return an empty staging buffer
+     */
+    private ByteBuffer takeDirectBuffer() {
+        ByteBuffer buffer = directBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_BYTES + blockBytes).alignedSlice(blockBytes);
+        buffer.limit(DIRECT_BUFFER_BYTES);
+        return buffer.slice();
+    }
+
+
+    /**
+     * Gets the block size of the file system holding a directory, which direct writes are aligned to.
+     *
+     * @param directory the directory
+     * @return the block size in bytes
+     */
+    private static int blockSize(Path directory) {
+        long size;
+        try {
+            size = Files.getFileStore(directory).getBlockSize();
+        } catch (UnsupportedOperationException | IOException e) {
+            return DEFAULT_BLOCK_BYTES;
+        }
+        // Buffers are aligned to it, so it has to be a power of two that divides them
+        if (size < 512 || size > DIRECT_BUFFER_BYTES || Long.bitCount(size) != 1) {
+            return DEFAULT_BLOCK_BYTES;
+        }
+        return (int) size;
+    }
+
+
+    /**
+     * Resolves a name against the directory of the store.
+     *
+     * @param name the name of the file
+     * @return the path of the file
+     * @throws AccessDeniedException if the name would reach outside the store
+     */
+    private Path resolve(String name) throws AccessDeniedException {
+        Path path = root.resolve(FileStore.checkName(name)).normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+            throw new AccessDeniedException(name, null, "Outside of the served directory");
+        }
+        return path;
+    }
+}
@@ -0,0 +1,243 @@
+package request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+
+
+/**
+ * Keeps popular files as ready-to-send DATA packets, so serving them needs no encoding and no copying.
+ * Once a version of a file has been asked for {@link #POPULAR_REQUESTS} times, all of its DATA packets, headers
+ * included, are encoded once into a contiguous direct buffer, one packet after the other. Sending a block is then
+ * just handing a slice of that buffer to the channel. Packets are kept per file version and block size, and the
+ * least recently used files are dropped when the cache would grow past its capacity.
+ */
+public class FrameCache {
+
+    /**
+     * Capacity used by the server, in bytes.
+     */
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    /**
+     * Number of requests for a version of a file after which its packets are kept.
+     */
+    public static final int POPULAR_REQUESTS = 3;
+
+    // Request counts kept for files that are not popular yet
+    private static final int MAX_COUNTED_FILES = 1024;
+
+    private final long capacity;
+    private long used = 0;
+
+    private final Map<Key, Frames> frames = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, Integer> requests = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Integer> eldest) {
+            return size() > MAX_COUNTED_FILES;
+        }
+    };
+
+    private long hits = 0;
+    private long encoded = 0;
+
+
+    /**
+     * Identifies the packets of one version of a file for one block size.
+     */
+    private static class Key {
+        private final String filename;
+        private final long modified;
+        private final long size;
+        private final int blockSize;
+
+        // Constructor for the key
+        private Key(String filename, long modified, long size, int blockSize) {
+            this.filename = filename;
+            this.modified = modified;
+            this.size = size;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return modified == key.modified && size == key.size && blockSize == key.blockSize
+                    && filename.equals(key.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(filename, modified, size, blockSize);
+        }
+    }
+
+
+    /**
+     * The encoded DATA packets of a file, back to back.
+     * Every packet but the last holds a full block, so packet i starts at a fixed offset.
+     */
+    public static class Frames {
+        private final ByteBuffer region;
+        private final int frameSize;
+        private final int count;
+        private final long checksum;
+
+        // Constructor for the frames
+        private Frames(ByteBuffer region, int frameSize, int count, long checksum) {
+            this.region = region;
+            this.frameSize = frameSize;
+            this.count = count;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Gets the number of packets, including the short one that ends the transfer.
+         *
+         * @return the number of packets
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the CRC32C of the file contents, computed when the packets were encoded.
+         *
+         * @return the CRC32C of the file
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * Gets a packet, ready to send.
+         *
+         * @param block the block number of the packet, from 1
+         * @return a view of the packet, positioned at its first byte and limited to its last
+         */
+        public ByteBuffer frame(int block) {
+            int start = (block - 1) * frameSize;
+            ByteBuffer frame = region.duplicate();
+            frame.limit(Math.min(start + frameSize, region.capacity()));
+            frame.position(start);
+            return frame;
+        }
+    }
+
+
+    /**
+     * Constructor for FrameCache.
+     *
+     * @param capacity the number of bytes of packets the cache may hold
+     */
+    public FrameCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+
+    /**
+     * Records a request for a file and gets its encoded packets, encoding them if the file has just become popular.
+     *
+     * @param file      the file, opened through the block cache
+     * @param blockSize the number of data bytes per packet
+     * @return the packets, or null if the file is not popular yet or too large to keep
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized Frames get(BlockCache.CachedFile file, int blockSize) throws IOException {
+        Key key = new Key(file.getFilename(), file.getModified(), file.getSize(), blockSize);
+        Frames cached = frames.get(key);
+        if (cached != null) {
+            hits++;
+            return cached;
+        }
+        int count = requests.merge(key, 1, Integer::sum);
+        long bytes = (file.getSize() / blockSize + 1) * 4 + file.getSize();
+        if (count < POPULAR_REQUESTS || bytes > capacity || bytes > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        // Make room by dropping the least recently used files
+        Iterator<Frames> eldest = frames.values().iterator();
+        while (used + bytes > capacity && eldest.hasNext()) {
+            used -= eldest.next().region.capacity();
+            eldest.remove();
+        }
+        Frames encodedFrames = encode(file, blockSize, (int) bytes);
+        if (encodedFrames == null) {
+            return null;
+        }
+        frames.put(key, encodedFrames);
+        requests.remove(key);
+        used += bytes;
+        encoded++;
+        hits++;
+        return encodedFrames;
+    }
+
+
+    /**
+     * Encodes every DATA packet of a file into one direct buffer.
+     *
+     * @param file      the file
+     * @param blockSize the number of data bytes per packet
+     * @param bytes     the total size of the packets
+     * @return the encoded packets, or null if the file shrank while being read
+     * @throws IOException if the file cannot be read
+     */
+    private static Frames encode(BlockCache.CachedFile file, int blockSize, int bytes) throws IOException {
+        ByteBuffer region = ByteBuffer.allocateDirect(bytes);
+        byte[] packet = new byte[blockSize + 4];
+        CRC32C checksum = new CRC32C();
+        int count = (int) (file.getSize() / blockSize + 1);
+        long position = 0;
+        for (int i = 1; i <= count; i++) {
+            int header = TFTPRequestBuilder.createPackDataHeader(packet, i);
+            int size = file.read(position, packet, header, (int) Math.min(blockSize, file.getSize() - position));
+            checksum.update(packet, header, size);
+            region.put(packet, 0, header + size);
+            position += size;
+        }
+        if (region.hasRemaining()) {
+            return null;
+        }
+        return new Frames(region, blockSize + 4, count, checksum.getValue());
+    }
+
+
+    /**
+     * Gets the number of requests served from encoded packets.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    /**
+     * Gets the number of files encoded.
+     *
+     * @return the number of encoded files
+     */
+    public synchronized long getEncoded() {
+        return encoded;
+    }
+
+
+    /**
+     * Gets the number of bytes of packets held in the cache.
+     *
+     * @return the number of bytes used
+     */
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+}
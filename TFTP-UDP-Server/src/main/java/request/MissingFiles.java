@@ -0,0 +1,171 @@
+package request;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+
+/**
+ * Remembers the names clients asked for that do not exist, so repeated requests for them are
+ * answered without touching the disk.
+ * A background thread watches the served directories and forgets a name as soon as a file of that name appears.
+ * Entries also expire after a while and the oldest are dropped past a fixed count. Only names directly inside the
+ * watched directories are remembered, since the watch does not see nested directories.
+ */
+public class MissingFiles {
+
+    // How long a missing name is trusted, even without a watch event
+    private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // Most names remembered at once
+    private static final int MAX_ENTRIES = 4096;
+
+    private final Map<String, Long> missing = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final long ttlNanos;// How long a missing name is trusted
+    private final WatchService watcher;
+    private volatile boolean watching;
+    // Number of files that have appeared so far, so a lookup that raced with one is not remembered
+    private long appeared = 0;
+
+
+    /**
+     * Constructor for MissingFiles, which starts watching the given directories.
+     * If they cannot be watched, or there are none, nothing is remembered, since a file created later could not be
+     * noticed.
+     *
+     * @param directories the directories files are served from
+     */
+    public MissingFiles(Path... directories) {
+        this(TTL_NANOS, directories);
+    }
+
+
+    /**
+     * Constructor for MissingFiles trusting missing names for a given time, for tests that cannot wait for the default.
+     *
+     * @param ttlNanos    how long a missing name is trusted, in nanoseconds
+     * @param directories the directories files are served from
+     */
+    MissingFiles(long ttlNanos, Path... directories) {
+        this.ttlNanos = ttlNanos;
+        WatchService service = null;
+        if (directories.length > 0) {
+            try {
+                service = FileSystems.getDefault().newWatchService();
+                for (Path directory : directories) {
+                    directory.register(service, StandardWatchEventKinds.ENTRY_CREATE);
+                }
+            } catch (IOException e) {
+                System.err.println("Cannot watch the served directories, missing files will not be remembered");
+                service = null;
+            }
+        }
+        watcher = service;
+        watching = watcher != null;
+        if (watching) {
+            Thread thread = new Thread(this::watch, "missing-files-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+
+    /**
+     * Checks whether a name was recently found missing and no file of that name has appeared since.
+     *
+     * @param filename the name of the file
+     * @return true if the file is known to be missing, false if it has to be looked up
+     */
+    public synchronized boolean isMissing(String filename) {
+        Long since = missing.get(filename);
+        if (since == null) {
+            return false;
+        }
+        if (System.nanoTime() - since > ttlNanos) {
+            missing.remove(filename);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Gets a marker to take before looking a file up, to pass to {@link #add} if the lookup finds nothing.
+     *
+     * @return the number of files that have appeared so far
+     */
+    public synchronized long getAppeared() {
+        return appeared;
+    }
+
+
+    /**
+     * Remembers that a file does not exist, unless any file appeared since the lookup that found it missing started.
+     *
+     * @param filename the name of the file
+     * @param appeared the marker taken before the lookup
+     */
+    public synchronized void add(String filename, long appeared) {
+        if (watching && appeared == this.appeared && filename.indexOf('/') < 0 && filename.indexOf('\\') < 0) {
+            missing.put(filename, System.nanoTime());
+        }
+    }
+
+
+    /**
+     * Forgets that a file was missing, for instance because the server has just stored it.
+     *
+     * @param filename the name of the file
+     */
+    public synchronized void forget(String filename) {
+        appeared++;
+        missing.remove(filename);
+    }
+
+
+    /**
+     * Forgets every name whose file appears in a watched directory.
+     * If a directory can no longer be watched, remembering stops altogether.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so any name may have appeared
+                        synchronized (this) {
+                            appeared++;
+                            missing.clear();
+                        }
+                    } else {
+                        forget(((Path) event.context()).toString());
+                    }
+                }
+                if (!key.reset()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stop watching
+        }
+        watching = false;
+        synchronized (this) {
+            missing.clear();
+        }
+    }
+}
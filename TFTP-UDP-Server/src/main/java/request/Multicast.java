@@ -0,0 +1,150 @@
+package request;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+
+/**
+ * Holds the settings of the multicast option (RFC 2090), which serves one file to many clients at once.
+ * A client asks for it with an empty value, and the server answers with the address and port of the group the file is
+ * sent to, and whether the client is the master client: address,port,1 or address,port,0.
+ * Only the master client acknowledges the blocks sent to the group, the other members listen. Once the master client
+ * has the whole file, each other member missing blocks is made master in turn, acknowledges the block before the
+ * first one it is missing, and is sent the blocks it is missing alone. A member that has the whole file acknowledges
+ * the last block on its own, and is left out.
+ * Block numbers are not counted past 65535, so only files of fewer blocks are sent to a group.
+ */
+public class Multicast {
+    // Name of the request option asking for a multicast transfer
+    public static final String OPTION = "multicast";
+
+    /**
+     * Largest block number of a multicast transfer, checksum included.
+     */
+    public static final int MAX_BLOCKS = 0xFFFF;
+
+
+    /**
+     * Formats the value of the option.
+     *
+     * @param address the address and port of the group
+     * @param master  whether the client is the master client
+     * @return the value, address,port,1 or address,port,0
+     */
+    public static String format(InetSocketAddress address, boolean master) {
+        return address.getAddress().getHostAddress() + "," + address.getPort() + "," + (master ? 1 : 0);
+    }
+
+
+    /**
+     * Group class keeps the members of the multicast group of a download, and which of them has the whole file.
+     */
+    public static class Group {
+        private final InetSocketAddress address;
+        private final String filename;
+        private final int lastBlock;// Block whose ACK tells a member has the whole file
+        private final Map<String, String> options;// Options accepted for the download, sent to every member
+        private final Map<InetSocketAddress, Boolean> members = new LinkedHashMap<>();// Members by joining order, and whether each has the whole file
+
+        /**
+         * Constructor for Group, whose master client is its first member.
+         *
+         * @param address   the address and port of the group
+         * @param filename  the file sent to the group
+         * @param lastBlock the last block of the download, checksum included
+         * @param options   the options accepted for the download
+         * @param master    the master client
+         */
+        public Group(InetSocketAddress address, String filename, int lastBlock, Map<String, String> options,
+                     InetSocketAddress master) {
+            this.address = address;
+            this.filename = filename;
+            this.lastBlock = lastBlock;
+            this.options = new LinkedHashMap<>(options);
+            this.members.put(master, false);
+        }
+
+        /**
+         * Adds a member.
+         *
+         * @param member the client
+         * @return false if the client is a member already, true otherwise
+         */
+        public boolean join(InetSocketAddress member) {
+            return members.putIfAbsent(member, false) == null;
+        }
+
+        /**
+         * Records that a member has the whole file.
+         *
+         * @param member the client
+         */
+        public void finished(InetSocketAddress member) {
+            members.replace(member, true);
+        }
+
+        /**
+         * Gets the first member to join that may still miss blocks.
+         *
+         * @return the client, or null if every member has the whole file
+         */
+        public InetSocketAddress nextPending() {
+            for (Map.Entry<InetSocketAddress, Boolean> member : members.entrySet()) {
+                if (!member.getValue()) {
+                    return member.getKey();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Gets the options of the OACK sent to a member.
+         *
+         * @param master whether the member is made master client
+         * @return the options and their values
+         */
+        public Map<String, String> oack(boolean master) {
+            Map<String, String> accepted = new LinkedHashMap<>(options);
+            accepted.put(OPTION, format(address, master));
+            return accepted;
+        }
+
+        /**
+         * Gets the address and port of the group.
+         *
+         * @return the address of the group
+         */
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Gets the file sent to the group.
+         *
+         * @return the filename
+         */
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * Gets the last block of the download, checksum included.
+         *
+         * @return the block number
+         */
+        public int getLastBlock() {
+            return lastBlock;
+        }
+
+        /**
+         * Gets the number of members, master client included.
+         *
+         * @return the number of members
+         */
+        public int size() {
+            return members.size();
+        }
+    }
+}
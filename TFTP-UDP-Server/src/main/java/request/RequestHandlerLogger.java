@@ -117,6 +117,46 @@ public class RequestHandlerLogger {
         log(String.format("%s all data from %s", isReceiving ? "Received" : "Sent", filename));
     }
 
+    /**
+     * Logs the CRC32C of a checksummed transfer.
+     *
+     * @param filename The filename associated with the transfer.
+     * @param checksum The CRC32C of the file contents.
+     * @param isReceiving True if the checksum was verified on a write to the server, false if it was sent.
+     */
+    public void logChecksum(String filename, long checksum, boolean isReceiving) {
+        log(String.format("%s CRC32C %08x for %s", isReceiving ? "Verified" : "Sent", checksum, filename));
+    }
+
+    /**
+     * Logs the state of the block cache after serving a file.
+     *
+     * @param hits The number of reads served from the cache.
+     * @param misses The number of reads that went to disk.
+     * @param coalesced The number of reads that waited for another reader's disk read.
+     * @param readAheads The number of blocks loaded ahead of readers.
+     * @param evictions The number of blocks evicted.
+     * @param used The number of bytes cached.
+     * @param capacity The capacity of the cache in bytes.
+     */
+    public void logCache(long hits, long misses, long coalesced, long readAheads, long evictions, long used, long capacity) {
+        long reads = hits + misses + coalesced;
+        log(String.format("Block cache - %d hits, %d misses, %d coalesced (%.1f%% hit rate), %d read ahead, %d evictions, %d of %d bytes used",
+                hits, misses, coalesced, reads == 0 ? 0.0 : 100.0 * hits / reads, readAheads, evictions, used, capacity));
+    }
+
+    /**
+     * Logs the state of the encoded packet cache after serving a file.
+     *
+     * @param hits The number of requests served from encoded packets.
+     * @param encoded The number of files encoded.
+     * @param used The number of bytes of encoded packets held.
+     */
+    public void logFrameCache(long hits, long encoded, long used) {
+        log(String.format("Frame cache - %d requests served from encoded packets, %d files encoded, %d bytes used",
+                hits, encoded, used));
+    }
+
     /**
      * Logs the saving of a file.
      *
@@ -135,6 +175,86 @@ public class RequestHandlerLogger {
         log(errorMessage, true);
     }
 
+    /**
+     * Logs a packet sent again because its ACK did not arrive in time.
+     *
+     * @param blockNumber The block number of the packet.
+     * @param attempt The number of the retransmission, from 1.
+     * @param timeoutMs The retransmission timeout of the session in milliseconds.
+     */
+    public void logRetransmit(int blockNumber, int attempt, int timeoutMs) {
+        log(String.format("No ACK for block %d within %d ms - Retransmission %d", blockNumber, timeoutMs, attempt));
+    }
+
+    /**
+     * Logs how the congestion window of a transfer behaved once all of its blocks are acknowledged.
+     *
+     * @param windowSize The window size negotiated, in blocks.
+     * @param peak The largest window reached, in blocks.
+     * @param losses The number of losses reported by duplicate ACKs.
+     * @param timeouts The number of timeouts.
+     * @param duplicateAcks The number of duplicate ACKs received, none of which sent a block again.
+     */
+    public void logWindow(int windowSize, int peak, int losses, int timeouts, int duplicateAcks) {
+        log(String.format("Congestion window - peaked at %d of %d blocks, %d losses, %d timeouts, %d duplicate ACKs",
+                peak, windowSize, losses, timeouts, duplicateAcks));
+    }
+
+    /**
+     * Logs how the blocks of a transfer were paced once all of them are acknowledged.
+     *
+     * @param smoothedRttMicros The smoothed round trip in microseconds, 0 if none was measured.
+     * @param rate The pacing rate in bytes per second, 0 if the blocks were not paced.
+     * @param waits The number of times a block waited for the pacer.
+     */
+    public void logPacing(long smoothedRttMicros, long rate, int waits) {
+        log(String.format("Pacing - round trip %d us, %d bytes/s, %d waits", smoothedRttMicros, rate, waits));
+    }
+
+    /**
+     * Logs the blocks of an upload rebuilt from parity packets, once all of its blocks are taken.
+     *
+     * @param filename The filename associated with the upload.
+     * @param rebuilt The number of blocks rebuilt.
+     */
+    public void logParity(String filename, int rebuilt) {
+        log(String.format("Rebuilt %d blocks of %s from parity packets", rebuilt, filename));
+    }
+
+    /**
+     * Logs the DATA packets of an upload that arrived again after their block was taken, once all of its blocks are.
+     *
+     * @param filename The filename associated with the upload.
+     * @param duplicates The number of duplicate packets, acknowledged again but not written.
+     */
+    public void logDuplicates(String filename, int duplicates) {
+        log(String.format("Ignored %d duplicate DATA packets of %s", duplicates, filename));
+    }
+
+    /**
+     * Logs a client joining the multicast group of a download.
+     *
+     * @param filename The filename sent to the group.
+     * @param member The address and port of the client.
+     * @param members The number of members, master client included.
+     */
+    public void logJoin(String filename, String member, int members) {
+        log(String.format("%s joined the multicast group of %s - %d members", member, filename, members));
+    }
+
+    /**
+     * Logs how a multicast download went, once every member has the whole file or was given up.
+     *
+     * @param filename The filename sent to the group.
+     * @param members The number of members, master client included.
+     * @param caughtUp The number of members made master after the first one.
+     * @param blocks The number of blocks sent to them by unicast.
+     */
+    public void logMulticast(String filename, int members, int caughtUp, int blocks) {
+        log(String.format("Sent %s to a multicast group of %d members - %d caught up with %d blocks by unicast",
+                filename, members, caughtUp, blocks));
+    }
+
     /**
      * Logs the sending or receiving of an ACK packet.
      *
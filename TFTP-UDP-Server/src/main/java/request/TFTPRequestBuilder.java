@@ -1,5 +1,7 @@
 package request;
 
+import java.util.Map;
+
 /**
  * The TFTPRequestBuilder class is responsible for creating various types of TFTP packets,
  * including RRQ, WRQ, DATA, ACK, and ERROR packets, specifically using octet mode.
@@ -7,6 +9,13 @@ package request;
 public class TFTPRequestBuilder {
 	// Maximum size for data packets as defined by the TFTP protocol
 	public static int MAX_BYTES = 512;
+	// Name of the transfer size option (RFC 2349), the size of the file being sent or read
+	public static final String TSIZE = "tsize";
+	// Names of the retransmission timeout options: timeout (RFC 2349) in seconds, utimeout in microseconds
+	public static final String TIMEOUT = "timeout";
+	public static final String UTIMEOUT = "utimeout";
+	// Name of the window size option (RFC 7440), the most blocks sent before waiting for an ACK
+	public static final String WINDOWSIZE = "windowsize";
 
 	/**
 	 * Creates a Read Request (RRQ) packet.
@@ -45,6 +54,24 @@ public class TFTPRequestBuilder {
 		return length;
 	}
 
+	/**
+	 * Creates an OACK packet acknowledging the options the server accepted.
+	 * @param buf The buffer to store the packet data.
+	 * @param options The accepted options and their values.
+	 * @return The total length of the created OACK packet.
+	 */
+	public static int createPackOACK(byte[] buf, Map<String, String> options) {
+		int length = 0;
+		length += createPackUInt16(buf, length, OPCODE.OACK.getValue()); // Pack the OACK opcode
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			length += createPackString(buf, length, option.getKey()); // Pack the option name
+			buf[length++] = 0; // Null terminator for the name
+			length += createPackString(buf, length, option.getValue()); // Pack the option value
+			buf[length++] = 0; // Null terminator for the value
+		}
+		return length;
+	}
+
 	/**
 	 * Creates an ERROR packet.
 	 * @param buf The buffer to store the packet data.
@@ -78,6 +105,53 @@ public class TFTPRequestBuilder {
 		return length;
 	}
 
+	/**
+	 * Writes the header of a DATA packet whose data has already been read into the buffer right after it,
+	 * so file contents can be copied straight into the packet.
+	 *
+	 * @param buf   the buffer holding the packet, with its data starting at offset 4
+	 * @param block the block number
+	 * @return the length of the header
+	 */
+	public static int createPackDataHeader(byte[] buf, int block) {
+		int length = 0;
+		length += createPackUInt16(buf, length, OPCODE.DATA.getValue());
+		length += createPackUInt16(buf, length, block);
+		return length;
+	}
+
+
+	/**
+	 * Builds the header of a parity packet, which the XOR of the data of the blocks it covers follows.
+	 * @param buf The buffer to fill with the header.
+	 * @param block The block number of the first block of the group.
+	 * @param index The index of the parity packet in its group.
+	 * @param count The number of blocks in the group.
+	 * @param sizeXor The XOR of the sizes of the blocks the packet covers.
+	 * @return The length of the header.
+	 */
+	public static int createPackParityHeader(byte[] buf, int block, int index, int count, int sizeXor) {
+		int length = 0;
+		length += createPackUInt16(buf, length, OPCODE.PARITY.getValue());
+		length += createPackUInt16(buf, length, block);
+		buf[length++] = (byte) index;
+		buf[length++] = (byte) count;
+		length += createPackUInt16(buf, length, sizeXor);
+		return length;
+	}
+
+	/**
+	 * Creates the DATA packet that follows the end of a checksummed transfer, carrying the CRC32C
+	 * of the file contents as 8 hexadecimal digits.
+	 * @param buf The buffer to store the packet data.
+	 * @param block The block number, one past the block that ended the transfer.
+	 * @param checksum The CRC32C of the data sent.
+	 * @return The total length of the created DATA packet.
+	 */
+	public static int createPackChecksum(byte[] buf, int block, long checksum) {
+		return createPackData(buf, block, String.format("%08x", checksum).getBytes());
+	}
+
 	/**
 	 * Creates an ACK packet.
 	 * @param buf The buffer to store the packet data.
@@ -2,6 +2,8 @@ package request;
 
 import exceptions.TFTPException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This class is used to decode packets received from the TFTP server to ensure they are
@@ -16,10 +18,12 @@ public class TFTPRequestDecoder {
 	public static class WrqOrRrqPacket {
 		public final String filename;
 		public final OPCODE opcode;
+		public final Map<String, String> options; // The requested options, keyed by lower case name
 
-		public WrqOrRrqPacket(String filename, OPCODE op) {
+		public WrqOrRrqPacket(String filename, OPCODE op, Map<String, String> options) {
 			this.filename = filename;
 			this.opcode = op;
+			this.options = options;
 		}
 	}
 
@@ -38,6 +42,25 @@ public class TFTPRequestDecoder {
 		}
 	}
 
+	/**
+	 * Nested class representing a parity packet of the forward error correction option.
+	 */
+	public static class ParityPacket {
+		public final int firstBlock; // The block number of the first block of the group.
+		public final int index; // The index of the packet in its group.
+		public final int count; // The number of blocks in the group.
+		public final int sizeXor; // The XOR of the sizes of the blocks the packet covers.
+		public final byte[] data; // The XOR of the data of the blocks the packet covers.
+
+		public ParityPacket(int firstBlock, int index, int count, int sizeXor, byte[] data) {
+			this.firstBlock = firstBlock;
+			this.index = index;
+			this.count = count;
+			this.sizeXor = sizeXor;
+			this.data = data;
+		}
+	}
+
 	/**
 	 * Decodes an ACK packet to extract the block number.
 	 * @param packet The byte array containing the ACK packet.
@@ -91,7 +114,18 @@ public class TFTPRequestDecoder {
 			String mode = decodeString(packet, offset);
 			assert mode.equals("octet");
 
-			return new WrqOrRrqPacket(filename, OPCODE.values()[operation]);
+			// Any remaining name/value pairs are options, up to the zero padding of the receive buffer
+			offset += mode.length() + 1;
+			Map<String, String> options = new LinkedHashMap<>();
+			while (offset < packet.length && packet[offset] != 0) {
+				String name = decodeString(packet, offset);
+				offset += name.length() + 1;
+				String value = decodeString(packet, offset);
+				offset += value.length() + 1;
+				options.put(name.toLowerCase(), value);
+			}
+
+			return new WrqOrRrqPacket(filename, OPCODE.values()[operation], options);
 		} catch (Exception e) {
 			throw new TFTPException("Invalid WRQ/RRQ packet");
 		}
@@ -151,4 +185,130 @@ public class TFTPRequestDecoder {
 			throw new TFTPException("Invalid DATA packet");
 		}
 	}
+
+	/**
+	 * Decodes a DATA packet held in a receive buffer, taking exactly the bytes the datagram carried.
+	 * Unlike {@link #decodeData(byte[], int)} this keeps zero bytes inside the data, so binary blocks arrive intact.
+	 * @param packet The byte array containing the DATA packet.
+	 * @param offset The starting index within the byte array.
+	 * @param length The length of the datagram.
+	 * @return A DataPacket object containing the block number and data.
+	 * @throws TFTPException if the packet is invalid.
+	 */
+	public static DataPacket decodeData(byte[] packet, int offset, int length) throws TFTPException {
+		try {
+			int op = decodeUint16(packet, offset);
+			if (op != OPCODE.DATA.getValue()) {
+				throw new TFTPException("Invalid DATA packet");
+			}
+			int block = decodeUint16(packet, offset + 2);
+			byte[] data = Arrays.copyOfRange(packet, offset + 4, offset + length);
+			return new DataPacket(block, data, data.length);
+		} catch (Exception e) {
+			throw new TFTPException("Invalid DATA packet");
+		}
+	}
+
+	/**
+	 * Decodes a parity packet of the forward error correction option.
+	 * @param packet The byte array containing the packet.
+	 * @param offset The starting index within the byte array.
+	 * @param length The length of the packet.
+	 * @return A ParityPacket object with its group, index and data.
+	 * @throws TFTPException if the packet is invalid.
+	 */
+	public static ParityPacket decodeParity(byte[] packet, int offset, int length) throws TFTPException {
+		try {
+			if (decodeUint16(packet, offset) != OPCODE.PARITY.getValue() || length < Parity.HEADER_BYTES) {
+				throw new TFTPException("Invalid parity packet");
+			}
+			int block = decodeUint16(packet, offset + 2);
+			int index = packet[offset + 4] & 0xFF;
+			int count = packet[offset + 5] & 0xFF;
+			int sizeXor = decodeUint16(packet, offset + 6);
+			byte[] data = Arrays.copyOfRange(packet, offset + Parity.HEADER_BYTES, offset + length);
+			return new ParityPacket(block, index, count, sizeXor, data);
+		} catch (TFTPException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new TFTPException("Invalid parity packet");
+		}
+	}
+
+	/**
+	 * Decodes the DATA packet sent after the end of a checksummed transfer to extract the CRC32C.
+	 * @param packet The byte array containing the packet.
+	 * @param offset The starting index within the byte array.
+	 * @param length The length of the datagram.
+	 * @return The CRC32C computed by the sender.
+	 * @throws TFTPException if the packet is invalid.
+	 */
+	public static long decodeChecksum(byte[] packet, int offset, int length) throws TFTPException {
+		DataPacket dataPacket = decodeData(packet, offset, length);
+		try {
+			return Long.parseLong(new String(dataPacket.data, 0, dataPacket.size), 16);
+		} catch (NumberFormatException e) {
+			throw new TFTPException("Invalid checksum packet");
+		}
+	}
+
+	/**
+	 * Decodes the transfer size option (RFC 2349) of a request or OACK.
+	 * @param options The options, keyed by lower case name.
+	 * @return The size of the file in bytes, or -1 if the option is missing or not a valid size.
+	 */
+	public static long decodeTransferSize(Map<String, String> options) {
+		String value = options.get(TFTPRequestBuilder.TSIZE);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			long size = Long.parseLong(value);
+			return size >= 0 ? size : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Decodes the retransmission timeout a request asks for, from its utimeout option in microseconds if it has one,
+	 * or else from its timeout option (RFC 2349) in seconds.
+	 * @param options The options, keyed by lower case name.
+	 * @return The timeout in milliseconds, or -1 if the option is missing or out of range.
+	 */
+	public static int decodeTimeout(Map<String, String> options) {
+		try {
+			String micros = options.get(TFTPRequestBuilder.UTIMEOUT);
+			if (micros != null) {
+				long value = Long.parseLong(micros);
+				return value >= 10000 && value <= 255000000 ? (int) (value / 1000) : -1;
+			}
+			String seconds = options.get(TFTPRequestBuilder.TIMEOUT);
+			if (seconds != null) {
+				int value = Integer.parseInt(seconds);
+				return value >= 1 && value <= 255 ? value * 1000 : -1;
+			}
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes the window size a request asks for, from its windowsize option (RFC 7440).
+	 * @param options The options, keyed by lower case name.
+	 * @return The number of blocks, or -1 if the option is missing or out of range.
+	 */
+	public static int decodeWindowSize(Map<String, String> options) {
+		String value = options.get(TFTPRequestBuilder.WINDOWSIZE);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			int size = Integer.parseInt(value);
+			return size >= 1 && size <= 65535 ? size : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
 }
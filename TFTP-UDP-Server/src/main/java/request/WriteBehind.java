@@ -0,0 +1,280 @@
+package request;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+
+
+/**
+ * Stores an upload while it is still arriving, the network thread only waiting for the disk when it falls behind.
+ * The bytes received are gathered into large buffers, and every full buffer is handed to a writer thread, which cuts
+ * it into chunks exactly as {@link Chunker#split} would cut the whole file and stores them. The bytes of a chunk still
+ * missing its end are carried over to the next buffer. The manifest is only recorded by {@link #finish}, so an upload
+ * that is abandoned never replaces the stored file.
+ * At most {@link #MAX_IN_FLIGHT} buffers of an upload wait for the writer; once that many do, handing over the next
+ * one blocks the receiving thread until the oldest is stored, so a disk slower than the network slows the upload
+ * down instead of spooling it into memory.
+ */
+public class WriteBehind {
+
+    /**
+     * Size of the buffers the received bytes are gathered into, in bytes.
+     */
+    public static final int BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Number of full buffers of one upload that may wait for the writer at once.
+     */
+    public static final int MAX_IN_FLIGHT = 3;
+
+    // Threads storing the buffers of every upload; the buffers of one upload are stored in order, one at a time
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final ChunkStore store;
+    private final long expectedSize;// Size the client announced for the upload, 0 if unknown
+    // Buffers of BUFFER_BYTES the writer is done with, reused instead of allocating new ones
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+    // Allocated on the first write, no larger than the upload announced
+    private byte[] buffer;
+    private int filled = 0;
+    // Completes once every buffer handed over so far is stored
+    private CompletableFuture<Void> stored = CompletableFuture.completedFuture(null);
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);// Buffers handed over and not stored yet
+    private volatile boolean abandoned = false;
+
+    // State of the writer, only used by the tasks of this upload, which run one after the other
+    private byte[] pending = new byte[0];// Grown to the bytes carried over and the buffer after them
+    private int carried = 0;// Bytes of an unfinished chunk at the start of pending
+    private long offset = 0;// Offset in the file of the first byte of pending
+    private final List<Chunker.Chunk> chunks = new ArrayList<>();
+    private int added = 0;
+    private final MessageDigest digest = Chunker.newDigest();
+
+
+    /**
+     * Constructor for WriteBehind.
+     *
+     * @param store the store the upload is kept in
+     */
+    public WriteBehind(ChunkStore store) {
+        this(store, 0);
+    }
+
+
+    /**
+     * Constructor for WriteBehind, for an upload whose size the client announced.
+     * An upload announced past the direct threshold bypasses the page cache from its first chunk.
+     *
+     * @param store        the store the upload is kept in
+     * @param expectedSize the size of the upload in bytes, 0 if unknown
+     */
+    public WriteBehind(ChunkStore store, long expectedSize) {
+        this.store = store;
+        this.expectedSize = expectedSize;
+    }
+
+
+    /**
+     * Appends received bytes to the upload, handing the buffer to the writer whenever it fills up.
+     *
+     * @param buf    the buffer holding the bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes to append
+     */
+    public void write(byte[] buf, int offset, int length) {
+        if (buffer == null && length > 0) {
+            buffer = new byte[expectedSize > 0 ? (int) Math.min(expectedSize, BUFFER_BYTES) : BUFFER_BYTES];
+        }
+        while (length > 0) {
+            int count = Math.min(length, buffer.length - filled);
+            System.arraycopy(buf, offset, buffer, filled, count);
+            filled += count;
+            offset += count;
+            length -= count;
+            if (filled == buffer.length) {
+                handOver(false);
+                byte[] reused = free.poll();
+                buffer = reused != null ? reused : new byte[BUFFER_BYTES];
+                filled = 0;
+            }
+        }
+    }
+
+
+    /**
+     * Stores the rest of the upload and records its manifest under a filename, once every chunk is durable.
+     *
+     * @param filename the name of the file
+     * @return a future completed once the file is stored
+     */
+    public CompletableFuture<Void> finish(String filename) {
+        handOver(true);
+        buffer = null;
+        stored = stored.thenRunAsync(() -> {
+            if (abandoned) {
+                return;
+            }
+            try {
+                store.putManifest(filename, chunks);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, WRITERS);
+        return stored;
+    }
+
+
+    /**
+     * Stores the rest of the upload and records its manifest, waiting until it is done.
+     *
+     * @param filename the name of the file
+     * @throws IOException if the upload cannot be stored
+     */
+    public void finishAndWait(String filename) throws IOException {
+        try {
+            finish(filename).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while storing " + filename);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+
+    /**
+     * Abandons the upload: buffers not stored yet are dropped and no manifest is recorded.
+     * Chunks already stored stay, as any later upload of the same content can use them.
+     */
+    public void abandon() {
+        abandoned = true;
+        buffer = null;
+    }
+
+
+    /**
+     * Gets the number of chunks the upload was cut into, once it is finished.
+     *
+     * @return the number of chunks
+     */
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+
+    /**
+     * Gets the number of chunks the store did not hold before the upload, once it is finished.
+     *
+     * @return the number of new chunks
+     */
+    public int getNewChunkCount() {
+        return added;
+    }
+
+
+    /**
+     * Gets the error an upload failed with.
+     *
+     * @param cause the error a writer task completed with
+     * @return the error as an IOException
+     */
+    public static IOException unwrap(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof UncheckedIOException) {
+            return ((UncheckedIOException) cause).getCause();
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException(cause);
+    }
+
+
+    /**
+     * Hands the current buffer to the writer, waiting first while {@link #MAX_IN_FLIGHT} buffers are not stored yet.
+     *
+     * @param last whether the buffer ends the upload
+     */
+    private void handOver(boolean last) {
+        byte[] full = buffer;
+        int length = filled;
+        inFlight.acquireUninterruptibly();
+        CompletableFuture<Void> task = stored.thenRunAsync(() -> {
+            try {
+                store(full, length, last);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, WRITERS);
+        // Released however the task ends, a failed or abandoned upload must not block the next hand-over
+        task.whenComplete((result, error) -> inFlight.release());
+        stored = task;
+    }
+
+
+    /**
+     * Cuts the chunks that end in a buffer, after what was carried over, and stores them.
+     * Runs on a writer thread.
+     *
+     * @param full   the buffer, or null if nothing was written
+     * @param length the number of bytes in the buffer
+     * @param last   whether the buffer ends the upload
+     * @throws IOException if a chunk cannot be stored
+     */
+    private void store(byte[] full, int length, boolean last) throws IOException {
+        if (abandoned) {
+            return;
+        }
+        if (pending.length < carried + length) {
+            pending = Arrays.copyOf(pending, carried + length);
+        }
+        if (length > 0) {
+            System.arraycopy(full, 0, pending, carried, length);
+        }
+        if (full != null && full.length == BUFFER_BYTES) {
+            free.add(full);
+        }
+        int end = carried + length;
+        int start = 0;
+        // Past the threshold, the rest of a large upload is kept out of the page cache
+        boolean direct = store.isDirect(Math.max(expectedSize, offset + end));
+        while (start < end) {
+            int boundary = Chunker.nextBoundary(pending, start, end);
+            if (!last && boundary == end && boundary - start < Chunker.MAX_SIZE) {
+                // The chunk may end further on, cut it again once the next buffer arrives
+                break;
+            }
+            digest.update(pending, start, boundary - start);
+            byte[] hash = digest.digest();
+            if (!store.contains(hash)) {
+                store.put(hash, pending, start, boundary - start, direct);
+                added++;
+            }
+            chunks.add(new Chunker.Chunk(hash, offset + start, boundary - start));
+            start = boundary;
+        }
+        System.arraycopy(pending, start, pending, 0, end - start);
+        carried = end - start;
+        offset += start;
+    }
+}
@@ -0,0 +1,136 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import request.BlockCache;
+import request.ChunkStore;
+import request.Durability;
+import request.FileSystemStore;
+import request.FrameCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+// Drives a download from the handler with a client that answers as TFTPClient does, dropping some of its ACKs
+public class TFTPRequestHandlerTest {
+
+    private Path directory;
+    private DatagramChannel channel;
+    private DatagramSocket client;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("tftp-handler-test");
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        client.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        channel.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // The ACKs of blocks 2 and 3 are lost, so the server times out and sends block 2 again. The client already holds
+    // block 3 and answers with its ACK, past the block sent again, which must still complete the window
+    @Test
+    public void acceptsAckPastBlockSentAgainAfterTimeout() throws Exception {
+        byte[] contents = new byte[2 * 508 + 100];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+        Files.write(directory.resolve("three.bin"), contents);
+        ChunkStore store = new ChunkStore(new FileSystemStore(directory, Durability.NONE));
+        TFTPRequestHandler handler = new TFTPRequestHandler(channel.socket(), new BlockCache(BlockCache.DEFAULT_CAPACITY, store),
+                new FrameCache(FrameCache.DEFAULT_CAPACITY), store, 0, null, null);
+
+        byte[] rrq = request("three.bin", "checksum", "crc32c", "windowsize", "4", "utimeout", "100000");
+        DatagramPacket rrqPacket = new DatagramPacket(rrq, rrq.length, client.getLocalSocketAddress());
+        Thread server = new Thread(() -> handler.handle(rrqPacket));
+        server.start();
+
+        InetSocketAddress serverAddress = (InetSocketAddress) channel.getLocalAddress();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Set<Integer> dropped = new HashSet<>();
+        int expected = 1;
+        boolean checksumReceived = false;
+        byte[] buffer = new byte[1024];
+        while (!checksumReceived) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                client.receive(packet);
+            } catch (SocketTimeoutException e) {
+                fail("Server stopped sending before the checksum, after block " + (expected - 1));
+            }
+            int opcode = uint16(buffer, 0);
+            if (opcode == 6) {
+                ack(0, serverAddress);
+                continue;
+            }
+            if (opcode != 3) {
+                continue;
+            }
+            int block = uint16(buffer, 2);
+            if (block == expected) {
+                if (block == 4) {
+                    checksumReceived = true;
+                } else {
+                    received.write(buffer, 4, packet.getLength() - 4);
+                }
+                expected++;
+            }
+            // A block out of order is answered with the ACK of the last block taken, as TFTPClient does
+            int acknowledged = expected - 1;
+            if ((acknowledged == 2 || acknowledged == 3) && dropped.add(acknowledged)) {
+                continue;
+            }
+            ack(acknowledged, serverAddress);
+        }
+        server.join(5000);
+        assertTrue(checksumReceived);
+        assertArrayEquals(contents, received.toByteArray());
+    }
+
+    private void ack(int block, InetSocketAddress server) throws IOException {
+        byte[] packet = {0, 4, (byte) (block >> 8), (byte) block};
+        client.send(new DatagramPacket(packet, packet.length, server));
+    }
+
+    private static byte[] request(String filename, String... options) {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        packet.write(0);
+        packet.write(1);
+        for (String field : Stream.concat(Stream.of(filename, "octet"), Stream.of(options)).toArray(String[]::new)) {
+            byte[] bytes = field.getBytes(StandardCharsets.US_ASCII);
+            packet.write(bytes, 0, bytes.length);
+            packet.write(0);
+        }
+        return packet.toByteArray();
+    }
+
+    private static int uint16(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 8 | buffer[offset + 1] & 0xFF;
+    }
+}
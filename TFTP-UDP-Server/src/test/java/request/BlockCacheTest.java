@@ -0,0 +1,174 @@
+package request;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+// Reads files kept in memory through a block cache, the store refusing to map them so every read goes through the cache
+public class BlockCacheTest {
+
+    private MemoryStore files;
+    private BlockCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        files = new MemoryStore() {
+            @Override
+            public ByteBuffer map(String name) {
+                return null;
+            }
+        };
+        cache = new BlockCache(4L * BlockCache.BLOCK_BYTES, new ChunkStore(files));
+    }
+
+    // A full cache evicts the first block the CLOCK hand finds unread since its last pass, sparing the block read again
+    @Test
+    public void evictsTheFirstBlockNotReadAgain() throws IOException {
+        byte[][] contents = new byte[5][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = randomBytes(BlockCache.BLOCK_BYTES, i);
+            put("file" + i, contents[i]);
+        }
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(contents[i], readAll("file" + i));
+        }
+        assertArrayEquals(contents[0], readAll("file0"));
+        assertEquals(4, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // The hand passes file0, read again, and evicts file1
+        assertArrayEquals(contents[4], readAll("file4"));
+        assertEquals(1, cache.getEvictions());
+        for (int i : new int[]{0, 2, 3, 4}) {
+            assertArrayEquals(contents[i], readAll("file" + i));
+        }
+        assertEquals(5, cache.getMisses());
+        assertArrayEquals(contents[1], readAll("file1"));
+        assertEquals(6, cache.getMisses());
+        assertEquals(4L * BlockCache.BLOCK_BYTES, cache.getUsedBytes());
+    }
+
+    // A new version of a file has a new modification time, so its blocks are read again instead of served stale
+    @Test
+    public void readsAChangedFileAgain() throws IOException {
+        byte[] first = randomBytes(1000, 1);
+        byte[] second = randomBytes(1000, 2);
+        put("changing.bin", first);
+        assertArrayEquals(first, readAll("changing.bin"));
+        assertArrayEquals(first, readAll("changing.bin"));
+        assertEquals(1, cache.getMisses());
+
+        put("changing.bin", second);
+        assertArrayEquals(second, readAll("changing.bin"));
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    // Readers missing a block another reader is loading wait for that load, so the store is read once per block
+    @Test
+    public void coalescesConcurrentMissesOfTheSameBlock() throws Exception {
+        CountDownLatch disk = new CountDownLatch(1);
+        AtomicInteger reads = new AtomicInteger();
+        files = new MemoryStore() {
+            @Override
+            public ByteBuffer map(String name) {
+                return null;
+            }
+
+            @Override
+            public ReadChannel openRead(String name) throws IOException {
+                ReadChannel channel = super.openRead(name);
+                return new ReadChannel() {
+                    @Override
+                    public long size() throws IOException {
+                        return channel.size();
+                    }
+
+                    @Override
+                    public int read(ByteBuffer dst, long position) throws IOException {
+                        reads.incrementAndGet();
+                        try {
+                            disk.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return channel.read(dst, position);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        channel.close();
+                    }
+                };
+            }
+        };
+        cache = new BlockCache(4L * BlockCache.BLOCK_BYTES, new ChunkStore(files));
+        byte[] contents = randomBytes(1000, 3);
+        put("popular.bin", contents);
+
+        int readers = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < readers; i++) {
+                Callable<byte[]> reader = () -> readAll("popular.bin");
+                results.add(pool.submit(reader));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (cache.getCoalesced() < readers - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(readers - 1, cache.getCoalesced());
+            disk.countDown();
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(contents, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, reads.get());
+        assertEquals(0, cache.getHits());
+    }
+
+    private void put(String name, byte[] data) throws IOException {
+        try (FileStore.WriteChannel channel = files.openWrite(name)) {
+            channel.write(ByteBuffer.wrap(data), 0);
+            channel.commit();
+        }
+    }
+
+    private byte[] readAll(String name) throws IOException {
+        try (BlockCache.CachedFile file = cache.open(name)) {
+            byte[] data = new byte[(int) file.getSize()];
+            int read = 0;
+            while (read < data.length) {
+                read += file.read(read, data, read, data.length - read);
+            }
+            return Arrays.copyOf(data, read);
+        }
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
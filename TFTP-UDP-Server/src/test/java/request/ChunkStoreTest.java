@@ -0,0 +1,113 @@
+package request;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+// Stores files as chunks in a temporary directory and reads them back
+public class ChunkStoreTest {
+
+    private Path directory;
+    private ChunkStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("tftp-chunk-store-test");
+        store = new ChunkStore(new FileSystemStore(directory, Durability.NONE));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // An upload named after a chunk would replace the chunk's file by a manifest and delete it, so every file made of
+    // that chunk could no longer be read
+    @Test
+    public void refusesNamesInsideTheChunkStore() throws IOException {
+        byte[] contents = randomBytes(20000, 1);
+        List<Chunker.Chunk> chunks = Chunker.split(contents, contents.length);
+        store.store("kept.bin", contents, chunks);
+
+        String chunkName = ".chunks/objects/" + Chunker.toHex(chunks.get(0).hash).substring(0, 2) + '/'
+                + Chunker.toHex(chunks.get(0).hash);
+        for (String name : new String[]{chunkName, ".chunks/manifests/kept.bin", ".CHUNKS/x"}) {
+            try {
+                store.putManifest(name, chunks);
+                fail("Stored a manifest named " + name);
+            } catch (AccessDeniedException expected) {
+                // refused
+            }
+        }
+        BlockCache cache = new BlockCache(BlockCache.DEFAULT_CAPACITY, store);
+        try {
+            cache.open(".chunks/manifests/kept.bin");
+            fail("Opened a manifest as a file");
+        } catch (AccessDeniedException expected) {
+            // refused
+        }
+
+        assertTrue(store.contains(chunks.get(0).hash));
+        assertArrayEquals(contents, readAll(store.getManifest("kept.bin")));
+    }
+
+    // Reads starting anywhere in the file, across chunk boundaries and past its end, return the bytes stored there
+    @Test
+    public void readsAnyRangeOfAStoredFile() throws IOException {
+        byte[] contents = randomBytes(300000, 2);
+        List<Chunker.Chunk> chunks = Chunker.split(contents, contents.length);
+        store.store("ranges.bin", contents, chunks);
+        ChunkStore.Manifest manifest = store.getManifest("ranges.bin");
+        assertTrue(manifest.chunks.size() > 2);
+
+        for (Chunker.Chunk chunk : manifest.chunks) {
+            int index = manifest.chunks.indexOf(chunk);
+            assertEquals(index, manifest.chunkAt(chunk.offset));
+            assertEquals(index, manifest.chunkAt(chunk.offset + chunk.length - 1));
+        }
+        assertEquals(manifest.chunks.size(), manifest.chunkAt(contents.length));
+
+        Random random = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            int position = random.nextInt(contents.length);
+            byte[] buf = new byte[1 + random.nextInt(100000)];
+            int read = store.read(manifest, position, buf, 0, buf.length);
+            assertEquals(Math.min(buf.length, contents.length - position), read);
+            assertArrayEquals(Arrays.copyOfRange(contents, position, position + read), Arrays.copyOf(buf, read));
+        }
+        assertEquals(0, store.read(manifest, contents.length, new byte[10], 0, 10));
+    }
+
+    private byte[] readAll(ChunkStore.Manifest manifest) throws IOException {
+        byte[] contents = new byte[(int) manifest.size];
+        int read = 0;
+        while (read < contents.length) {
+            read += store.read(manifest, read, contents, read, contents.length - read);
+        }
+        return contents;
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,80 @@
+package request;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+// Remembers missing names while watching a temporary directory
+public class MissingFilesTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("tftp-missing-files-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // A missing name is trusted for the TTL only, even if no file of that name appears
+    @Test
+    public void forgetsNamesOnceTheyExpire() throws InterruptedException {
+        MissingFiles missingFiles = new MissingFiles(TimeUnit.MILLISECONDS.toNanos(200), directory);
+        missingFiles.add("gone.bin", missingFiles.getAppeared());
+        assertTrue(missingFiles.isMissing("gone.bin"));
+        assertFalse(missingFiles.isMissing("other.bin"));
+
+        Thread.sleep(300);
+        assertFalse(missingFiles.isMissing("gone.bin"));
+    }
+
+    // Creating the file in the watched directory makes the name be looked up again long before the TTL runs out
+    @Test
+    public void forgetsANameOnceItsFileAppears() throws IOException, InterruptedException {
+        MissingFiles missingFiles = new MissingFiles(directory);
+        missingFiles.add("later.bin", missingFiles.getAppeared());
+        missingFiles.add("never.bin", missingFiles.getAppeared());
+        assertTrue(missingFiles.isMissing("later.bin"));
+
+        Files.write(directory.resolve("later.bin"), new byte[]{1});
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (missingFiles.isMissing("later.bin") && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(missingFiles.isMissing("later.bin"));
+        assertTrue(missingFiles.isMissing("never.bin"));
+    }
+
+    // Names the watch cannot see, lookups that raced with a new file and stores that cannot be watched are not remembered
+    @Test
+    public void remembersOnlyWhatTheWatchCanInvalidate() {
+        MissingFiles missingFiles = new MissingFiles(directory);
+        missingFiles.add("nested/file.bin", missingFiles.getAppeared());
+        assertFalse(missingFiles.isMissing("nested/file.bin"));
+
+        long appeared = missingFiles.getAppeared();
+        missingFiles.forget("stored.bin");
+        missingFiles.add("raced.bin", appeared);
+        assertFalse(missingFiles.isMissing("raced.bin"));
+
+        MissingFiles unwatched = new MissingFiles();
+        unwatched.add("gone.bin", unwatched.getAppeared());
+        assertFalse(unwatched.isMissing("gone.bin"));
+    }
+}
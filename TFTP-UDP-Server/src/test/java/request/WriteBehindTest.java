@@ -0,0 +1,103 @@
+package request;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+// Streams uploads through a WriteBehind into a chunk store kept in memory
+public class WriteBehindTest {
+
+    // A writer stuck on the disk holds the upload back once MAX_IN_FLIGHT buffers wait for it, instead of letting the
+    // whole upload pile up in memory
+    @Test
+    public void blocksTheReceiverOnceTheWriterFallsBehind() throws Exception {
+        CountDownLatch disk = new CountDownLatch(1);
+        ChunkStore store = new ChunkStore(new MemoryStore() {
+            @Override
+            public WriteChannel openWrite(String name) throws IOException {
+                try {
+                    disk.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return super.openWrite(name);
+            }
+        });
+        WriteBehind upload = new WriteBehind(store);
+        byte[] contents = randomBytes(10 * WriteBehind.BUFFER_BYTES, 4);
+        AtomicLong accepted = new AtomicLong();
+        Thread receiver = new Thread(() -> {
+            for (int position = 0; position < contents.length; position += 4096) {
+                int length = Math.min(4096, contents.length - position);
+                upload.write(contents, position, length);
+                accepted.addAndGet(length);
+            }
+        });
+        receiver.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (receiver.getState() != Thread.State.WAITING && receiver.isAlive() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, receiver.getState());
+        // The buffers waiting, and the one the writer is stuck on, are all the receiver got past
+        assertTrue(accepted.get() <= (long) (WriteBehind.MAX_IN_FLIGHT + 1) * WriteBehind.BUFFER_BYTES);
+
+        disk.countDown();
+        receiver.join(TimeUnit.SECONDS.toMillis(10));
+        upload.finishAndWait("slow.bin");
+        assertEquals(Chunker.split(contents, contents.length).size(), upload.getChunkCount());
+    }
+
+    // However the upload is cut into writes, and whether or not its size is known up front, the file is stored as the
+    // same chunks Chunker.split finds in it as a whole
+    @Test
+    public void storesTheChunksSplitFindsInTheWholeFile() throws IOException {
+        ChunkStore store = new ChunkStore(new MemoryStore());
+        Random random = new Random(5);
+        int[] sizes = {0, 100, Chunker.MIN_SIZE, 70000, 3 * WriteBehind.BUFFER_BYTES + 12345};
+        for (int size : sizes) {
+            byte[] contents = randomBytes(size, size);
+            for (boolean sized : new boolean[]{false, true}) {
+                String name = "file-" + size + "-" + sized + ".bin";
+                WriteBehind upload = sized ? new WriteBehind(store, size) : new WriteBehind(store);
+                for (int position = 0; position < size; ) {
+                    // Mostly block-sized writes, now and then one spanning several buffers
+                    int length = random.nextInt(10) == 0 ? random.nextInt(2 * WriteBehind.BUFFER_BYTES)
+                            : 1 + random.nextInt(65536);
+                    length = Math.min(length, size - position);
+                    upload.write(contents, position, length);
+                    position += length;
+                }
+                upload.finishAndWait(name);
+
+                List<Chunker.Chunk> expected = Chunker.split(contents, size);
+                List<Chunker.Chunk> stored = store.getManifest(name).chunks;
+                assertEquals(name, expected.size(), stored.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(name, expected.get(i).offset, stored.get(i).offset);
+                    assertEquals(name, expected.get(i).length, stored.get(i).length);
+                    assertArrayEquals(name, expected.get(i).hash, stored.get(i).hash);
+                }
+                assertEquals(expected.size(), upload.getChunkCount());
+            }
+        }
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}